@@ -0,0 +1,58 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Synthetic users shared by the benchmarks. User {@code i} has ID {@code i} and
+ * email {@code user<i>@example.com}, so any ID in range can be read or rewritten
+ * without clashing with another user's email.
+ */
+final class Datasets {
+
+    private Datasets() {
+    }
+
+    /**
+     * Replaces the repository's contents with {@code size} users.
+     */
+    static void load(int size) {
+        List<User> users = new ArrayList<>(size);
+        for (long id = 1; id <= size; id++) {
+            users.add(user(id, 20 + (int) (id % 50)).withVersion(id));
+        }
+        UserRepository.restore(users);
+    }
+
+    static long randomId(int size) {
+        return ThreadLocalRandom.current().nextLong(1, size + 1);
+    }
+
+    /**
+     * Returns an update of a random existing user with a new age.
+     */
+    static User randomUpdate(int size) {
+        return user(randomId(size), ThreadLocalRandom.current().nextInt(0, 151));
+    }
+
+    static byte[] updateBody(long id) {
+        return ("{\"name\":\"User " + id + "\",\"email\":\"user" + id + "@example.com\",\"age\":"
+                + ThreadLocalRandom.current().nextInt(0, 151) + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a merge patch that changes only the age.
+     */
+    static byte[] patchBody() {
+        return ("{\"age\":" + ThreadLocalRandom.current().nextInt(0, 151) + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static User user(long id, int age) {
+        return new User(id, "User " + id, "user" + id + "@example.com", age);
+    }
+}
@@ -0,0 +1,82 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache.UserJsonCache;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache.UserProjection;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonResponseUtil;
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response serialization: a single user through {@code JsonWriter}, a list
+ * through the Jackson fallback, the same list from cached fragments, and users
+ * projected to their ID and name.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class JsonResponseUtilBenchmark {
+
+    @Param({"1", "100", "1000"})
+    int listSize;
+
+    private User user;
+    private List<User> users;
+    private UserJsonCache cache;
+    private UserProjection idAndName;
+
+    @Setup
+    public void setUp() throws InvalidDataException {
+        Datasets.load(listSize);
+        users = new UserRepository().findAll();
+        user = users.get(0);
+        cache = new UserJsonCache(64L * 1024 * 1024);
+        idAndName = UserProjection.of("id,name");
+    }
+
+    @Benchmark
+    public long sendUser() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        JsonResponseUtil.sendJsonResponse(ServletStubs.response(sink), ApiResponse.success(user), 
+                HttpServletResponse.SC_OK);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long sendUsers() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        JsonResponseUtil.sendJsonResponse(ServletStubs.response(sink), ApiResponse.success(users), 
+                HttpServletResponse.SC_OK);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long sendUsersFromFragments() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        JsonResponseUtil.sendJsonResponse(ServletStubs.response(sink), "Success", 
+                out -> cache.writeUsers(out, users), HttpServletResponse.SC_OK);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long sendUsersProjected() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        JsonResponseUtil.sendJsonResponse(ServletStubs.response(sink), "Success", 
+                out -> cache.writeUsers(out, users, idAndName), HttpServletResponse.SC_OK);
+        return sink.bytes;
+    }
+}
@@ -0,0 +1,50 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of recording a request, including the two clock reads the
+ * metrics filter takes, alone and with threads contending on the same histogram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    @Benchmark
+    public void recordRequest() {
+        long start = System.nanoTime();
+        long latency = ThreadLocalRandom.current().nextLong(50_000, 5_000_000);
+        MetricsRegistry.recordRequest("/api/users", "/123", "GET", 200, System.nanoTime() - start + latency);
+    }
+
+    /**
+     * The two clock reads alone, to tell the clock's share from the registry's.
+     */
+    @Benchmark
+    public long clockReads() {
+        long start = System.nanoTime();
+        return System.nanoTime() - start;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordRequestContended() {
+        recordRequest();
+    }
+
+    @Benchmark
+    public String scrape() {
+        return MetricsRegistry.scrape();
+    }
+}
@@ -0,0 +1,213 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Minimal servlet API objects, just enough to drive the controller without a
+ * container. Every method not handled here returns null, false or zero.
+ */
+final class ServletStubs {
+
+    private ServletStubs() {
+    }
+
+    static ServletConfig config(Map<String, String> contextParams) {
+        ServletContext context = stub(ServletContext.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getInitParameter":
+                    return contextParams.get((String) args[0]);
+                case "getInitParameterNames":
+                    return Collections.enumeration(contextParams.keySet());
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+        return stub(ServletConfig.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getServletContext":
+                    return context;
+                case "getServletName":
+                    return "UserController";
+                case "getInitParameterNames":
+                    return Collections.emptyEnumeration();
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+    }
+
+    static HttpServletRequest request(String method, String pathInfo, Map<String, String> parameters, 
+            byte[] body) {
+        ServletInputStream in = new BodyInputStream(body != null ? body : new byte[0]);
+        return stub(HttpServletRequest.class, (called, args) -> {
+            switch (called.getName()) {
+                case "getMethod":
+                    return method;
+                case "getPathInfo":
+                    return pathInfo;
+                case "getParameter":
+                    return parameters.get((String) args[0]);
+                case "getInputStream":
+                    return in;
+                case "getContentLengthLong":
+                    return body != null ? (long) body.length : -1L;
+                case "getContentLength":
+                    return body != null ? body.length : -1;
+                case "getDispatcherType":
+                    return DispatcherType.REQUEST;
+                case "getProtocol":
+                    return "HTTP/1.1";
+                default:
+                    return NOT_HANDLED;
+            }
+        });
+    }
+
+    /**
+     * Returns a response whose body goes to the given stream.
+     */
+    static HttpServletResponse response(OutputStream sink) {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                sink.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                sink.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return stub(HttpServletResponse.class, (method, args) -> 
+                "getOutputStream".equals(method.getName()) ? out : NOT_HANDLED);
+    }
+
+    /**
+     * Discards what is written and only counts the bytes, so the benchmark can
+     * return the count and keep the writes from being optimized away.
+     */
+    static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private static final Object NOT_HANDLED = new Object();
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(Method method, Object[] args);
+    }
+
+    private static <T> T stub(Class<T> type, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName() + " stub";
+                }
+            }
+            Object result = handler.handle(method, args);
+            return result != NOT_HANDLED ? result : defaultValue(method.getReturnType());
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, invocationHandler));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == float.class) {
+            return 0.0f;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        return 0;
+    }
+
+    private static final class BodyInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        private BodyInputStream(byte[] body) {
+            this.in = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+    }
+}
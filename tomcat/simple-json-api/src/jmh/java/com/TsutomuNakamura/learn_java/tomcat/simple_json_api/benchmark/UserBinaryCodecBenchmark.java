@@ -0,0 +1,81 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonResponseUtil;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.UserBinaryCodec;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A list of users encoded and decoded as JSON and in the binary format. The
+ * payload size of both is printed once per trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UserBinaryCodecBenchmark {
+
+    private static final TypeReference<ApiResponse<List<User>>> USER_LIST = new TypeReference<>() {
+    };
+
+    @Param({"1", "100", "1000"})
+    int listSize;
+
+    private ApiResponse<List<User>> response;
+    private ObjectMapper objectMapper;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        Datasets.load(listSize);
+        response = ApiResponse.success(new UserRepository().findAll());
+        objectMapper = JsonMapper.builder().build();
+        json = JsonResponseUtil.toJsonBytes(response);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UserBinaryCodec.encode(out, response);
+        binary = out.toByteArray();
+        System.out.printf("%n%d users: JSON %d bytes, binary %d bytes (%.0f%%)%n", listSize, json.length,
+                binary.length, 100.0 * binary.length / json.length);
+    }
+
+    @Benchmark
+    public long encodeJson() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        objectMapper.writeValue(sink, response);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long encodeBinary() throws IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        UserBinaryCodec.encode(sink, response);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public ApiResponse<List<User>> decodeJson() throws IOException {
+        return objectMapper.readValue(json, USER_LIST);
+    }
+
+    @Benchmark
+    public ApiResponse<Object> decodeBinary() throws IOException {
+        return UserBinaryCodec.decode(binary);
+    }
+}
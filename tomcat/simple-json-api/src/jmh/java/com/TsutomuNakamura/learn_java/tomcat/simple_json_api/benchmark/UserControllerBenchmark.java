@@ -0,0 +1,105 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.controller.UserController;
+import jakarta.servlet.ServletException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests through the controller, from parsing the body to writing the
+ * response, without a container or network. Requests run on the calling thread.
+ * Lookups of missing and malformed IDs measure the error path. A batch of users
+ * is fetched both with one multi-get and with a request per user.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UserControllerBenchmark {
+
+    private static final int BATCH_SIZE = 20;
+
+    @Param({"1000", "100000"})
+    int datasetSize;
+
+    private UserController controller;
+
+    @Setup
+    public void setUp() throws ServletException {
+        Datasets.load(datasetSize);
+        controller = new UserController();
+        controller.init(ServletStubs.config(Map.of(UserController.ASYNC_ENABLED_PARAM, "false")));
+    }
+
+    @TearDown
+    public void tearDown() {
+        controller.destroy();
+    }
+
+    @Benchmark
+    public long getUser() throws ServletException, IOException {
+        return send("GET", "/" + Datasets.randomId(datasetSize), Collections.emptyMap(), null);
+    }
+
+    @Benchmark
+    public long getMissingUser() throws ServletException, IOException {
+        return send("GET", "/" + (datasetSize + Datasets.randomId(datasetSize)), Collections.emptyMap(), null);
+    }
+
+    @Benchmark
+    public long getMalformedId() throws ServletException, IOException {
+        return send("GET", "/not-an-id", Collections.emptyMap(), null);
+    }
+
+    @Benchmark
+    public long getPage() throws ServletException, IOException {
+        return send("GET", null, Map.of("limit", "100"), null);
+    }
+
+    @Benchmark
+    public long getBatch() throws ServletException, IOException {
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ids.append(i > 0 ? "," : "").append(Datasets.randomId(datasetSize));
+        }
+        return send("GET", null, Map.of("ids", ids.toString()), null);
+    }
+
+    @Benchmark
+    public long getBatchOneByOne() throws ServletException, IOException {
+        long bytes = 0;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            bytes += send("GET", "/" + Datasets.randomId(datasetSize), Collections.emptyMap(), null);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long putUser() throws ServletException, IOException {
+        long id = Datasets.randomId(datasetSize);
+        return send("PUT", "/" + id, Collections.emptyMap(), Datasets.updateBody(id));
+    }
+
+    @Benchmark
+    public long patchUser() throws ServletException, IOException {
+        return send("PATCH", "/" + Datasets.randomId(datasetSize), Collections.emptyMap(), Datasets.patchBody());
+    }
+
+    private long send(String method, String pathInfo, Map<String, String> parameters, byte[] body) 
+            throws ServletException, IOException {
+        ServletStubs.CountingSink sink = new ServletStubs.CountingSink();
+        controller.service(ServletStubs.request(method, pathInfo, parameters, body), ServletStubs.response(sink));
+        return sink.bytes;
+    }
+}
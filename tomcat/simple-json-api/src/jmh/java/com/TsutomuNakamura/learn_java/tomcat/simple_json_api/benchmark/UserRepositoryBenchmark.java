@@ -0,0 +1,93 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes against the repository at different dataset sizes, alone and
+ * as concurrent mixes. Group benchmarks report the throughput of each role.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UserRepositoryBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int datasetSize;
+
+    private UserRepository repository;
+
+    @Setup
+    public void setUp() {
+        Datasets.load(datasetSize);
+        repository = new UserRepository();
+    }
+
+    @Benchmark
+    public Optional<User> findById() {
+        return repository.findById(Datasets.randomId(datasetSize));
+    }
+
+    @Benchmark
+    public User save() throws DuplicateEmailException {
+        return repository.save(Datasets.randomUpdate(datasetSize));
+    }
+
+    /**
+     * One thread doing nine reads for every write.
+     */
+    @Benchmark
+    public Object readMostlySingleThread() throws DuplicateEmailException {
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            return repository.save(Datasets.randomUpdate(datasetSize));
+        }
+        return repository.findById(Datasets.randomId(datasetSize));
+    }
+
+    // Three readers racing one writer
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public Optional<User> readMostlyRead() {
+        return repository.findById(Datasets.randomId(datasetSize));
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public User readMostlyWrite() throws DuplicateEmailException {
+        return repository.save(Datasets.randomUpdate(datasetSize));
+    }
+
+    // Two readers racing two writers
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public Optional<User> balancedRead() {
+        return repository.findById(Datasets.randomId(datasetSize));
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public User balancedWrite() throws DuplicateEmailException {
+        return repository.save(Datasets.randomUpdate(datasetSize));
+    }
+}
@@ -0,0 +1,86 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.benchmark;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.UserNotFoundException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.VersionConflictException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.Page;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.service.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service calls including validation, for valid input and for input that is
+ * rejected, which measures the cost of raising the validation exception.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UserServiceBenchmark {
+
+    @Param({"1000", "100000"})
+    int datasetSize;
+
+    private UserService userService;
+
+    @Setup
+    public void setUp() {
+        Datasets.load(datasetSize);
+        userService = new UserService();
+    }
+
+    @Benchmark
+    public User getUserById() throws UserNotFoundException, InvalidDataException {
+        return userService.getUserById(Datasets.randomId(datasetSize));
+    }
+
+    @Benchmark
+    public User updateUser() 
+            throws UserNotFoundException, InvalidDataException, DuplicateEmailException, VersionConflictException {
+        User update = Datasets.randomUpdate(datasetSize);
+        return userService.updateUser(update.getId(), update, UserRepository.ANY_VERSION);
+    }
+
+    /**
+     * Read-modify-write as a client holding an ETag does it: read the user, then
+     * update it only if it is still at the version read.
+     */
+    @Benchmark
+    public Object updateUserIfMatch() 
+            throws UserNotFoundException, InvalidDataException, DuplicateEmailException {
+        User update = Datasets.randomUpdate(datasetSize);
+        long version = userService.getUserById(update.getId()).getVersion();
+        try {
+            return userService.updateUser(update.getId(), update, version);
+        } catch (VersionConflictException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object updateUserWithInvalidEmail() 
+            throws UserNotFoundException, DuplicateEmailException, VersionConflictException {
+        User random = Datasets.randomUpdate(datasetSize);
+        User update = new User(random.getId(), random.getName(), "not-an-email", random.getAge());
+        try {
+            return userService.updateUser(update.getId(), update, UserRepository.ANY_VERSION);
+        } catch (InvalidDataException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Page<User> getUsersPage() throws InvalidDataException {
+        return userService.getUsersPage(null, 100);
+    }
+}
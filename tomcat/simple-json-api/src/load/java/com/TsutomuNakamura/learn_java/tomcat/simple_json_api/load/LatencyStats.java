@@ -0,0 +1,132 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and outcomes of one phase of the load test, per operation.
+ *
+ * Latencies are recorded in nanoseconds from the moment a request was scheduled
+ * to be sent, not from when it actually was, so time spent queued behind a
+ * slow server counts against the server.
+ */
+final class LatencyStats {
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Map<Operation, ConcurrentHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    LatencyStats() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(SIGNIFICANT_DIGITS));
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Records a response. Statuses of 400 and above count as errors.
+     */
+    void record(Operation operation, long latencyNanos, int status) {
+        latencies.get(operation).recordValue(latencyNanos);
+        statusCodes.computeIfAbsent(status, key -> new LongAdder()).increment();
+        if (status >= 400) {
+            errors.get(operation).increment();
+        }
+    }
+
+    /**
+     * Records a request that got no response at all, such as a refused connection.
+     */
+    void recordFailure(Operation operation, long latencyNanos) {
+        latencies.get(operation).recordValue(latencyNanos);
+        errors.get(operation).increment();
+        failures.increment();
+    }
+
+    /**
+     * Records a request that was never sent because too many were still in flight.
+     */
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Summarizes the phase as plain maps, ready to be written as JSON.
+     */
+    Map<String, Object> summary(double elapsedSeconds) {
+        Histogram all = new Histogram(SIGNIFICANT_DIGITS);
+        long allErrors = 0;
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            long operationErrors = errors.get(operation).sum();
+            if (histogram.getTotalCount() > 0) {
+                operations.put(operation.name(), summarize(histogram, operationErrors, elapsedSeconds));
+            }
+            all.add(histogram);
+            allErrors += operationErrors;
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("elapsedSeconds", elapsedSeconds);
+        summary.put("total", summarize(all, allErrors, elapsedSeconds));
+        summary.put("operations", operations);
+        Map<String, Long> statuses = new TreeMap<>();
+        statusCodes.forEach((status, count) -> statuses.put(Integer.toString(status), count.sum()));
+        summary.put("statusCodes", statuses);
+        summary.put("connectionFailures", failures.sum());
+        summary.put("dropped", dropped.sum());
+        return summary;
+    }
+
+    /**
+     * Writes the full percentile distribution of each operation, in milliseconds,
+     * in HdrHistogram's text format so runs can be plotted and compared.
+     */
+    void writeDistributions(Path directory) throws IOException {
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = latencies.get(operation);
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            Path file = directory.resolve("latency-" + operation.name().toLowerCase(Locale.ROOT) + ".hgrm");
+            try (PrintStream out = new PrintStream(new FileOutputStream(file.toFile()), false, "UTF-8")) {
+                histogram.outputPercentileDistribution(out, NANOS_PER_MILLI);
+            }
+        }
+    }
+
+    private static Map<String, Object> summarize(Histogram histogram, long errors, double elapsedSeconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", histogram.getTotalCount());
+        summary.put("errors", errors);
+        summary.put("throughputPerSecond", histogram.getTotalCount() / elapsedSeconds);
+
+        Map<String, Double> latency = new LinkedHashMap<>();
+        latency.put("mean", histogram.getMean() / NANOS_PER_MILLI);
+        latency.put("p50", histogram.getValueAtPercentile(50) / NANOS_PER_MILLI);
+        latency.put("p90", histogram.getValueAtPercentile(90) / NANOS_PER_MILLI);
+        latency.put("p99", histogram.getValueAtPercentile(99) / NANOS_PER_MILLI);
+        latency.put("p99.9", histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI);
+        latency.put("max", histogram.getMaxValue() / NANOS_PER_MILLI);
+        summary.put("latencyMillis", latency);
+        return summary;
+    }
+}
@@ -0,0 +1,358 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.WebResourceRoot;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.webresources.DirResourceSet;
+import org.apache.catalina.webresources.StandardRoot;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Open-loop load test of /api/users against the webapp running in embedded Tomcat
+ * in the same JVM.
+ *
+ * Requests are sent on a fixed schedule, one every 1/rate seconds, whether or not
+ * earlier ones have been answered, and each latency is measured from the time the
+ * request was due. A closed-loop client that waits for each response before
+ * sending the next one sends less when the server stalls, and so never records
+ * the requests that would have queued up behind the stall; this one does.
+ *
+ * Configuration comes from system properties:
+ * <ul>
+ *   <li>{@code load.rate}: requests per second (1000)</li>
+ *   <li>{@code load.duration}: seconds measured (30), after {@code load.warmup} seconds (10)</li>
+ *   <li>{@code load.mix}: relative weights of each operation (GET=70,POST=10,PUT=15,DELETE=5)</li>
+ *   <li>{@code load.users}: users loaded before the run (10000)</li>
+ *   <li>{@code load.maxInFlight}: requests in flight above which new ones are dropped
+ *       and counted rather than sent (10000)</li>
+ *   <li>{@code load.context}: context-params overriding web.xml, as name=value,name=value</li>
+ *   <li>{@code load.webapp}, {@code load.classes}: the webapp directory and compiled classes</li>
+ *   <li>{@code load.output}: directory for the Tomcat base and the results</li>
+ * </ul>
+ *
+ * GETs, PUTs and PATCHes target the preloaded users; a PATCH only changes the age.
+ * DELETEs remove users created by this run's POSTs, and turn into GETs while there
+ * are none left to delete.
+ */
+public class LoadTest {
+    private static final String CONTEXT_PATH = "/simple-json-api";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int SEED_BATCH_SIZE = 1000;
+
+    private final int rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final Operation.Mix mix;
+    private final int users;
+    private final int maxInFlight;
+    private final Map<String, String> contextParams;
+    private final Path webapp;
+    private final Path classes;
+    private final Path output;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(REQUEST_TIMEOUT)
+            .build();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong createdSequence = new AtomicLong();
+    private final Queue<Long> createdIds = new ConcurrentLinkedQueue<>();
+    private URI usersUri;
+
+    LoadTest() {
+        rate = Integer.getInteger("load.rate", 1000);
+        durationSeconds = Integer.getInteger("load.duration", 30);
+        warmupSeconds = Integer.getInteger("load.warmup", 10);
+        mix = Operation.Mix.parse(System.getProperty("load.mix", "GET=70,POST=10,PUT=15,DELETE=5"));
+        users = Integer.getInteger("load.users", 10000);
+        maxInFlight = Integer.getInteger("load.maxInFlight", 10000);
+        contextParams = parseContextParams(System.getProperty("load.context", ""));
+        webapp = Paths.get(System.getProperty("load.webapp", "src/main/webapp")).toAbsolutePath();
+        classes = Paths.get(System.getProperty("load.classes", "target/classes")).toAbsolutePath();
+        output = Paths.get(System.getProperty("load.output", "target/load")).toAbsolutePath();
+
+        if (rate <= 0 || durationSeconds <= 0 || warmupSeconds < 0 || users <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("load.rate, load.duration, load.users and load.maxInFlight "
+                    + "must be positive, load.warmup must not be negative");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    void run() throws Exception {
+        Tomcat tomcat = startServer();
+        try {
+            seed();
+
+            System.out.println("Warming up for " + warmupSeconds + " s at " + rate + " req/s");
+            runPhase(warmupSeconds, new LatencyStats());
+
+            System.out.println("Measuring for " + durationSeconds + " s at " + rate + " req/s, mix " + mix);
+            LatencyStats stats = new LatencyStats();
+            double elapsedSeconds = runPhase(durationSeconds, stats);
+            writeResults(stats, elapsedSeconds);
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    /**
+     * Boots the webapp from its source directory and compiled classes, on a free port.
+     * The Tomcat base, and with it the persisted users, starts out empty on every run.
+     */
+    private Tomcat startServer() throws IOException, LifecycleException {
+        Path base = output.resolve("tomcat");
+        deleteRecursively(base);
+        Files.createDirectories(base);
+
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(base.toString());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+
+        Context context = tomcat.addWebapp(CONTEXT_PATH, webapp.toString());
+        WebResourceRoot resources = new StandardRoot(context);
+        resources.addPreResources(new DirResourceSet(resources, "/WEB-INF/classes", classes.toString(), "/"));
+        context.setResources(resources);
+        for (Map.Entry<String, String> param : contextParams.entrySet()) {
+            ApplicationParameter parameter = new ApplicationParameter();
+            parameter.setName(param.getKey());
+            parameter.setValue(param.getValue());
+            // Takes precedence over the same context-param in web.xml
+            parameter.setOverride(false);
+            context.addApplicationParameter(parameter);
+        }
+
+        tomcat.start();
+        usersUri = URI.create("http://localhost:" + tomcat.getConnector().getLocalPort()
+                + CONTEXT_PATH + "/api/users");
+        System.out.println("Serving " + usersUri);
+        return tomcat;
+    }
+
+    /**
+     * Loads users 1 to {@code load.users} through the bulk endpoint.
+     */
+    private void seed() throws IOException, InterruptedException {
+        for (long first = 1; first <= users; first += SEED_BATCH_SIZE) {
+            StringBuilder body = new StringBuilder();
+            long last = Math.min(users, first + SEED_BATCH_SIZE - 1);
+            for (long id = first; id <= last; id++) {
+                body.append("{\"id\":").append(id).append(',').append(userJson("seed", id)).append("}\n");
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create(usersUri + "/_bulk"))
+                    .header("Content-Type", "application/x-ndjson")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Seeding failed with status " + response.statusCode() + ": " + response.body());
+            }
+        }
+        System.out.println("Loaded " + users + " users");
+    }
+
+    /**
+     * Sends requests on schedule for the given number of seconds, then waits for
+     * the ones still in flight.
+     * @return the seconds the phase actually took
+     */
+    private double runPhase(int seconds, LatencyStats stats) throws InterruptedException {
+        if (seconds == 0) {
+            return 0;
+        }
+        double intervalNanos = 1e9 / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + (long) (i * intervalNanos);
+            if (scheduled >= end) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                stats.recordDropped();
+                continue;
+            }
+            send(mix.next(), scheduled, stats);
+        }
+
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private void send(Operation operation, long scheduled, LatencyStats stats) {
+        Long deleteId = operation == Operation.DELETE ? createdIds.poll() : null;
+        if (operation == Operation.DELETE && deleteId == null) {
+            operation = Operation.GET;
+        }
+        Operation sent = operation;
+
+        client.sendAsync(buildRequest(sent, deleteId), HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((response, error) -> {
+                    long latency = System.nanoTime() - scheduled;
+                    inFlight.decrementAndGet();
+                    if (error != null) {
+                        stats.recordFailure(sent, latency);
+                        return;
+                    }
+                    stats.record(sent, latency, response.statusCode());
+                    if (sent == Operation.POST && response.statusCode() == 201) {
+                        rememberCreated(response.body());
+                    }
+                });
+    }
+
+    private HttpRequest buildRequest(Operation operation, Long deleteId) {
+        switch (operation) {
+            case POST:
+                return jsonRequest(usersUri)
+                        .POST(HttpRequest.BodyPublishers.ofString(
+                                "{" + userJson("created", createdSequence.incrementAndGet()) + "}"))
+                        .build();
+            case PUT: {
+                long id = randomSeededId();
+                return jsonRequest(URI.create(usersUri + "/" + id))
+                        .PUT(HttpRequest.BodyPublishers.ofString("{" + userJson("seed", id) + "}"))
+                        .build();
+            }
+            case PATCH: {
+                long id = randomSeededId();
+                return HttpRequest.newBuilder(URI.create(usersUri + "/" + id))
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Content-Type", "application/merge-patch+json")
+                        .method("PATCH", HttpRequest.BodyPublishers.ofString(
+                                "{\"age\":" + ThreadLocalRandom.current().nextInt(0, 151) + "}"))
+                        .build();
+            }
+            case DELETE:
+                return HttpRequest.newBuilder(URI.create(usersUri + "/" + deleteId))
+                        .timeout(REQUEST_TIMEOUT)
+                        .DELETE()
+                        .build();
+            default:
+                return HttpRequest.newBuilder(URI.create(usersUri + "/" + randomSeededId()))
+                        .timeout(REQUEST_TIMEOUT)
+                        .GET()
+                        .build();
+        }
+    }
+
+    private HttpRequest.Builder jsonRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json");
+    }
+
+    private void rememberCreated(byte[] body) {
+        try {
+            JsonNode id = objectMapper.readTree(body).path("data").path("id");
+            if (id.canConvertToLong()) {
+                createdIds.add(id.asLong());
+            }
+        } catch (IOException e) {
+            // Not deleting this one is harmless
+        }
+    }
+
+    private long randomSeededId() {
+        return ThreadLocalRandom.current().nextLong(1, users + 1);
+    }
+
+    /**
+     * Returns the name, email and age of a user as JSON fields, without braces.
+     * Emails are unique per kind and number, so writes never conflict.
+     */
+    private static String userJson(String kind, long number) {
+        return "\"name\":\"Load User " + number + "\",\"email\":\"" + kind + number + "@example.com\",\"age\":"
+                + ThreadLocalRandom.current().nextInt(18, 91);
+    }
+
+    private void writeResults(LatencyStats stats, double elapsedSeconds) throws IOException {
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("rate", rate);
+        config.put("durationSeconds", durationSeconds);
+        config.put("warmupSeconds", warmupSeconds);
+        config.put("mix", mix.toString());
+        config.put("users", users);
+        config.put("maxInFlight", maxInFlight);
+        config.put("contextParams", contextParams);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", config);
+        result.putAll(stats.summary(elapsedSeconds));
+
+        Files.createDirectories(output);
+        Path resultFile = output.resolve("load-result.json");
+        objectMapper.writeValue(resultFile.toFile(), result);
+        stats.writeDistributions(output);
+
+        System.out.println(objectMapper.writeValueAsString(result));
+        System.out.println("Results written to " + resultFile);
+    }
+
+    private static Map<String, String> parseContextParams(String spec) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            if (part.trim().isEmpty()) {
+                continue;
+            }
+            int separator = part.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid context-param: " + part);
+            }
+            params.put(part.substring(0, separator).trim(), part.substring(separator + 1).trim());
+        }
+        return params;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path entry : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(entry);
+            }
+        }
+    }
+}
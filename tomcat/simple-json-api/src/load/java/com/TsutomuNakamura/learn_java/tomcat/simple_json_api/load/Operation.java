@@ -0,0 +1,81 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.load;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The request types the load test sends, and the weighted mix it picks them from.
+ */
+enum Operation {
+    GET, POST, PUT, PATCH, DELETE;
+
+    /**
+     * Picks operations at random in proportion to their weights.
+     */
+    static final class Mix {
+        private final Operation[] operations;
+        private final int[] cumulativeWeights;
+        private final int totalWeight;
+
+        private Mix(Map<Operation, Integer> weights) {
+            operations = weights.keySet().toArray(new Operation[0]);
+            cumulativeWeights = new int[operations.length];
+            int total = 0;
+            for (int i = 0; i < operations.length; i++) {
+                total += weights.get(operations[i]);
+                cumulativeWeights[i] = total;
+            }
+            totalWeight = total;
+        }
+
+        /**
+         * Parses a mix such as {@code GET=70,POST=10,PUT=15,DELETE=5}. Weights are
+         * relative, so they do not need to add up to 100.
+         */
+        static Mix parse(String spec) {
+            Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+            for (String part : spec.split(",")) {
+                String[] pair = part.split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Invalid mix entry: " + part);
+                }
+                int weight = Integer.parseInt(pair[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight for " + pair[0]);
+                }
+                if (weight > 0) {
+                    weights.put(Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), weight);
+                }
+            }
+            if (weights.isEmpty()) {
+                throw new IllegalArgumentException("Mix has no operations: " + spec);
+            }
+            return new Mix(weights);
+        }
+
+        Operation next() {
+            int value = ThreadLocalRandom.current().nextInt(totalWeight);
+            for (int i = 0; i < operations.length; i++) {
+                if (value < cumulativeWeights[i]) {
+                    return operations[i];
+                }
+            }
+            return operations[operations.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < operations.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                int weight = cumulativeWeights[i] - (i > 0 ? cumulativeWeights[i - 1] : 0);
+                builder.append(operations[i]).append('=').append(weight);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BatchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.CacheStats;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.Page;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.SearchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserChangeListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of the JSON encoding of each user, so unchanged users are only
+ * serialized once no matter how often they are read.
+ *
+ * A fragment is keyed by user ID and only served for the version it was encoded
+ * from, so a stale fragment can never be sent even if an invalidation is missed.
+ * Registered as a {@link UserChangeListener}, the cache also drops a user's
+ * fragment as soon as the user changes, which frees its memory right away.
+ *
+ * The cache is bounded by bytes rather than entries. Every fragment joins a FIFO
+ * queue, and when the cache grows past its budget the queue is swept CLOCK-style:
+ * fragments read since the last sweep get a second chance, others are evicted.
+ * Fragments that were replaced or invalidated stay in the queue as empty shells
+ * until the sweep reaches them, and are charged a small overhead until then.
+ */
+public class UserJsonCache implements UserChangeListener {
+
+    // Rough heap cost of an entry besides its bytes: map node, key, fragment and queue node
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private static final byte[] ITEMS = "{\"items\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEXT_CURSOR = ",\"nextCursor\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LIMIT = ",\"limit\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HAS_MORE = ",\"hasMore\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUERY = "{\"query\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEARCH_ITEMS = ",\"items\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUNCATED = ",\"truncated\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MISSING = ",\"missing\":[".getBytes(StandardCharsets.US_ASCII);
+
+    private final long maxBytes;
+    private final ConcurrentMap<Long, Fragment> fragments = new ConcurrentHashMap<>();
+    private final Queue<Fragment> clock = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes heap budget of the cache; 0 disables caching, so every
+     *                 fragment is encoded on demand
+     */
+    public UserJsonCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the JSON encoding of the user, from the cache when it holds the
+     * user's current version.
+     */
+    public byte[] fragmentOf(User user) throws IOException {
+        Fragment cached = fragments.get(user.getId());
+        if (cached != null && cached.version == user.getVersion()) {
+            byte[] json = cached.json;
+            if (json != null) {
+                cached.referenced = true;
+                hits.increment();
+                return json;
+            }
+        }
+
+        misses.increment();
+        byte[] json = JsonWriter.encode(user);
+        long weight = ENTRY_OVERHEAD_BYTES + json.length;
+        // Fragments above an eighth of the budget would evict too much to be worth it
+        if (weight * 8 > maxBytes) {
+            return json;
+        }
+
+        Fragment fragment = new Fragment(user.getId(), user.getVersion(), json);
+        bytes.addAndGet(weight);
+        clock.offer(fragment);
+        release(fragments.put(user.getId(), fragment));
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+        return json;
+    }
+
+    public void writeUser(JsonWriter out, User user) throws IOException {
+        out.write(fragmentOf(user));
+    }
+
+    /**
+     * Writes a user, or only the properties of a projection. Projected users are
+     * encoded on the fly and never cached.
+     * @param projection the properties to write, or null for the whole user
+     */
+    public void writeUser(JsonWriter out, User user, UserProjection projection) throws IOException {
+        if (projection != null) {
+            projection.write(out, user);
+        } else {
+            out.write(fragmentOf(user));
+        }
+    }
+
+    public void writeUsers(JsonWriter out, List<User> users) throws IOException {
+        writeUsers(out, users, null);
+    }
+
+    public void writeUsers(JsonWriter out, List<User> users, UserProjection projection) throws IOException {
+        out.write('[');
+        for (int i = 0; i < users.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeUser(out, users.get(i), projection);
+        }
+        out.write(']');
+    }
+
+    public void writePage(JsonWriter out, Page<User> page) throws IOException {
+        writePage(out, page, null);
+    }
+
+    /**
+     * Writes a page of users, matching the way Jackson serializes {@link Page}.
+     */
+    public void writePage(JsonWriter out, Page<User> page, UserProjection projection) throws IOException {
+        out.write(ITEMS);
+        writeUsers(out, page.getItems(), projection);
+        out.write(NEXT_CURSOR);
+        out.writeString(page.getNextCursor());
+        out.write(LIMIT);
+        out.writeLong(page.getLimit());
+        out.write(HAS_MORE);
+        out.writeBoolean(page.isHasMore());
+        out.write('}');
+    }
+
+    public void writeSearchResult(JsonWriter out, SearchResult<User> result) throws IOException {
+        writeSearchResult(out, result, null);
+    }
+
+    /**
+     * Writes search results, matching the way Jackson serializes {@link SearchResult}.
+     */
+    public void writeSearchResult(JsonWriter out, SearchResult<User> result, UserProjection projection) 
+            throws IOException {
+        out.write(QUERY);
+        out.writeString(result.getQuery());
+        out.write(SEARCH_ITEMS);
+        writeUsers(out, result.getItems(), projection);
+        out.write(LIMIT);
+        out.writeLong(result.getLimit());
+        out.write(TRUNCATED);
+        out.writeBoolean(result.isTruncated());
+        out.write('}');
+    }
+
+    /**
+     * Writes a batch of users, matching the way Jackson serializes {@link BatchResult}.
+     */
+    public void writeBatchResult(JsonWriter out, BatchResult<User> result, UserProjection projection) 
+            throws IOException {
+        out.write(ITEMS);
+        writeUsers(out, result.getItems(), projection);
+        out.write(MISSING);
+        List<Long> missing = result.getMissing();
+        for (int i = 0; i < missing.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.writeLong(missing.get(i));
+        }
+        out.write(']');
+        out.write('}');
+    }
+
+    /**
+     * Drops the fragment of a user that was just written.
+     */
+    @Override
+    public void onChange(Long id, User previous, User user) {
+        release(fragments.remove(id));
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(fragments.size(), bytes.get(), maxBytes,
+                hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    /**
+     * Frees the bytes of a fragment that left the map. Its shell stays queued, and
+     * is charged until the sweep reaches it.
+     */
+    private void release(Fragment fragment) {
+        if (fragment != null) {
+            byte[] json = Fragment.JSON.getAndSet(fragment, null);
+            if (json != null) {
+                bytes.addAndGet(-json.length);
+            }
+        }
+    }
+
+    private void evict() {
+        // One sweeper at a time is enough; others carry on serving
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            // Two laps clear every second chance, so the sweep ends even under heavy reads
+            long budget = 2L * fragments.size() + 16;
+            while (bytes.get() > maxBytes && budget-- > 0) {
+                Fragment fragment = clock.poll();
+                if (fragment == null) {
+                    break;
+                }
+                if (fragment.json != null && fragment.referenced) {
+                    fragment.referenced = false;
+                    clock.offer(fragment);
+                    continue;
+                }
+                if (fragments.remove(fragment.id, fragment)) {
+                    evictions.increment();
+                }
+                release(fragment);
+                bytes.addAndGet(-ENTRY_OVERHEAD_BYTES);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Fragment {
+        private static final AtomicReferenceFieldUpdater<Fragment, byte[]> JSON =
+                AtomicReferenceFieldUpdater.newUpdater(Fragment.class, byte[].class, "json");
+
+        private final Long id;
+        private final long version;
+        private volatile byte[] json;
+        private volatile boolean referenced;
+
+        private Fragment(Long id, long version, byte[] json) {
+            this.id = id;
+            this.version = version;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A sparse fieldset of {@link User}: the properties a client asked for with
+ * {@code ?fields=}, written as JSON without touching the others.
+ *
+ * A projection is compiled once per set of fields into the pre-encoded name of
+ * each property it writes, so writing a user is a run of byte copies and value
+ * encodings. Projections are interned by field set, so {@code name,id} and
+ * {@code id,name} share one, and the parameter values seen so far map straight
+ * to their projection. Properties are always written in the order Jackson
+ * writes a full user, whatever order they were asked for in.
+ */
+public final class UserProjection {
+
+    private static final String[] FIELDS = {"id", "name", "email", "age", "version"};
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int EMAIL = 2;
+    private static final int AGE = 3;
+    private static final int VERSION = 4;
+    private static final int ALL_FIELDS = (1 << FIELDS.length) - 1;
+
+    // Parameter values are client input; the cap keeps odd spellings from piling up
+    private static final int MAX_CACHED_VALUES = 256;
+    private static final ConcurrentMap<String, UserProjection> byValue = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<UserProjection> byFieldSet = new AtomicReferenceArray<>(ALL_FIELDS + 1);
+
+    private final int fieldSet;
+    private final int[] fields;
+    private final byte[][] prefixes;
+
+    private UserProjection(int fieldSet) {
+        this.fieldSet = fieldSet;
+        this.fields = new int[Integer.bitCount(fieldSet)];
+        this.prefixes = new byte[fields.length][];
+        int index = 0;
+        for (int field = 0; field < FIELDS.length; field++) {
+            if ((fieldSet & (1 << field)) != 0) {
+                fields[index] = field;
+                prefixes[index] = ((index == 0 ? "{\"" : ",\"") + FIELDS[field] + "\":")
+                        .getBytes(StandardCharsets.US_ASCII);
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Returns the projection for a {@code fields} parameter, a comma-separated
+     * list of User properties.
+     * @return the projection, or null if the parameter is absent or names every
+     *         property, since the full user is written from the cache
+     * @throws InvalidDataException if the list is empty or names an unknown property
+     */
+    public static UserProjection of(String value) throws InvalidDataException {
+        if (value == null) {
+            return null;
+        }
+        UserProjection projection = byValue.get(value);
+        if (projection == null) {
+            projection = compile(value);
+            if (byValue.size() < MAX_CACHED_VALUES) {
+                byValue.putIfAbsent(value, projection);
+            }
+        }
+        return projection.fieldSet == ALL_FIELDS ? null : projection;
+    }
+
+    /**
+     * Writes the chosen properties of a user as a JSON object, the same bytes
+     * Jackson would produce for those properties.
+     */
+    public void write(JsonWriter out, User user) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            out.writeRaw(prefixes[i]);
+            switch (fields[i]) {
+                case ID:
+                    out.writeLong(user.getId());
+                    break;
+                case NAME:
+                    out.writeString(user.getName());
+                    break;
+                case EMAIL:
+                    out.writeString(user.getEmail());
+                    break;
+                case AGE:
+                    out.writeLong(user.getAge());
+                    break;
+                case VERSION:
+                    out.writeLong(user.getVersion());
+                    break;
+            }
+        }
+        out.write('}');
+    }
+
+    private static UserProjection compile(String value) throws InvalidDataException {
+        int fieldSet = 0;
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                // Tolerates stray commas, as in "id,,name" or "id,"
+                continue;
+            }
+            int field = indexOf(name);
+            if (field < 0) {
+                throw new InvalidDataException("Unknown field: " + name);
+            }
+            fieldSet |= 1 << field;
+        }
+        if (fieldSet == 0) {
+            throw new InvalidDataException("The fields parameter must name at least one field");
+        }
+        UserProjection projection = byFieldSet.get(fieldSet);
+        if (projection == null) {
+            byFieldSet.compareAndSet(fieldSet, null, new UserProjection(fieldSet));
+            projection = byFieldSet.get(fieldSet);
+        }
+        return projection;
+    }
+
+    private static int indexOf(String name) {
+        for (int field = 0; field < FIELDS.length; field++) {
+            if (FIELDS[field].equals(name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,161 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes.UserChangeFeed.ChangeEvent;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One client of the {@link UserChangeFeed}, streaming events to an asynchronous
+ * response with non-blocking writes.
+ *
+ * The subscriber only writes while the container reports the stream as ready.
+ * Once the client stops reading and the socket buffer fills up, writing pauses
+ * until the container calls {@link #onWritePossible()}, and the events it has
+ * not sent yet simply stay in the feed's ring. Draining is triggered both by the
+ * container and by the feed's dispatcher, so it is serialized on the subscriber.
+ */
+final class ChangeStreamSubscriber implements WriteListener, AsyncListener {
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final UserChangeFeed feed;
+    private final AsyncContext asyncContext;
+    private ServletOutputStream out;
+    private long next;
+    private byte[] greeting;
+    private boolean heartbeatDue;
+    private boolean closed;
+
+    /**
+     * @param next sequence of the first event to send
+     * @param greeting frame to send before any event
+     */
+    ChangeStreamSubscriber(UserChangeFeed feed, AsyncContext asyncContext, long next, byte[] greeting) {
+        this.feed = feed;
+        this.asyncContext = asyncContext;
+        this.next = next;
+        this.greeting = greeting;
+    }
+
+    synchronized void start() throws IOException {
+        asyncContext.addListener(this);
+        ServletOutputStream stream = asyncContext.getResponse().getOutputStream();
+        // The container calls onWritePossible() as soon as the stream is ready
+        stream.setWriteListener(this);
+        out = stream;
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain(false);
+    }
+
+    /**
+     * Writes as many pending events as the stream takes without blocking, then
+     * flushes them. A subscriber that lags too far behind is disconnected, even
+     * while its stream is blocked.
+     * @param heartbeat whether to send a heartbeat if there is nothing else to send
+     */
+    void drain(boolean heartbeat) {
+        boolean lagged;
+        synchronized (this) {
+            if (closed || out == null) {
+                return;
+            }
+            heartbeatDue |= heartbeat;
+            try {
+                if (feed.eventAt(next) != ChangeEvent.OVERWRITTEN && write()) {
+                    return;
+                }
+                lagged = true;
+            } catch (IOException e) {
+                // The client is gone; the container reports it through onError too
+                lagged = false;
+            }
+        }
+        if (lagged) {
+            feed.lagged(this);
+        }
+        close();
+    }
+
+    /**
+     * @return false if the subscriber fell behind while writing
+     */
+    private boolean write() throws IOException {
+        boolean flushNeeded = false;
+        while (out.isReady()) {
+            byte[] frame;
+            if (greeting != null) {
+                frame = greeting;
+                greeting = null;
+            } else {
+                ChangeEvent event = feed.eventAt(next);
+                if (event == ChangeEvent.OVERWRITTEN) {
+                    return false;
+                } else if (event != null) {
+                    frame = event.frame(feed.getEpoch());
+                    next++;
+                } else if (heartbeatDue) {
+                    frame = HEARTBEAT;
+                } else if (flushNeeded) {
+                    flushNeeded = false;
+                    out.flush();
+                    continue;
+                } else {
+                    return true;
+                }
+            }
+            out.write(frame);
+            heartbeatDue = false;
+            flushNeeded = true;
+        }
+        return true;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        feed.unsubscribe(this);
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // The request already completed
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
@@ -0,0 +1,292 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserChangeListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonWriter;
+
+import jakarta.servlet.AsyncContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory feed of user changes, streamed to clients as Server-Sent Events.
+ *
+ * Registered as a {@link UserChangeListener}, the feed numbers every create,
+ * update and delete with a sequence and stores it in a ring buffer of fixed
+ * capacity. The listener runs inside the repository's per-user write, so the
+ * changes of one user are numbered in the order they were made. Recording an
+ * event only takes a sequence and a slot; the JSON of an event is encoded once,
+ * when the first subscriber sends it, and shared by all others.
+ *
+ * Each subscriber reads the ring at its own pace from a non-blocking response
+ * stream, so a slow client never holds up the writers or other clients, and
+ * costs no memory beyond the shared ring. A subscriber that falls a whole ring
+ * behind is disconnected, since the events it has yet to send are being
+ * overwritten. A client may reconnect with Last-Event-ID and catch up from the
+ * ring, or is told to reset if the events it missed are already gone.
+ *
+ * Event IDs carry an epoch besides the sequence, since sequences start over
+ * whenever the feed does and an ID from an earlier run must not be mistaken
+ * for a position in this one.
+ */
+public class UserChangeFeed implements UserChangeListener {
+
+    static final String CREATED = "created";
+    static final String UPDATED = "updated";
+    static final String DELETED = "deleted";
+
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicReferenceArray<ChangeEvent> ring;
+    private final int capacity;
+    private final int mask;
+    private final int maxSubscribers;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<ChangeStreamSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder lagDisconnects = new LongAdder();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity events kept for resuming clients, rounded up to a power of two
+     * @param maxSubscribers open streams allowed at once
+     */
+    public UserChangeFeed(int capacity, int maxSubscribers) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(this.capacity);
+        this.mask = this.capacity - 1;
+        this.maxSubscribers = maxSubscribers;
+        this.dispatcher = new Thread(this::dispatch, "user-change-feed");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public void onChange(Long id, User previous, User user) {
+        String type = user == null ? DELETED : previous == null ? CREATED : UPDATED;
+        long seq = sequence.incrementAndGet();
+        ChangeEvent event = new ChangeEvent(seq, type, id, user);
+        int slot = (int) (seq & mask);
+        // A writer that stalled for a whole lap must not overwrite a newer event
+        ChangeEvent current;
+        do {
+            current = ring.get(slot);
+        } while ((current == null || current.sequence < seq) && !ring.compareAndSet(slot, current, event));
+        if (!subscribers.isEmpty()) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * Starts streaming changes on an asynchronous request whose response headers
+     * are already set.
+     * @param lastEventId the ID of the last event the client saw, or null for a
+     *                    client that only wants changes made from now on
+     * @return false if the feed already serves as many subscribers as it allows
+     */
+    public boolean subscribe(AsyncContext asyncContext, String lastEventId) throws IOException {
+        if (!running || subscribers.size() >= maxSubscribers) {
+            return false;
+        }
+        long head = sequence.get();
+        long resumeFrom = resumePosition(lastEventId, head);
+        byte[] greeting;
+        if (resumeFrom > 0) {
+            greeting = ChangeEvent.RETRY;
+        } else {
+            // Nothing to resume from: the client starts at the head, and is told
+            // to reload everything if it had seen events it can no longer get
+            greeting = controlFrame(lastEventId == null ? "ready" : "reset", head);
+            resumeFrom = head + 1;
+        }
+        ChangeStreamSubscriber subscriber = new ChangeStreamSubscriber(this, asyncContext, resumeFrom, greeting);
+        subscribers.add(subscriber);
+        subscriber.start();
+        return true;
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        for (ChangeStreamSubscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    public long getLagDisconnects() {
+        return lagDisconnects.sum();
+    }
+
+    /**
+     * Returns the event with the given sequence, null if it has not been
+     * published yet, or {@link ChangeEvent#OVERWRITTEN} if it is gone from the
+     * ring or about to be.
+     */
+    ChangeEvent eventAt(long seq) {
+        if (sequence.get() - seq >= capacity) {
+            return ChangeEvent.OVERWRITTEN;
+        }
+        ChangeEvent event = ring.get((int) (seq & mask));
+        if (event == null || event.sequence < seq) {
+            return null;
+        }
+        return event.sequence == seq ? event : ChangeEvent.OVERWRITTEN;
+    }
+
+    String getEpoch() {
+        return epoch;
+    }
+
+    void lagged(ChangeStreamSubscriber subscriber) {
+        lagDisconnects.increment();
+        unsubscribe(subscriber);
+    }
+
+    void unsubscribe(ChangeStreamSubscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Returns the sequence to resume streaming from, or 0 if the client cannot
+     * resume: it sent no ID, an ID of another epoch, or one the ring no longer
+     * reaches back to.
+     */
+    private long resumePosition(String lastEventId, long head) {
+        if (lastEventId == null) {
+            return 0;
+        }
+        String id = lastEventId.trim();
+        int dash = id.indexOf('-');
+        if (dash <= 0 || !id.regionMatches(0, epoch, 0, dash) || dash != epoch.length()) {
+            return 0;
+        }
+        long seen;
+        try {
+            seen = Long.parseLong(id, dash + 1, id.length(), 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (seen < 0 || seen > head || head - seen >= capacity) {
+            return 0;
+        }
+        return seen + 1;
+    }
+
+    private byte[] controlFrame(String name, long seq) {
+        String frame = "retry: " + ChangeEvent.RETRY_MILLIS + "\nevent: " + name + "\nid: " + epoch + "-" + seq
+                + "\ndata: {\"sequence\":" + seq + "}\n\n";
+        return frame.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Wakes subscribers when events were published and sends heartbeats to idle
+     * ones, which keeps proxies from closing the connection and finds clients
+     * that went away without closing theirs.
+     *
+     * An event counts as published once its writer stored it, not when it took
+     * its sequence. Each writer unparks the dispatcher after storing, so an event
+     * that was still missing on one pass is picked up on the next.
+     */
+    private void dispatch() {
+        long published = 0;
+        long nextHeartbeat = System.nanoTime() + HEARTBEAT_NANOS;
+        while (running) {
+            long now = System.nanoTime();
+            boolean heartbeat = now - nextHeartbeat >= 0;
+            long stored = storedUpTo(published);
+            if (stored != published || heartbeat) {
+                published = stored;
+                for (ChangeStreamSubscriber subscriber : subscribers) {
+                    subscriber.drain(heartbeat);
+                }
+                if (heartbeat) {
+                    nextHeartbeat = now + HEARTBEAT_NANOS;
+                }
+                continue;
+            }
+            LockSupport.parkNanos(this, nextHeartbeat - now);
+        }
+    }
+
+    /**
+     * Returns the highest sequence up to which every event is in the ring,
+     * looking on from the given one.
+     */
+    private long storedUpTo(long from) {
+        long head = sequence.get();
+        // Anything a whole ring behind the head is overwritten, stored or not
+        long seq = Math.max(from, head - capacity);
+        while (seq < head) {
+            ChangeEvent event = ring.get((int) ((seq + 1) & mask));
+            if (event == null || event.sequence <= seq) {
+                break;
+            }
+            seq++;
+        }
+        return seq;
+    }
+
+    /**
+     * One change, as recorded in the ring.
+     */
+    static final class ChangeEvent {
+        static final long RETRY_MILLIS = 3000;
+        static final byte[] RETRY = ("retry: " + RETRY_MILLIS + "\n\n").getBytes(StandardCharsets.US_ASCII);
+        static final ChangeEvent OVERWRITTEN = new ChangeEvent(-1, null, null, null);
+
+        final long sequence;
+        private final String type;
+        private final Long id;
+        private final User user;
+        private volatile byte[] frame;
+
+        private ChangeEvent(long sequence, String type, Long id, User user) {
+            this.sequence = sequence;
+            this.type = type;
+            this.id = id;
+            this.user = user;
+        }
+
+        /**
+         * Returns the event as an SSE frame. Racing subscribers may both encode
+         * it; either result is the same.
+         */
+        byte[] frame(String epoch) throws IOException {
+            byte[] encoded = frame;
+            if (encoded == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+                out.write(("id: " + epoch + "-" + sequence + "\ndata: {\"sequence\":" + sequence
+                        + ",\"type\":\"" + type + "\",\"id\":" + id + ",\"user\":")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.write(user != null ? JsonWriter.encode(user)
+                        : "null".getBytes(StandardCharsets.US_ASCII));
+                out.write("}\n\n".getBytes(StandardCharsets.US_ASCII));
+                encoded = out.toByteArray();
+                frame = encoded;
+            }
+            return encoded;
+        }
+    }
+}
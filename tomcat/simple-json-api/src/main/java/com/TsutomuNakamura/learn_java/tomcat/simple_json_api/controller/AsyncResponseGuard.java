@@ -0,0 +1,300 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.controller;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The response an asynchronous handler writes to, guarding the request against
+ * being answered twice.
+ *
+ * Exactly one party finishes the request: the handler when it is done, or the
+ * timeout or an error while the handler is still queued or running. Once the
+ * request is finished, everything the handler still sets or writes is dropped,
+ * because the container recycles the response for another request after the
+ * AsyncContext completes.
+ *
+ * Only the started and finished flags change under the guard's lock; the
+ * handler's calls on the response run outside it, so a write blocked on a slow
+ * client never holds up the timeout. Each call counts itself in before it checks
+ * the finished flag, and a finish that sees a call in progress leaves the
+ * response alone rather than interleave an error with it. It still completes the
+ * request at once, and the stuck write fails once the container discards the
+ * response.
+ */
+final class AsyncResponseGuard extends HttpServletResponseWrapper {
+
+    private boolean started;
+    private volatile boolean finished;
+    private final AtomicInteger activeCalls = new AtomicInteger();
+    // Only the handler thread asks for these
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    AsyncResponseGuard(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Called by the handler before it does anything.
+     * @return false if the request was already finished while the handler was queued
+     */
+    synchronized boolean start() {
+        if (finished) {
+            return false;
+        }
+        started = true;
+        return true;
+    }
+
+    /**
+     * @return whether the handler started, so a write it makes may already be applied
+     */
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Finishes the request without writing to the response.
+     * @see #finish(Runnable, Runnable)
+     */
+    boolean finish(Runnable complete) {
+        return finish(() -> { }, complete);
+    }
+
+    /**
+     * Finishes the request, unless it is already finished. Neither action runs
+     * under the lock, and neither waits for a handler call in progress.
+     * @param respond writes to the wrapped response; skipped if a handler call is in progress
+     * @param complete completes the AsyncContext
+     * @return false if the request was already finished
+     */
+    boolean finish(Runnable respond, Runnable complete) {
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            finished = true;
+        }
+        if (activeCalls.get() == 0) {
+            respond.run();
+        }
+        complete.run();
+        return true;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new GuardedOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new GuardedWriter(super.getWriter()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        guarded(() -> super.setStatus(sc));
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        guardedIO(() -> super.sendError(sc, msg));
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        guardedIO(() -> super.sendError(sc));
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        guardedIO(() -> super.sendRedirect(location));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        guarded(() -> super.setHeader(name, value));
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        guarded(() -> super.addHeader(name, value));
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        guarded(() -> super.setIntHeader(name, value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        guarded(() -> super.addIntHeader(name, value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        guarded(() -> super.setDateHeader(name, date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        guarded(() -> super.addDateHeader(name, date));
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        guarded(() -> super.addCookie(cookie));
+    }
+
+    @Override
+    public void setContentType(String type) {
+        guarded(() -> super.setContentType(type));
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        guarded(() -> super.setCharacterEncoding(charset));
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        guarded(() -> super.setContentLength(len));
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        guarded(() -> super.setContentLengthLong(len));
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        guarded(() -> super.setLocale(loc));
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        guarded(() -> super.setBufferSize(size));
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        guardedIO(() -> super.flushBuffer());
+    }
+
+    @Override
+    public void resetBuffer() {
+        guarded(() -> super.resetBuffer());
+    }
+
+    @Override
+    public void reset() {
+        guarded(() -> super.reset());
+    }
+
+    /**
+     * Runs a handler call on the response, unless the request is already finished.
+     */
+    private void guarded(Runnable call) {
+        activeCalls.incrementAndGet();
+        try {
+            if (!finished) {
+                call.run();
+            }
+        } finally {
+            activeCalls.decrementAndGet();
+        }
+    }
+
+    private void guardedIO(IOCall call) throws IOException {
+        activeCalls.incrementAndGet();
+        try {
+            if (!finished) {
+                call.run();
+            }
+        } finally {
+            activeCalls.decrementAndGet();
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOCall {
+        void run() throws IOException;
+    }
+
+    private final class GuardedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream target;
+
+        GuardedOutputStream(ServletOutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            guardedIO(() -> target.write(b));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            guardedIO(() -> target.write(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            guardedIO(() -> target.flush());
+        }
+
+        @Override
+        public void close() throws IOException {
+            guardedIO(() -> target.close());
+        }
+
+        @Override
+        public boolean isReady() {
+            return target.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            target.setWriteListener(writeListener);
+        }
+    }
+
+    private final class GuardedWriter extends Writer {
+        private final Writer target;
+
+        GuardedWriter(Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            guardedIO(() -> target.write(cbuf, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            guardedIO(() -> target.flush());
+        }
+
+        @Override
+        public void close() throws IOException {
+            guardedIO(() -> target.close());
+        }
+    }
+}
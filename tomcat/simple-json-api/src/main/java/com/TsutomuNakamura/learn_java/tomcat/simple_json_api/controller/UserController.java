@@ -1,28 +1,275 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.controller;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache.UserJsonCache;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.cache.UserProjection;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes.UserChangeFeed;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserPatch;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserQuery;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BatchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BulkImportResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.CacheStats;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.Page;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.SearchResult;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.service.UserService;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.UserNotFoundException;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.PayloadTooLargeException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.VersionConflictException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.BinaryResponseUtil;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.ContextConfigUtil;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.ETagUtil;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JsonResponseUtil;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.LimitedInputStream;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.RequestExecutorUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
-@WebServlet("/api/users/*")
+@WebServlet(value = "/api/users/*", asyncSupported = true)
 public class UserController extends HttpServlet {
     
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Request body limits, overridable through context-params in web.xml
+    public static final String MAX_REQUEST_BYTES_PARAM = "users.max-request-bytes";
+    public static final String MAX_NESTING_DEPTH_PARAM = "users.max-nesting-depth";
+    private static final long DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+    private static final int DEFAULT_MAX_NESTING_DEPTH = 32;
+    
+    // Asynchronous processing, overridable through context-params in web.xml
+    public static final String ASYNC_ENABLED_PARAM = "users.async.enabled";
+    public static final String ASYNC_EXECUTOR_PARAM = "users.async.executor";
+    public static final String ASYNC_POOL_SIZE_PARAM = "users.async.pool-size";
+    public static final String ASYNC_QUEUE_CAPACITY_PARAM = "users.async.queue-capacity";
+    public static final String ASYNC_TIMEOUT_PARAM = "users.async.timeout-ms";
+    private static final int DEFAULT_ASYNC_POOL_SIZE = 64;
+    private static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1024;
+    private static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 30000;
+    private static final int EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS = 5;
+    
+    // Heap budget for pre-encoded user JSON; 0 encodes every response from scratch
+    public static final String JSON_CACHE_MAX_BYTES_PARAM = "users.json-cache.max-bytes";
+    private static final long DEFAULT_JSON_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String[] CACHE_METRICS = {
+        "users_json_cache_hits_total", "users_json_cache_misses_total", "users_json_cache_evictions_total",
+        "users_json_cache_hit_ratio", "users_json_cache_entries", "users_json_cache_bytes"
+    };
+    
+    // Change feed: events kept for resuming clients, and open streams allowed at once
+    public static final String CHANGES_BUFFER_SIZE_PARAM = "users.changes.buffer-size";
+    public static final String CHANGES_MAX_SUBSCRIBERS_PARAM = "users.changes.max-subscribers";
+    private static final int DEFAULT_CHANGES_BUFFER_SIZE = 8192;
+    private static final int DEFAULT_CHANGES_MAX_SUBSCRIBERS = 1024;
+    private static final String[] CHANGES_METRICS = {
+        "users_changes_subscribers", "users_changes_sequence", "users_changes_lag_disconnects_total"
+    };
+    
+    // Most users one GET /api/users?ids= may fetch, overridable through a context-param in web.xml
+    public static final String MULTI_GET_MAX_IDS_PARAM = "users.multi-get.max-ids";
+    private static final int DEFAULT_MULTI_GET_MAX_IDS = 100;
+    
+    private static final String BULK_PATH = "/_bulk";
+    private static final String SEARCH_PATH = "/_search";
+    private static final String CACHE_STATS_PATH = "/_cache";
+    private static final String CHANGES_PATH = "/_changes";
+    private static final String SUCCESS_MESSAGE = "Success";
+    private static final String PATCH_METHOD = "PATCH";
+    private static final String RETURN_MINIMAL = "return=minimal";
+    private static final int BULK_BATCH_SIZE = 1000;
+    
     private final UserService userService = new UserService();
+    private ObjectMapper objectMapper;
+    private long maxRequestBytes;
+    private int maxMultiGetIds;
+    private ExecutorService requestExecutor;
+    private long asyncTimeoutMillis;
+    private UserJsonCache userJsonCache;
+    private UserChangeFeed userChangeFeed;
+    
+    @Override
+    public void init() throws ServletException {
+        ServletContext context = getServletContext();
+        maxRequestBytes = ContextConfigUtil.getLong(context, MAX_REQUEST_BYTES_PARAM, DEFAULT_MAX_REQUEST_BYTES);
+        int maxNestingDepth = ContextConfigUtil.getInt(context, MAX_NESTING_DEPTH_PARAM, DEFAULT_MAX_NESTING_DEPTH);
+        maxMultiGetIds = ContextConfigUtil.getInt(context, MULTI_GET_MAX_IDS_PARAM, DEFAULT_MULTI_GET_MAX_IDS);
+        
+        JsonFactory jsonFactory = JsonFactory.builder()
+                .streamReadConstraints(StreamReadConstraints.builder()
+                        .maxNestingDepth(maxNestingDepth)
+                        .build())
+                // The container owns the request stream
+                .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+                .build();
+        objectMapper = JsonMapper.builder(jsonFactory).build();
+        
+        userJsonCache = new UserJsonCache(
+                ContextConfigUtil.getLong(context, JSON_CACHE_MAX_BYTES_PARAM, DEFAULT_JSON_CACHE_MAX_BYTES));
+        userService.addChangeListener(userJsonCache);
+        registerCacheMetrics(userJsonCache);
+        
+        userChangeFeed = new UserChangeFeed(
+                ContextConfigUtil.getInt(context, CHANGES_BUFFER_SIZE_PARAM, DEFAULT_CHANGES_BUFFER_SIZE),
+                ContextConfigUtil.getInt(context, CHANGES_MAX_SUBSCRIBERS_PARAM, DEFAULT_CHANGES_MAX_SUBSCRIBERS));
+        userService.addChangeListener(userChangeFeed);
+        registerChangesMetrics(userChangeFeed);
+        
+        if (Boolean.parseBoolean(ContextConfigUtil.getString(context, ASYNC_ENABLED_PARAM, "true"))) {
+            requestExecutor = RequestExecutorUtil.create(
+                    ContextConfigUtil.getString(context, ASYNC_EXECUTOR_PARAM, RequestExecutorUtil.MODE_AUTO),
+                    ContextConfigUtil.getInt(context, ASYNC_POOL_SIZE_PARAM, DEFAULT_ASYNC_POOL_SIZE),
+                    ContextConfigUtil.getInt(context, ASYNC_QUEUE_CAPACITY_PARAM, DEFAULT_ASYNC_QUEUE_CAPACITY),
+                    "user-api-worker-");
+            asyncTimeoutMillis = ContextConfigUtil.getLong(context, ASYNC_TIMEOUT_PARAM, DEFAULT_ASYNC_TIMEOUT_MILLIS);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        for (String metric : CACHE_METRICS) {
+            MetricsRegistry.unregister(metric);
+        }
+        userService.removeChangeListener(userJsonCache);
+        for (String metric : CHANGES_METRICS) {
+            MetricsRegistry.unregister(metric);
+        }
+        userService.removeChangeListener(userChangeFeed);
+        userChangeFeed.close();
+        if (requestExecutor != null) {
+            RequestExecutorUtil.shutdown(requestExecutor, EXECUTOR_SHUTDOWN_TIMEOUT_SECONDS);
+        }
+    }
+    
+    /**
+     * Hands the request to the request executor and frees the container thread.
+     * 
+     * Whichever finishes first, the handler or the timeout, completes the
+     * AsyncContext; the other one backs off, and a handler that lost the race has
+     * whatever it still writes dropped by its {@link AsyncResponseGuard}. A handler
+     * that fails unexpectedly or a request that times out gets the usual
+     * ApiResponse error envelope, as long as nothing has been written yet. A
+     * timeout never waits for a handler stuck writing to a slow client: it
+     * completes the request without an error body instead.
+     * 
+     * A request that times out in the queue never runs, so it is safe to retry and
+     * gets a 503. A write that timed out while running may still be applied, so it
+     * gets a 500 that tells the client to check before retrying instead.
+     * 
+     * The change feed is served on the container thread instead: it only sets up
+     * a stream that the feed then writes to without blocking.
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) 
+            throws ServletException, IOException {
+        if (CHANGES_PATH.equals(request.getPathInfo()) && "GET".equals(request.getMethod())) {
+            handleChanges(request, response);
+            return;
+        }
+        if (requestExecutor == null || request.getDispatcherType() == DispatcherType.ASYNC) {
+            dispatch(request, response);
+            return;
+        }
+        
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(asyncTimeoutMillis);
+        AsyncResponseGuard guard = new AsyncResponseGuard(response);
+        boolean safeMethod = isSafeMethod(request.getMethod());
+        
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                guard.finish(() -> {
+                    if (safeMethod || !guard.isStarted()) {
+                        sendAsyncError(response, "Request timed out", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    } else {
+                        sendAsyncError(response, "Request timed out and may still be applied; check before retrying", 
+                                HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                }, asyncContext::complete);
+            }
+            
+            @Override
+            public void onError(AsyncEvent event) {
+                guard.finish(asyncContext::complete);
+            }
+            
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+            
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        
+        try {
+            requestExecutor.execute(() -> {
+                if (!guard.start()) {
+                    return;
+                }
+                try {
+                    dispatch(request, guard);
+                } catch (Exception e) {
+                    sendAsyncError(guard, "Internal server error", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } finally {
+                    guard.finish(() -> closeResponse(response), asyncContext::complete);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            guard.finish(() -> sendAsyncError(response, "Server is busy, please retry later", 
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE), asyncContext::complete);
+        }
+    }
+    
+    /**
+     * @return whether the method only reads, so a request that timed out can simply be retried
+     */
+    private static boolean isSafeMethod(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+    
+    /**
+     * HttpServlet knows nothing of PATCH, so it is routed here; every other method
+     * goes through the usual dispatch.
+     */
+    private void dispatch(HttpServletRequest request, HttpServletResponse response) 
+            throws ServletException, IOException {
+        if (PATCH_METHOD.equals(request.getMethod())) {
+            doPatch(request, response);
+        } else {
+            super.service(request, response);
+        }
+    }
     
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) 
@@ -31,47 +278,214 @@ public class UserController extends HttpServlet {
         String pathInfo = request.getPathInfo();
         
         try {
+            UserProjection projection = UserProjection.of(request.getParameter("fields"));
             if (pathInfo == null || pathInfo.equals("/")) {
-                // Get all users
-                List<User> users = userService.getAllUsers();
-                ApiResponse<List<User>> apiResponse = ApiResponse.success(users);
+                handleCollectionGet(request, response, projection);
+            } else if (SEARCH_PATH.equals(pathInfo)) {
+                handleSearch(request, response, projection);
+            } else if (CACHE_STATS_PATH.equals(pathInfo)) {
+                ApiResponse<CacheStats> apiResponse = ApiResponse.success(userJsonCache.getStats());
                 JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
             } else {
                 // Get specific user by ID
                 Long userId = parseUserIdFromPath(pathInfo);
                 User user = userService.getUserById(userId);
-                ApiResponse<User> apiResponse = ApiResponse.success(user);
-                JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
+                if (ETagUtil.handleConditionalGet(request, response, ETagUtil.forUser(user.getId(), user.getVersion()))) {
+                    return;
+                }
+                sendUserData(request, response, user, out -> userJsonCache.writeUser(out, user, projection));
             }
         } catch (UserNotFoundException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_NOT_FOUND);
+            sendNotFound(request, response, e);
         } catch (InvalidDataException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
         } catch (Exception e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("Internal server error");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            JsonResponseUtil.sendFixedErrorResponse(response, "Internal server error", 
+                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+    
+    /**
+     * Streams user changes as Server-Sent Events. A client resumes after the event
+     * in its Last-Event-ID header, or the {@code lastEventId} parameter for
+     * clients that cannot set headers; without either, it only gets changes made
+     * from now on.
+     */
+    private void handleChanges(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = request.getParameter("lastEventId");
+        }
+        
+        JsonResponseUtil.setCorsHeaders(response);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+        if (!userChangeFeed.subscribe(asyncContext, lastEventId)) {
+            response.reset();
+            JsonResponseUtil.sendFixedErrorResponse(response, "Too many change feed subscribers, please retry later", 
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
         }
     }
     
+    /**
+     * @param projection the user properties to write, from {@code ?fields=}, or
+     *                   null for whole users; the binary format always has them all
+     */
+    private void handleCollectionGet(HttpServletRequest request, HttpServletResponse response, 
+            UserProjection projection) throws IOException, UserNotFoundException, InvalidDataException {
+        String ids = request.getParameter("ids");
+        if (ids != null) {
+            handleMultiGet(request, response, ids, projection);
+            return;
+        }
+        
+        String email = request.getParameter("email");
+        if (email != null) {
+            // Look up a single user through the email index
+            User user = userService.getUserByEmail(email);
+            if (ETagUtil.handleConditionalGet(request, response, ETagUtil.forUser(user.getId(), user.getVersion()))) {
+                return;
+            }
+            sendUserData(request, response, user, out -> userJsonCache.writeUser(out, user, projection));
+            return;
+        }
+        
+        // Read the version before any data, so the tag is never newer than the body
+        String etag = ETagUtil.forCollection(userService.getVersion());
+        if (ETagUtil.handleConditionalGet(request, response, etag)) {
+            return;
+        }
+        
+        // Filters are optional; without any, every user matches
+        String namePrefix = request.getParameter("namePrefix");
+        UserQuery query = new UserQuery(parseIntParameter(request, "minAge"), parseIntParameter(request, "maxAge"),
+                namePrefix == null || namePrefix.isEmpty() ? null : namePrefix);
+        
+        if (request.getParameter("limit") != null || request.getParameter("cursor") != null) {
+            // Get one page of users, keyed by the last ID of the previous page
+            Integer limit = parseIntParameter(request, "limit");
+            Page<User> page = userService.getUsersPage(query, request.getParameter("cursor"), limit);
+            sendUserData(request, response, page, out -> userJsonCache.writePage(out, page, projection));
+        } else {
+            // Get all users, or all users matching the filters
+            List<User> users = query.hasAgeRange() || query.hasNamePrefix() 
+                    ? userService.findUsers(query) : userService.getAllUsers();
+            sendUserData(request, response, users, out -> userJsonCache.writeUsers(out, users, projection));
+        }
+    }
+    
+    /**
+     * Looks up every user in {@code ?ids=1,2,3} at once, so a client that needs a
+     * handful of users makes one request instead of one per user. Users come back
+     * in the order asked for; IDs with no user are listed as missing.
+     */
+    private void handleMultiGet(HttpServletRequest request, HttpServletResponse response, String ids, 
+            UserProjection projection) throws IOException, InvalidDataException {
+        List<Long> userIds = parseIdsParameter(ids);
+        
+        // The batch changes whenever one of its users does, so the collection tag covers it
+        String etag = ETagUtil.forCollection(userService.getVersion());
+        if (ETagUtil.handleConditionalGet(request, response, etag)) {
+            return;
+        }
+        
+        BatchResult<User> result = userService.getUsersByIds(userIds);
+        sendUserData(request, response, result, out -> userJsonCache.writeBatchResult(out, result, projection));
+    }
+    
+    private void handleSearch(HttpServletRequest request, HttpServletResponse response, 
+            UserProjection projection) throws IOException, InvalidDataException {
+        // Results only change with the data, so the collection tag covers them too
+        String etag = ETagUtil.forCollection(userService.getVersion());
+        if (ETagUtil.handleConditionalGet(request, response, etag)) {
+            return;
+        }
+        
+        SearchResult<User> result = userService.searchUsers(request.getParameter("q"), 
+                parseIntParameter(request, "limit"));
+        sendUserData(request, response, result, out -> userJsonCache.writeSearchResult(out, result, projection));
+    }
+    
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) 
             throws ServletException, IOException {
         
+        if (BULK_PATH.equals(request.getPathInfo())) {
+            handleBulkImport(request, response);
+            return;
+        }
+        
         try {
             User newUser = parseUserFromRequest(request);
             User createdUser = userService.createUser(newUser);
+            response.setHeader("ETag", ETagUtil.forRepresentation(request, 
+                    ETagUtil.forUser(createdUser.getId(), createdUser.getVersion())));
             
             ApiResponse<User> apiResponse = ApiResponse.success("User created successfully", createdUser);
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_CREATED);
+            sendApiResponse(request, response, apiResponse, HttpServletResponse.SC_CREATED);
+        } catch (DuplicateEmailException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_CONFLICT);
         } catch (InvalidDataException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+        } catch (PayloadTooLargeException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), 
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
         } catch (Exception e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("Invalid JSON format or server error");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendFixedErrorResponse(response, "Invalid JSON format or server error", 
+                    HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+    
+    /**
+     * Imports newline-delimited JSON users. Records are parsed one at a time from the
+     * request stream and applied in batches, so memory stays flat however large the
+     * upload is. The request size limit does not apply here; nesting depth still does.
+     */
+    private void handleBulkImport(HttpServletRequest request, HttpServletResponse response) 
+            throws IOException {
+        BulkImportResult result = new BulkImportResult();
+        List<User> batch = new ArrayList<>(BULK_BATCH_SIZE);
+        long[] lines = new long[BULK_BATCH_SIZE];
+        
+        try (JsonParser parser = objectMapper.createParser(request.getInputStream());
+             MappingIterator<User> records = objectMapper.readerFor(User.class).readValues(parser)) {
+            while (true) {
+                try {
+                    if (!records.hasNextValue()) {
+                        break;
+                    }
+                    User user = records.nextValue();
+                    lines[batch.size()] = records.getCurrentLocation().getLineNr();
+                    batch.add(user);
+                } catch (JsonMappingException e) {
+                    // The iterator skips past the bad record, so carry on with the next one
+                    result.recordFailed(lineOf(e), "Invalid user record");
+                    continue;
+                }
+                
+                if (batch.size() == BULK_BATCH_SIZE) {
+                    userService.importUsers(batch, lines, result);
+                    batch.clear();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // Broken JSON cannot be resynchronized; keep everything read up to here
+            result.recordFailed(lineOf(e), "Malformed JSON");
+            result.setAborted(true);
+        }
+        
+        if (!batch.isEmpty()) {
+            userService.importUsers(batch, lines, result);
         }
+        
+        ApiResponse<BulkImportResult> apiResponse = ApiResponse.success("Bulk import completed", result);
+        JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
     }
     
     @Override
@@ -81,27 +495,85 @@ public class UserController extends HttpServlet {
         String pathInfo = request.getPathInfo();
         
         if (pathInfo == null || pathInfo.equals("/")) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("User ID is required for update");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendFixedErrorResponse(response, "User ID is required for update", 
+                    HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
         
         try {
             Long userId = parseUserIdFromPath(pathInfo);
+            long expectedVersion = ETagUtil.expectedUserVersion(request, userId);
             User updatedUser = parseUserFromRequest(request);
             
-            User user = userService.updateUser(userId, updatedUser);
+            User user = userService.updateUser(userId, updatedUser, expectedVersion);
+            response.setHeader("ETag", ETagUtil.forRepresentation(request, 
+                    ETagUtil.forUser(user.getId(), user.getVersion())));
             ApiResponse<User> apiResponse = ApiResponse.success("User updated successfully", user);
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
+            sendApiResponse(request, response, apiResponse, HttpServletResponse.SC_OK);
+        } catch (DuplicateEmailException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_CONFLICT);
+        } catch (VersionConflictException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_PRECONDITION_FAILED);
         } catch (UserNotFoundException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_NOT_FOUND);
+            sendNotFound(request, response, e);
         } catch (InvalidDataException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+        } catch (PayloadTooLargeException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), 
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
         } catch (Exception e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("Invalid JSON format or server error");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendFixedErrorResponse(response, "Invalid JSON format or server error", 
+                    HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+    
+    /**
+     * Applies a JSON Merge Patch (RFC 7396): only the fields present in the body are
+     * parsed, validated and changed. With {@code Prefer: return=minimal} the response
+     * data holds just the ID, the patched fields and the new version.
+     */
+    protected void doPatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String pathInfo = request.getPathInfo();
+        
+        if (pathInfo == null || pathInfo.equals("/")) {
+            JsonResponseUtil.sendFixedErrorResponse(response, "User ID is required for update", 
+                    HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        try {
+            Long userId = parseUserIdFromPath(pathInfo);
+            long expectedVersion = ETagUtil.expectedUserVersion(request, userId);
+            UserPatch patch = parsePatchFromRequest(request);
+            
+            User user = userService.patchUser(userId, patch, expectedVersion);
+            String etag = ETagUtil.forUser(user.getId(), user.getVersion());
+            if (prefersMinimalReturn(request)) {
+                // The minimal form is always JSON
+                response.setHeader("ETag", etag);
+                response.setHeader("Preference-Applied", RETURN_MINIMAL);
+                ApiResponse<Map<String, Object>> apiResponse = 
+                        ApiResponse.success("User updated successfully", patch.changedFieldsOf(user));
+                JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
+            } else {
+                response.setHeader("ETag", ETagUtil.forRepresentation(request, etag));
+                ApiResponse<User> apiResponse = ApiResponse.success("User updated successfully", user);
+                sendApiResponse(request, response, apiResponse, HttpServletResponse.SC_OK);
+            }
+        } catch (DuplicateEmailException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_CONFLICT);
+        } catch (VersionConflictException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_PRECONDITION_FAILED);
+        } catch (UserNotFoundException e) {
+            sendNotFound(request, response, e);
+        } catch (InvalidDataException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+        } catch (PayloadTooLargeException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), 
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        } catch (Exception e) {
+            JsonResponseUtil.sendFixedErrorResponse(response, "Invalid JSON format or server error", 
+                    HttpServletResponse.SC_BAD_REQUEST);
         }
     }
     
@@ -112,26 +584,26 @@ public class UserController extends HttpServlet {
         String pathInfo = request.getPathInfo();
         
         if (pathInfo == null || pathInfo.equals("/")) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("User ID is required for deletion");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendFixedErrorResponse(response, "User ID is required for deletion", 
+                    HttpServletResponse.SC_BAD_REQUEST);
             return;
         }
         
         try {
             Long userId = parseUserIdFromPath(pathInfo);
-            userService.deleteUser(userId);
+            userService.deleteUser(userId, ETagUtil.expectedUserVersion(request, userId));
             
             ApiResponse<Object> apiResponse = ApiResponse.success("User deleted successfully", null);
             JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_OK);
+        } catch (VersionConflictException e) {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_PRECONDITION_FAILED);
         } catch (UserNotFoundException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_NOT_FOUND);
+            sendNotFound(request, response, e);
         } catch (InvalidDataException e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error(e.getMessage());
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_BAD_REQUEST);
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
         } catch (Exception e) {
-            ApiResponse<Object> apiResponse = ApiResponse.error("Internal server error");
-            JsonResponseUtil.sendJsonResponse(response, apiResponse, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            JsonResponseUtil.sendFixedErrorResponse(response, "Internal server error", 
+                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
     }
     
@@ -144,29 +616,304 @@ public class UserController extends HttpServlet {
     }
     
     // Helper methods
+    private static void registerCacheMetrics(UserJsonCache cache) {
+        MetricsRegistry.counterFunction(CACHE_METRICS[0], "User JSON served from the cache.", 
+                () -> cache.getStats().getHits());
+        MetricsRegistry.counterFunction(CACHE_METRICS[1], "User JSON encoded because it was not cached.", 
+                () -> cache.getStats().getMisses());
+        MetricsRegistry.counterFunction(CACHE_METRICS[2], "User JSON evicted to stay within the budget.", 
+                () -> cache.getStats().getEvictions());
+        MetricsRegistry.gauge(CACHE_METRICS[3], "Share of user JSON lookups served from the cache.", 
+                () -> cache.getStats().getHitRatio());
+        MetricsRegistry.gauge(CACHE_METRICS[4], "Users whose JSON is cached.", 
+                () -> cache.getStats().getEntries());
+        MetricsRegistry.gauge(CACHE_METRICS[5], "Heap used by cached user JSON.", 
+                () -> cache.getStats().getBytes());
+    }
+    
+    private static void registerChangesMetrics(UserChangeFeed feed) {
+        MetricsRegistry.gauge(CHANGES_METRICS[0], "Clients streaming the user change feed.", 
+                feed::getSubscriberCount);
+        MetricsRegistry.gauge(CHANGES_METRICS[1], "Sequence of the latest user change.", 
+                feed::getSequence);
+        MetricsRegistry.counterFunction(CHANGES_METRICS[2], "Change feed clients disconnected for lagging behind.", 
+                feed::getLagDisconnects);
+    }
+    
+    /**
+     * Sends user data from cached JSON fragments, or in the binary format if the
+     * client prefers it. Only called after {@link ETagUtil#handleConditionalGet},
+     * which already set Vary.
+     */
+    private static void sendUserData(HttpServletRequest request, HttpServletResponse response, Object data, 
+            JsonResponseUtil.JsonBody json) throws IOException {
+        if (BinaryResponseUtil.prefersBinary(request)) {
+            BinaryResponseUtil.sendBinaryResponse(response, ApiResponse.success(SUCCESS_MESSAGE, data), 
+                    HttpServletResponse.SC_OK);
+        } else {
+            JsonResponseUtil.sendJsonResponse(response, SUCCESS_MESSAGE, json, HttpServletResponse.SC_OK);
+        }
+    }
+    
+    private static void sendApiResponse(HttpServletRequest request, HttpServletResponse response, 
+            ApiResponse<User> apiResponse, int statusCode) throws IOException {
+        response.addHeader("Vary", "Accept");
+        if (BinaryResponseUtil.prefersBinary(request)) {
+            BinaryResponseUtil.sendBinaryResponse(response, apiResponse, statusCode);
+        } else {
+            JsonResponseUtil.sendJsonResponse(response, apiResponse, statusCode);
+        }
+    }
+    
+    /**
+     * Answers 404 for a missing user, or 412 if the request was conditional on the
+     * user existing through If-Match.
+     */
+    private void sendNotFound(HttpServletRequest request, HttpServletResponse response, UserNotFoundException e) 
+            throws IOException {
+        int status = request.getHeader("If-Match") != null 
+                ? HttpServletResponse.SC_PRECONDITION_FAILED : HttpServletResponse.SC_NOT_FOUND;
+        if (e.getUserId() != null) {
+            JsonResponseUtil.sendErrorResponse(response, UserNotFoundException.ID_MESSAGE_PREFIX, e.getUserId(), 
+                    status);
+        } else {
+            JsonResponseUtil.sendErrorResponse(response, e.getMessage(), status);
+        }
+    }
+    
+    private void sendAsyncError(HttpServletResponse response, String message, int statusCode) {
+        try {
+            if (!response.isCommitted()) {
+                response.resetBuffer();
+                JsonResponseUtil.sendFixedErrorResponse(response, message, statusCode);
+            }
+            closeResponse(response);
+        } catch (IOException | IllegalStateException e) {
+            // The client is gone or the response was already recycled
+        }
+    }
+    
+    /**
+     * Closes the response body so that filters wrapping the stream, such as
+     * compression, write out what they still hold before the request completes.
+     */
+    private void closeResponse(HttpServletResponse response) {
+        try {
+            response.getOutputStream().close();
+        } catch (IllegalStateException e) {
+            try {
+                response.getWriter().close();
+            } catch (IOException | IllegalStateException ignored) {
+                // Nothing more can be written
+            }
+        } catch (IOException e) {
+            // The client is gone
+        }
+    }
+    
+    /**
+     * Parses the ID from a path of the form {@code /<id>}, optionally with trailing
+     * slashes. Malformed IDs are rejected up front rather than through
+     * NumberFormatException, which would capture a stack trace for every bad request.
+     */
     private Long parseUserIdFromPath(String pathInfo) throws InvalidDataException {
-        String[] pathParts = pathInfo.split("/");
-        if (pathParts.length != 2) {
+        int end = pathInfo.length();
+        while (end > 1 && pathInfo.charAt(end - 1) == '/') {
+            end--;
+        }
+        int slash = pathInfo.indexOf('/', 1);
+        if (end <= 1 || slash >= 0 && slash < end) {
             throw new InvalidDataException("Invalid request format");
         }
         
+        int start = 1;
+        if (pathInfo.charAt(start) == '-' || pathInfo.charAt(start) == '+') {
+            start++;
+        }
+        if (start == end) {
+            throw new InvalidDataException("Invalid user ID format");
+        }
+        for (int i = start; i < end; i++) {
+            char c = pathInfo.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new InvalidDataException("Invalid user ID format");
+            }
+        }
+        
         try {
-            return Long.parseLong(pathParts[1]);
+            return Long.parseLong(pathInfo, 1, end, 10);
         } catch (NumberFormatException e) {
+            // Digits only, but out of range
             throw new InvalidDataException("Invalid user ID format");
         }
     }
     
-    private User parseUserFromRequest(HttpServletRequest request) throws IOException, InvalidDataException {
-        String jsonString = request.getReader().lines().collect(Collectors.joining());
-        if (jsonString == null || jsonString.trim().isEmpty()) {
-            throw new InvalidDataException("Request body cannot be empty");
+    /**
+     * Parses the comma-separated IDs of a multi-get, skipping blanks between commas.
+     * An ID given twice is looked up once, at its first position. As with path IDs,
+     * malformed IDs are rejected without going through NumberFormatException.
+     * @throws InvalidDataException if an ID is malformed or there are more distinct
+     *         IDs than a multi-get allows
+     */
+    private List<Long> parseIdsParameter(String value) throws InvalidDataException {
+        List<Long> ids = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        int start = 0;
+        while (start <= value.length()) {
+            int comma = value.indexOf(',', start);
+            int end = comma >= 0 ? comma : value.length();
+            int from = start;
+            int to = end;
+            start = end + 1;
+            while (from < to && value.charAt(from) == ' ') {
+                from++;
+            }
+            while (to > from && value.charAt(to - 1) == ' ') {
+                to--;
+            }
+            if (from == to) {
+                continue;
+            }
+            
+            long id = 0;
+            for (int i = from; i < to; i++) {
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || id > (Long.MAX_VALUE - digit) / 10) {
+                    throw new InvalidDataException("Invalid user ID format");
+                }
+                id = id * 10 + digit;
+            }
+            if (seen.add(id)) {
+                if (ids.size() == maxMultiGetIds) {
+                    throw new InvalidDataException("At most " + maxMultiGetIds + " user IDs can be fetched at once");
+                }
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+    
+    private long lineOf(JsonProcessingException e) {
+        JsonLocation location = e.getLocation();
+        return location != null ? location.getLineNr() : 0;
+    }
+    
+    private Integer parseIntParameter(HttpServletRequest request, String name) throws InvalidDataException {
+        String value = request.getParameter(name);
+        if (value == null || value.isEmpty()) {
+            return null;
         }
         
         try {
-            return objectMapper.readValue(jsonString, User.class);
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new InvalidDataException("Invalid " + name + " format");
+        }
+    }
+    
+    /**
+     * Parses a User straight from the request stream.
+     * 
+     * The body is never collected into a String: Jackson reads the stream
+     * incrementally, a declared Content-Length above the limit is rejected before
+     * reading anything, and a chunked body is cut off as soon as it passes the limit.
+     */
+    private User parseUserFromRequest(HttpServletRequest request) throws IOException, InvalidDataException {
+        try (JsonParser parser = createRequestParser(request)) {
+            if (parser.nextToken() == null) {
+                throw new InvalidDataException("Request body cannot be empty");
+            }
+            return objectMapper.readValue(parser, User.class);
+        } catch (PayloadTooLargeException | InvalidDataException e) {
+            throw e;
         } catch (Exception e) {
             throw new InvalidDataException("Invalid JSON format");
         }
     }
+    
+    /**
+     * Reads a merge patch token by token, so only the fields it names are parsed and
+     * no User is bound. The read-only id and version are skipped, as they are in a
+     * full update; any other unknown field is rejected.
+     */
+    private UserPatch parsePatchFromRequest(HttpServletRequest request) throws IOException, InvalidDataException {
+        try (JsonParser parser = createRequestParser(request)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new InvalidDataException("Request body cannot be empty");
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new InvalidDataException("Patch must be a JSON object");
+            }
+            
+            UserPatch patch = new UserPatch();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "name":
+                        patch.setName(stringValue(parser, value, "Invalid name format"));
+                        break;
+                    case "email":
+                        patch.setEmail(stringValue(parser, value, "Invalid email format"));
+                        break;
+                    case "age":
+                        if (value != JsonToken.VALUE_NULL && value != JsonToken.VALUE_NUMBER_INT) {
+                            throw new InvalidDataException("Invalid age format");
+                        }
+                        patch.setAge(value == JsonToken.VALUE_NULL ? null : parser.getIntValue());
+                        break;
+                    case "id":
+                    case "version":
+                        parser.skipChildren();
+                        break;
+                    default:
+                        throw new InvalidDataException("Unknown field in patch");
+                }
+            }
+            return patch;
+        } catch (PayloadTooLargeException | InvalidDataException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InvalidDataException("Invalid JSON format");
+        }
+    }
+    
+    private static String stringValue(JsonParser parser, JsonToken value, String error) 
+            throws IOException, InvalidDataException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value != JsonToken.VALUE_STRING) {
+            throw new InvalidDataException(error);
+        }
+        return parser.getText();
+    }
+    
+    /**
+     * Opens a parser on the request body that stops at the size limit. A declared
+     * Content-Length above the limit is rejected before reading anything.
+     */
+    private JsonParser createRequestParser(HttpServletRequest request) throws IOException {
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > maxRequestBytes) {
+            throw new PayloadTooLargeException("Request body exceeds " + maxRequestBytes + " bytes");
+        }
+        
+        InputStream in = new LimitedInputStream(request.getInputStream(), maxRequestBytes);
+        return objectMapper.createParser(in);
+    }
+    
+    private static boolean prefersMinimalReturn(HttpServletRequest request) {
+        String prefer = request.getHeader("Prefer");
+        if (prefer == null) {
+            return false;
+        }
+        for (String preference : prefer.split(",")) {
+            if (preference.trim().equalsIgnoreCase(RETURN_MINIMAL)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,15 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception;
+
+/**
+ * Raised when an email already belongs to another user. This is an expected
+ * conflict rather than a fault, so no stack trace is captured.
+ */
+public class DuplicateEmailException extends Exception {
+    public DuplicateEmailException(String message) {
+        super(message, null, false, false);
+    }
+    
+    public DuplicateEmailException(String message, Throwable cause) {
+        super(message, cause, false, false);
+    }
+}
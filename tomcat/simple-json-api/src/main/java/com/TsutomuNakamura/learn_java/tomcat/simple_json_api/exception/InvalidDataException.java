@@ -1,11 +1,15 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception;
 
+/**
+ * Raised when a request carries invalid input. This is the client's mistake rather
+ * than a fault, so no stack trace is captured.
+ */
 public class InvalidDataException extends Exception {
     public InvalidDataException(String message) {
-        super(message);
+        super(message, null, false, false);
     }
     
     public InvalidDataException(String message, Throwable cause) {
-        super(message, cause);
+        super(message, cause, false, false);
     }
 }
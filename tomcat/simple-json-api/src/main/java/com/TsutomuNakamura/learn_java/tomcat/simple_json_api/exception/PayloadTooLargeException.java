@@ -0,0 +1,19 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception;
+
+import java.io.IOException;
+
+/**
+ * Raised when a request body exceeds the configured size limit.
+ * 
+ * Extends IOException so it can be thrown from inside the request stream
+ * while Jackson is still reading it.
+ */
+public class PayloadTooLargeException extends IOException {
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+    
+    public PayloadTooLargeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,11 +1,38 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception;
 
+/**
+ * Raised when a user does not exist. Lookups of unknown IDs are routine, so no
+ * stack trace is captured and the message of an ID lookup is only built if asked for.
+ */
 public class UserNotFoundException extends Exception {
+    public static final String ID_MESSAGE_PREFIX = "User not found with ID: ";
+    
+    private final Long userId;
+    
+    public UserNotFoundException(Long userId) {
+        super(null, null, false, false);
+        this.userId = userId;
+    }
+    
     public UserNotFoundException(String message) {
-        super(message);
+        super(message, null, false, false);
+        this.userId = null;
     }
     
     public UserNotFoundException(String message, Throwable cause) {
-        super(message, cause);
+        super(message, cause, false, false);
+        this.userId = null;
+    }
+    
+    /**
+     * Returns the ID that was looked up, or null if the user was looked up otherwise.
+     */
+    public Long getUserId() {
+        return userId;
+    }
+    
+    @Override
+    public String getMessage() {
+        return userId != null ? ID_MESSAGE_PREFIX + userId : super.getMessage();
     }
 }
@@ -0,0 +1,16 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception;
+
+/**
+ * Raised when a conditional write finds the user at another version than the
+ * client expected, because someone else changed it in the meantime. This is an
+ * expected race rather than a fault, so no stack trace is captured.
+ */
+public class VersionConflictException extends Exception {
+    public VersionConflictException(String message) {
+        super(message, null, false, false);
+    }
+    
+    public VersionConflictException(String message, Throwable cause) {
+        super(message, cause, false, false);
+    }
+}
@@ -0,0 +1,121 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.listener;
+
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence.DurabilityMode;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence.UserPersistenceEngine;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage.OffHeapUserStore;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.ContextConfigUtil;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+
+@WebListener
+public class AppContextListener implements ServletContextListener {
+    
+    // Storage engine for the user table: "heap" or "offheap". The off-heap store takes
+    // one write at a time, so write-heavy deployments should stay on the heap store
+    public static final String STORAGE_ENGINE_PARAM = "users.storage.engine";
+    
+    // Full-text search index over names and emails; without it searches scan every user
+    public static final String SEARCH_ENABLED_PARAM = "users.search.enabled";
+    
+    // Persistence settings, overridable through context-params in web.xml
+    public static final String PERSISTENCE_ENABLED_PARAM = "users.persistence.enabled";
+    public static final String PERSISTENCE_DIRECTORY_PARAM = "users.persistence.directory";
+    public static final String PERSISTENCE_DURABILITY_PARAM = "users.persistence.durability";
+    public static final String PERSISTENCE_FSYNC_INTERVAL_PARAM = "users.persistence.fsync-interval-ms";
+    public static final String PERSISTENCE_SNAPSHOT_INTERVAL_PARAM = "users.persistence.snapshot-interval-seconds";
+    private static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 300;
+    
+    private UserPersistenceEngine persistenceEngine;
+    
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        String storageEngine = ContextConfigUtil.getString(context, STORAGE_ENGINE_PARAM, "heap");
+        if ("offheap".equalsIgnoreCase(storageEngine)) {
+            OffHeapUserStore store = new OffHeapUserStore();
+            UserRepository.useStore(store);
+            MetricsRegistry.gauge("users_storage_offheap_bytes", "Direct memory held by the off-heap user store.", 
+                    store::getOffHeapBytes);
+            System.out.println("Users are stored off-heap");
+        } else if (!"heap".equalsIgnoreCase(storageEngine)) {
+            System.err.println("Unknown " + STORAGE_ENGINE_PARAM + " '" + storageEngine + "', storing users on-heap");
+        }
+        if (!Boolean.parseBoolean(ContextConfigUtil.getString(context, SEARCH_ENABLED_PARAM, "true"))) {
+            UserRepository.disableSearchIndex();
+        }
+        if (Boolean.parseBoolean(ContextConfigUtil.getString(context, PERSISTENCE_ENABLED_PARAM, "true"))) {
+            startPersistence(context);
+        }
+        
+        UserRepository repository = new UserRepository();
+        MetricsRegistry.gauge("users_repository_size", "Number of stored users.", repository::count);
+        MetricsRegistry.gauge("users_repository_version", "Version of the user table, bumped on every write.", 
+                repository::getVersion);
+        System.out.println("Application started successfully at " + new java.util.Date());
+    }
+    
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (persistenceEngine != null) {
+            UserRepository.attachPersistence(null);
+            try {
+                persistenceEngine.close();
+                System.out.println("User persistence closed");
+            } catch (Exception e) {
+                System.err.println("Failed to close user persistence: " + e.getMessage());
+            }
+        }
+        System.out.println("Application shutdown completed at " + new java.util.Date());
+    }
+    
+    /**
+     * Recovers the user table from disk and starts logging every write.
+     * If the data directory is empty, the sample users are snapshotted instead,
+     * so they survive restarts like any other user.
+     */
+    private void startPersistence(ServletContext context) {
+        Path directory = Paths.get(ContextConfigUtil.getString(context, PERSISTENCE_DIRECTORY_PARAM, 
+                defaultDataDirectory()));
+        DurabilityMode durabilityMode = DurabilityMode.fromString(
+                ContextConfigUtil.getString(context, PERSISTENCE_DURABILITY_PARAM, "batch"));
+        
+        try {
+            UserPersistenceEngine engine = new UserPersistenceEngine(directory, durabilityMode,
+                    ContextConfigUtil.getLong(context, PERSISTENCE_FSYNC_INTERVAL_PARAM, DEFAULT_FSYNC_INTERVAL_MILLIS),
+                    ContextConfigUtil.getLong(context, PERSISTENCE_SNAPSHOT_INTERVAL_PARAM, 
+                            DEFAULT_SNAPSHOT_INTERVAL_SECONDS));
+            
+            Collection<User> recovered = engine.recover();
+            if (recovered != null) {
+                UserRepository.restore(recovered, engine.getHighestId(), engine.getHighestVersion());
+            }
+            
+            UserRepository repository = new UserRepository();
+            engine.start(repository::forEach);
+            if (recovered == null) {
+                engine.snapshot(repository::forEach);
+            }
+            UserRepository.attachPersistence(engine);
+            persistenceEngine = engine;
+        } catch (Exception e) {
+            // Keep serving from memory rather than failing the whole deployment
+            System.err.println("Failed to start user persistence in " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private static String defaultDataDirectory() {
+        String base = System.getProperty("catalina.base", System.getProperty("java.io.tmpdir"));
+        return Paths.get(base, "data", "simple-json-api").toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets.
+ *
+ * Every power of two between about 1 µs and 69 s is split into two buckets of
+ * equal width, so a bucket is never more than 50% wider than its lower bound.
+ * Finding the bucket of a value takes a leading-zero count and a shift, and
+ * recording it is a single atomic increment plus a {@link LongAdder} update,
+ * so the hot path costs a few tens of nanoseconds.
+ */
+public class LatencyHistogram {
+    // Values below 2^10 ns land in the first bucket
+    private static final int MIN_EXPONENT = 10;
+    // Values of 2^36 ns (~69 s) and above land in the overflow bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int SUB_BUCKET_BITS = 1;
+    private static final int FINITE_BUCKETS = 1 + ((MAX_EXPONENT - MIN_EXPONENT) << SUB_BUCKET_BITS);
+    private static final double[] UPPER_BOUNDS_SECONDS = new double[FINITE_BUCKETS];
+    private static final String[] UPPER_BOUND_LABELS = new String[FINITE_BUCKETS];
+
+    static {
+        UPPER_BOUNDS_SECONDS[0] = (1L << MIN_EXPONENT) / 1e9;
+        for (int exponent = MIN_EXPONENT; exponent < MAX_EXPONENT; exponent++) {
+            for (int sub = 0; sub < 1 << SUB_BUCKET_BITS; sub++) {
+                long upper = (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BUCKET_BITS));
+                UPPER_BOUNDS_SECONDS[bucketIndex(exponent, sub)] = upper / 1e9;
+            }
+        }
+        for (int i = 0; i < FINITE_BUCKETS; i++) {
+            UPPER_BOUND_LABELS[i] = Double.toString(UPPER_BOUNDS_SECONDS[i]);
+        }
+    }
+
+    // One slot per finite bucket plus the overflow bucket
+    private final AtomicLongArray counts = new AtomicLongArray(FINITE_BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Writes the histogram as Prometheus {@code _bucket}, {@code _sum} and
+     * {@code _count} samples, in seconds.
+     * @param labels rendered labels, such as {@code route="/x",method="GET"}, or
+     *               an empty string
+     */
+    void writeTo(StringBuilder out, String name, String labels) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < FINITE_BUCKETS; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"").append(UPPER_BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(FINITE_BUCKETS);
+        out.append(name).append("_bucket{").append(labels).append(separator)
+                .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < 1L << MIN_EXPONENT) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return FINITE_BUCKETS;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return bucketIndex(exponent, sub);
+    }
+
+    private static int bucketIndex(int exponent, int sub) {
+        return 1 + ((exponent - MIN_EXPONENT) << SUB_BUCKET_BITS) + sub;
+    }
+}
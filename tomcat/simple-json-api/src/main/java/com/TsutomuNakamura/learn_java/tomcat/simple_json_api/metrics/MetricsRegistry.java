@@ -0,0 +1,308 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics, rendered in the Prometheus text format by
+ * {@link MetricsServlet}.
+ *
+ * Request latencies are kept in one {@link LatencyHistogram} per route, method
+ * and status. Recording one looks the route up by its servlet path, which is a
+ * hash lookup on a String whose hash is already cached, then picks the histogram
+ * from an array indexed by method and status, so nothing is allocated once a
+ * combination has been seen. The number of routes is capped, so unexpected paths
+ * cannot grow the registry without bound.
+ *
+ * Other components register their own metrics by name: counters and histograms
+ * they update themselves, and gauges whose value is read on every scrape.
+ */
+public class MetricsRegistry {
+    public static final String REQUESTS_METRIC = "http_server_requests_seconds";
+    private static final int MAX_ROUTES = 64;
+    private static final String OTHER_ROUTE = "other";
+    private static final String ID_SEGMENT = "/{id}";
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "OTHER"};
+    private static final int MIN_STATUS = 100;
+    private static final int STATUS_SLOTS = 500;
+
+    private static final ConcurrentMap<String, RouteGroup> routeGroups = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Route> routes = new ConcurrentSkipListMap<>();
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Records a request served by a servlet mapped to a path prefix, such as
+     * {@code /api/users/*}. Each path segment below the prefix becomes
+     * {@code {id}}, except a single segment starting with an underscore, which
+     * names an endpoint such as {@code /_search} and is kept as it is.
+     * @param servletPath the matched servlet path, or the whole path for exact mappings
+     * @param pathInfo the rest of the path, or null
+     */
+    public static void recordRequest(String servletPath, String pathInfo, String method, int status, long nanos) {
+        RouteGroup group = routeGroups.get(servletPath);
+        if (group == null) {
+            group = routeGroups.computeIfAbsent(
+                    routeGroups.size() < MAX_ROUTES ? servletPath : OTHER_ROUTE, RouteGroup::new);
+        }
+        group.resolve(pathInfo).record(method, status, nanos);
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(name, () -> new Counter(name, help), Counter.class);
+    }
+
+    public static Timer timer(String name, String help) {
+        return register(name, () -> new Timer(name, help), Timer.class);
+    }
+
+    /**
+     * Registers a value read on every scrape, replacing any metric of the same name.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        metrics.put(name, new Gauge(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a counter kept by someone else, read on every scrape, replacing
+     * any metric of the same name.
+     */
+    public static void counterFunction(String name, String help, DoubleSupplier value) {
+        metrics.put(name, new Gauge(name, help, "counter", value));
+    }
+
+    public static void unregister(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format 0.0.4.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        if (!routes.isEmpty()) {
+            out.append("# HELP ").append(REQUESTS_METRIC)
+                    .append(" Latency of HTTP requests by route, method and status.\n");
+            out.append("# TYPE ").append(REQUESTS_METRIC).append(" histogram\n");
+            for (Route route : routes.values()) {
+                route.writeTo(out);
+            }
+        }
+        for (Metric metric : metrics.values()) {
+            metric.writeTo(out);
+        }
+        return out.toString();
+    }
+
+    private static <T extends Metric> T register(String name, Supplier<T> factory,
+            Class<T> type) {
+        Metric metric = metrics.computeIfAbsent(name, key -> factory.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as another type");
+        }
+        return type.cast(metric);
+    }
+
+    private static Route route(String name) {
+        Route route = routes.get(name);
+        if (route != null) {
+            return route;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return routes.computeIfAbsent(OTHER_ROUTE, Route::new);
+        }
+        return routes.computeIfAbsent(name, Route::new);
+    }
+
+    static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * The routes below one servlet path.
+     */
+    private static final class RouteGroup {
+        private final Route base;
+        private final String servletPath;
+        private volatile Route byId;
+        private final ConcurrentMap<String, Route> endpoints = new ConcurrentHashMap<>();
+
+        private RouteGroup(String servletPath) {
+            this.servletPath = servletPath;
+            base = route(servletPath.isEmpty() ? "/" : servletPath);
+        }
+
+        private Route resolve(String pathInfo) {
+            if (pathInfo == null || pathInfo.equals("/")) {
+                return base;
+            }
+            if (pathInfo.length() > 2 && pathInfo.charAt(1) == '_' && pathInfo.indexOf('/', 1) < 0) {
+                Route endpoint = endpoints.get(pathInfo);
+                if (endpoint == null && endpoints.size() < MAX_ROUTES) {
+                    endpoint = endpoints.computeIfAbsent(pathInfo, key -> route(servletPath + key));
+                }
+                if (endpoint != null) {
+                    return endpoint;
+                }
+            }
+            Route route = byId;
+            if (route == null) {
+                // Racing threads resolve to the same Route through the registry
+                route = route(servletPath + ID_SEGMENT);
+                byId = route;
+            }
+            return route;
+        }
+    }
+
+    /**
+     * The histograms of one route, created on first use for each method and status.
+     */
+    private static final class Route {
+        private final String name;
+        private final AtomicReferenceArray<LatencyHistogram> histograms =
+                new AtomicReferenceArray<>(METHODS.length * STATUS_SLOTS);
+
+        private Route(String name) {
+            this.name = name;
+        }
+
+        private void record(String method, int status, long nanos) {
+            int statusSlot = status >= MIN_STATUS && status < MIN_STATUS + STATUS_SLOTS
+                    ? status - MIN_STATUS : 500 - MIN_STATUS;
+            int slot = methodIndex(method) * STATUS_SLOTS + statusSlot;
+            LatencyHistogram histogram = histograms.get(slot);
+            if (histogram == null) {
+                histograms.compareAndSet(slot, null, new LatencyHistogram());
+                histogram = histograms.get(slot);
+            }
+            histogram.record(nanos);
+        }
+
+        private void writeTo(StringBuilder out) {
+            String routeLabel = "route=\"" + escapeLabel(name) + "\",method=\"";
+            for (int slot = 0; slot < histograms.length(); slot++) {
+                LatencyHistogram histogram = histograms.get(slot);
+                if (histogram != null) {
+                    String labels = routeLabel + METHODS[slot / STATUS_SLOTS]
+                            + "\",status=\"" + (MIN_STATUS + slot % STATUS_SLOTS) + "\"";
+                    histogram.writeTo(out, REQUESTS_METRIC, labels);
+                }
+            }
+        }
+
+        private static int methodIndex(String method) {
+            switch (method) {
+                case "GET":
+                    return 0;
+                case "HEAD":
+                    return 1;
+                case "POST":
+                    return 2;
+                case "PUT":
+                    return 3;
+                case "PATCH":
+                    return 4;
+                case "DELETE":
+                    return 5;
+                case "OPTIONS":
+                    return 6;
+                default:
+                    return 7;
+            }
+        }
+    }
+
+    private interface Metric {
+        void writeTo(StringBuilder out);
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static final class Counter implements Metric {
+        private final String name;
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            writeHeader(out, name, help, "counter");
+            out.append(name).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * A latency histogram without labels.
+     */
+    public static final class Timer implements Metric {
+        private final String name;
+        private final String help;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Timer(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            writeHeader(out, name, help, "histogram");
+            histogram.writeTo(out, name, "");
+        }
+    }
+
+    private static final class Gauge implements Metric {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final DoubleSupplier value;
+
+        private Gauge(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            double current;
+            try {
+                current = value.getAsDouble();
+            } catch (RuntimeException e) {
+                // A broken gauge must not take the whole scrape down
+                return;
+            }
+            writeHeader(out, name, help, type);
+            out.append(name).append(' ').append(current).append('\n');
+        }
+    }
+}
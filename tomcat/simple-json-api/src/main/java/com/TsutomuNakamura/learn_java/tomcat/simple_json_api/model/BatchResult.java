@@ -0,0 +1,39 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.List;
+
+public class BatchResult<T> {
+    private List<T> items;
+    private List<Long> missing;
+
+    // Default constructor for Jackson
+    public BatchResult() {}
+
+    public BatchResult(List<T> items, List<Long> missing) {
+        this.items = items;
+        this.missing = missing;
+    }
+
+    // Getters and setters
+    /**
+     * The items that were found, in the order they were asked for.
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    /**
+     * The IDs that were asked for but not found, in the order they were asked for.
+     */
+    public List<Long> getMissing() {
+        return missing;
+    }
+
+    public void setMissing(List<Long> missing) {
+        this.missing = missing;
+    }
+}
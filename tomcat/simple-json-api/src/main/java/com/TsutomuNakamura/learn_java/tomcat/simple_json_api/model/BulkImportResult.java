@@ -0,0 +1,85 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of a bulk import. Successful lines are only counted; failed lines are
+ * listed individually up to {@link #MAX_REPORTED_ERRORS} so the summary stays
+ * small no matter how large the upload was.
+ */
+public class BulkImportResult {
+    public static final int MAX_REPORTED_ERRORS = 100;
+
+    private long processed;
+    private long created;
+    private long updated;
+    private long failed;
+    private boolean aborted;
+    private final List<LineError> errors = new ArrayList<>();
+
+    public void recordCreated() {
+        processed++;
+        created++;
+    }
+
+    public void recordUpdated() {
+        processed++;
+        updated++;
+    }
+
+    public void recordFailed(long line, String message) {
+        processed++;
+        failed++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(new LineError(line, message));
+        }
+    }
+
+    // Getters and setters
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    public void setAborted(boolean aborted) {
+        this.aborted = aborted;
+    }
+
+    public List<LineError> getErrors() {
+        return errors;
+    }
+
+    public static class LineError {
+        private final long line;
+        private final String message;
+
+        public LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        public long getLine() {
+            return line;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.List;
+
+public class Page<T> {
+    private List<T> items;
+    private String nextCursor;
+    private int limit;
+
+    // Default constructor for Jackson
+    public Page() {}
+
+    public Page(List<T> items, String nextCursor, int limit) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+        this.limit = limit;
+    }
+
+    // Getters and setters
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public boolean isHasMore() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,57 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.List;
+
+public class SearchResult<T> {
+    private String query;
+    private List<T> items;
+    private int limit;
+    private boolean truncated;
+
+    // Default constructor for Jackson
+    public SearchResult() {}
+
+    public SearchResult(String query, List<T> items, int limit, boolean truncated) {
+        this.query = query;
+        this.items = items;
+        this.limit = limit;
+        this.truncated = truncated;
+    }
+
+    // Getters and setters
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * True when the query matched too many users to rank them all, so better
+     * matches than the returned ones may exist.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+}
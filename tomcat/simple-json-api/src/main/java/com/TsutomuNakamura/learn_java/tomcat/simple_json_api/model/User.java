@@ -1,51 +1,70 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
 
-public class User {
-    private Long id;
-    private String name;
-    private String email;
-    private int age;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
-    // Default constructor for Jackson
-    public User() {}
+/**
+ * A user. Instances are immutable, so a stored user can be shared with any number
+ * of readers, and a change always means publishing a new instance.
+ *
+ * The version is assigned by the repository on every write and drives the per-user
+ * ETag. It is included in responses but ignored in request bodies; clients make
+ * a write conditional with If-Match instead.
+ */
+@JsonIgnoreProperties(value = "version", allowGetters = true)
+public final class User {
+    private final Long id;
+    private final String name;
+    private final String email;
+    private final int age;
+    private final long version;
 
-    public User(Long id, String name, String email, int age) {
+    @JsonCreator
+    public User(@JsonProperty("id") Long id, @JsonProperty("name") String name,
+            @JsonProperty("email") String email, @JsonProperty("age") int age) {
+        this(id, name, email, age, 0);
+    }
+
+    public User(Long id, String name, String email, int age, long version) {
         this.id = id;
         this.name = name;
         this.email = email;
         this.age = age;
+        this.version = version;
     }
 
-    // Getters and setters
     public Long getId() {
         return id;
     }
 
-    public void setId(Long id) {
-        this.id = id;
-    }
-
     public String getName() {
         return name;
     }
 
-    public void setName(String name) {
-        this.name = name;
-    }
-
     public String getEmail() {
         return email;
     }
 
-    public void setEmail(String email) {
-        this.email = email;
-    }
-
     public int getAge() {
         return age;
     }
 
-    public void setAge(int age) {
-        this.age = age;
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns this user under another ID, keeping every other field.
+     */
+    public User withId(Long id) {
+        return new User(id, name, email, age, version);
+    }
+
+    /**
+     * Returns this user at another version, keeping every other field.
+     */
+    public User withVersion(long version) {
+        return new User(id, name, email, age, version);
     }
 }
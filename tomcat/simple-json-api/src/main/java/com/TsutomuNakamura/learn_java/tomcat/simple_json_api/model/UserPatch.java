@@ -0,0 +1,90 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A JSON Merge Patch (RFC 7396) of a user: the fields a client wants to change
+ * and their new values. Fields that were not supplied are left as they are. A
+ * supplied null asks for the field to be removed, which validation rejects for
+ * every field a user has.
+ */
+public class UserPatch {
+    private String name;
+    private String email;
+    private Integer age;
+    private boolean hasName;
+    private boolean hasEmail;
+    private boolean hasAge;
+
+    public void setName(String name) {
+        this.name = name;
+        this.hasName = true;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+        this.hasEmail = true;
+    }
+
+    public void setAge(Integer age) {
+        this.age = age;
+        this.hasAge = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public Integer getAge() {
+        return age;
+    }
+
+    public boolean hasName() {
+        return hasName;
+    }
+
+    public boolean hasEmail() {
+        return hasEmail;
+    }
+
+    public boolean hasAge() {
+        return hasAge;
+    }
+
+    public boolean isEmpty() {
+        return !hasName && !hasEmail && !hasAge;
+    }
+
+    /**
+     * Returns the user with the patch applied. The version is left to the repository.
+     */
+    public User applyTo(User user) {
+        return new User(user.getId(), hasName ? name : user.getName(), hasEmail ? email : user.getEmail(),
+                hasAge ? age : user.getAge(), user.getVersion());
+    }
+
+    /**
+     * Returns the ID, the patched fields and the version of the user the patch
+     * produced, for responses that only echo what changed.
+     */
+    public Map<String, Object> changedFieldsOf(User user) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("id", user.getId());
+        if (hasName) {
+            fields.put("name", user.getName());
+        }
+        if (hasEmail) {
+            fields.put("email", user.getEmail());
+        }
+        if (hasAge) {
+            fields.put("age", user.getAge());
+        }
+        fields.put("version", user.getVersion());
+        return fields;
+    }
+}
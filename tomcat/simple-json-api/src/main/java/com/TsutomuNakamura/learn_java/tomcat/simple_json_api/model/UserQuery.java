@@ -0,0 +1,58 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model;
+
+import java.util.Locale;
+
+/**
+ * Filter on user attributes. Every criterion is optional, and a user matches
+ * when it satisfies all criteria that are set. Name prefixes are matched
+ * case-insensitively.
+ */
+public class UserQuery {
+    private final Integer minAge;
+    private final Integer maxAge;
+    private final String namePrefix;
+
+    public UserQuery(Integer minAge, Integer maxAge, String namePrefix) {
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        this.namePrefix = namePrefix != null ? normalizeName(namePrefix) : null;
+    }
+
+    public Integer getMinAge() {
+        return minAge;
+    }
+
+    public Integer getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Returns the name prefix, already normalized with {@link #normalizeName(String)}.
+     */
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public boolean hasAgeRange() {
+        return minAge != null || maxAge != null;
+    }
+
+    public boolean hasNamePrefix() {
+        return namePrefix != null;
+    }
+
+    public boolean matches(User user) {
+        if (minAge != null && user.getAge() < minAge) {
+            return false;
+        }
+        if (maxAge != null && user.getAge() > maxAge) {
+            return false;
+        }
+        return namePrefix == null || 
+                (user.getName() != null && normalizeName(user.getName()).startsWith(namePrefix));
+    }
+
+    public static String normalizeName(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
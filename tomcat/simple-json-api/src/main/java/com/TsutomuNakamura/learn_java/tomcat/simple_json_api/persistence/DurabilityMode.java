@@ -0,0 +1,24 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence;
+
+import java.util.Locale;
+
+/**
+ * When the write-ahead log forces its writes to disk.
+ */
+public enum DurabilityMode {
+    /** fsync once per group-committed batch; a write returns only once it is on disk */
+    BATCH,
+    /** fsync on a fixed interval; a crash may lose the writes of the last interval */
+    INTERVAL,
+    /** never fsync; the OS decides when the log reaches the disk */
+    NONE;
+    
+    public static DurabilityMode fromString(String value) {
+        try {
+            return DurabilityMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown durability mode '" + value + "', using BATCH");
+            return BATCH;
+        }
+    }
+}
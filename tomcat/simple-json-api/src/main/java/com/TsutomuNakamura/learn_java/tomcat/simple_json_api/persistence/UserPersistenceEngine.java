@@ -0,0 +1,377 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence.UserRecordCodec.CorruptRecordException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence.UserRecordCodec.Record;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Durable storage for the user repository: a write-ahead log of every mutation
+ * plus periodic snapshots that let old log segments be deleted.
+ * 
+ * A snapshot first rotates the log, then writes out the current users. Writers
+ * hold a shared fence from before they log a mutation until it is visible in
+ * memory, and the rotation takes the fence exclusively, so every mutation logged
+ * before the rotation has been applied by the time the users are walked. The
+ * snapshot therefore contains it, and recovery only has to replay the segments
+ * from the rotation onwards. Records carry the user's version, and replay skips
+ * anything older than what it already has, so it does not matter whether a
+ * mutation logged after the rotation also made it into the snapshot.
+ * 
+ * The engine also remembers the highest ID and version it has ever seen, deleted
+ * users included, and keeps them in every snapshot. The repository continues its
+ * sequences from there, so a new user never gets the ID or version of a deleted
+ * one, which replay would otherwise take for the deleted user's older record.
+ */
+public class UserPersistenceEngine implements Closeable {
+    
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final String THREAD_NAME = "User-Snapshot-Thread";
+    
+    private final Path directory;
+    private final DurabilityMode durabilityMode;
+    private final long fsyncIntervalMillis;
+    private final long snapshotIntervalSeconds;
+    
+    private long nextSegment = 1;
+    private WriteAheadLog wal;
+    private ScheduledExecutorService scheduler;
+    private long bytesAtLastSnapshot;
+    private final AtomicLong highestId = new AtomicLong();
+    private final AtomicLong highestVersion = new AtomicLong();
+    // Shared by writers between logging and publishing, exclusive for a log rotation
+    private final ReadWriteLock rotationFence = new ReentrantReadWriteLock();
+    
+    public UserPersistenceEngine(Path directory, DurabilityMode durabilityMode, long fsyncIntervalMillis, 
+            long snapshotIntervalSeconds) {
+        this.directory = directory;
+        this.durabilityMode = durabilityMode;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+    
+    /**
+     * Rebuilds the user table from the latest valid snapshot and the log tail.
+     * A torn record at the end of the newest segment, left by a crash mid-write,
+     * is cut off.
+     * @return the recovered users, or null if the directory holds no data yet
+     */
+    public Collection<User> recover() throws IOException {
+        Files.createDirectories(directory);
+        Map<Long, User> users = new HashMap<>();
+        Map<Long, Long> deletedVersions = new HashMap<>();
+        
+        long baseSegment = 0;
+        List<Long> snapshots = listSnapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Map<Long, User> loaded = loadSnapshot(snapshotPath(snapshots.get(i)));
+            if (loaded != null) {
+                users.putAll(loaded);
+                baseSegment = snapshots.get(i);
+                break;
+            }
+            System.err.println("[Persistence] Ignoring corrupt snapshot " + snapshotPath(snapshots.get(i)));
+        }
+        
+        List<Long> segments = WriteAheadLog.listSegments(directory);
+        long replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            long segment = segments.get(i);
+            if (segment >= baseSegment) {
+                replayed += replaySegment(segment, i == segments.size() - 1, users, deletedVersions);
+            }
+        }
+        
+        long lastSegment = segments.isEmpty() ? baseSegment : Math.max(baseSegment, segments.get(segments.size() - 1));
+        nextSegment = lastSegment + 1;
+        
+        if (snapshots.isEmpty() && segments.isEmpty()) {
+            return null;
+        }
+        System.out.println("[Persistence] Recovered " + users.size() + " users from " + directory
+                + " (snapshot segment " + baseSegment + ", " + replayed + " log records replayed)");
+        return users.values();
+    }
+    
+    /**
+     * @return the highest user ID in the recovered data or logged since, deleted users included
+     */
+    public long getHighestId() {
+        return highestId.get();
+    }
+    
+    /**
+     * @return the highest version in the recovered data or logged since, deletes included
+     */
+    public long getHighestVersion() {
+        return highestVersion.get();
+    }
+    
+    /**
+     * Opens a fresh log segment and starts taking snapshots in the background.
+     * @param source feeds every current user to the given consumer, for snapshots
+     */
+    public void start(Consumer<Consumer<User>> source) throws IOException {
+        wal = new WriteAheadLog(directory, nextSegment, durabilityMode, fsyncIntervalMillis);
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, THREAD_NAME);
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                // Nothing to compact if the log has not grown since the last snapshot
+                if (wal.getBytesWritten() != bytesAtLastSnapshot) {
+                    snapshot(source);
+                }
+            } catch (Exception e) {
+                System.err.println("[Persistence] Snapshot failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        
+        System.out.println("[Persistence] Logging to " + directory + " (durability " + durabilityMode + ")");
+    }
+    
+    /**
+     * Holds off log rotation until {@link #endWrite()}. Writers call this before
+     * they log a mutation and end it once the mutation is visible to the snapshot
+     * source, so a snapshot never misses a write whose log segment it deletes.
+     */
+    public void beginWrite() {
+        rotationFence.readLock().lock();
+    }
+    
+    public void endWrite() {
+        rotationFence.readLock().unlock();
+    }
+    
+    public CompletableFuture<Void> logPut(User user) {
+        // Noted before the append, so a snapshot that rotates past the record also sees its marks
+        noteLogged(user.getId(), user.getVersion());
+        return wal.append(UserRecordCodec.encodePut(user));
+    }
+    
+    public CompletableFuture<Void> logDelete(long id, long version) {
+        noteLogged(id, version);
+        return wal.append(UserRecordCodec.encodeDelete(id, version));
+    }
+    
+    /**
+     * @return a future completed once everything logged so far is written
+     */
+    public CompletableFuture<Void> sync() {
+        return wal.sync();
+    }
+    
+    /**
+     * Writes a snapshot of the current users and deletes the log segments and
+     * snapshots it makes obsolete.
+     */
+    public synchronized void snapshot(Consumer<Consumer<User>> source) throws IOException {
+        long bytesWritten;
+        long segment;
+        // Waits for writes already logged to the old segment to be published
+        rotationFence.writeLock().lock();
+        try {
+            bytesWritten = wal.getBytesWritten();
+            segment = join(wal.rotate());
+        } finally {
+            rotationFence.writeLock().unlock();
+        }
+        
+        Path target = snapshotPath(segment);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        long count;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), SNAPSHOT_BUFFER_SIZE)) {
+            long[] written = new long[1];
+            try {
+                source.accept(user -> {
+                    try {
+                        out.write(UserRecordCodec.encodePut(user));
+                        written[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            count = written[0];
+            // The log segments this snapshot replaces may hold the only trace of a deleted user
+            out.write(UserRecordCodec.encodeEnd(count, highestId.get(), highestVersion.get()));
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        bytesAtLastSnapshot = bytesWritten;
+        
+        // Everything before the rotation is now covered by the snapshot
+        for (long oldSegment : WriteAheadLog.listSegments(directory)) {
+            if (oldSegment < segment) {
+                Files.deleteIfExists(WriteAheadLog.segmentPath(directory, oldSegment));
+            }
+        }
+        for (long oldSnapshot : listSnapshots()) {
+            if (oldSnapshot < segment) {
+                Files.deleteIfExists(snapshotPath(oldSnapshot));
+            }
+        }
+        System.out.println("[Persistence] Wrote snapshot of " + count + " users to " + target.getFileName());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    scheduler.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                scheduler.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (wal != null) {
+            wal.close();
+        }
+    }
+    
+    private long replaySegment(long segment, boolean lastSegment, Map<Long, User> users, 
+            Map<Long, Long> deletedVersions) throws IOException {
+        Path path = WriteAheadLog.segmentPath(directory, segment);
+        long validBytes = 0;
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            Record record;
+            while ((record = UserRecordCodec.read(in)) != null) {
+                // Also for records replay skips: their ID and version were handed out
+                noteLogged(record.id, record.version);
+                apply(record, users, deletedVersions);
+                validBytes += UserRecordCodec.frameSize(record);
+                count++;
+            }
+        } catch (CorruptRecordException e) {
+            if (lastSegment) {
+                System.err.println("[Persistence] Truncating torn tail of " + path.getFileName() 
+                        + " at byte " + validBytes + ": " + e.getMessage());
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validBytes);
+                    channel.force(true);
+                }
+            } else {
+                System.err.println("[Persistence] Skipping corrupt remainder of " + path.getFileName() 
+                        + " after byte " + validBytes + ": " + e.getMessage());
+            }
+        }
+        return count;
+    }
+    
+    private void noteLogged(long id, long version) {
+        highestId.accumulateAndGet(id, Math::max);
+        highestVersion.accumulateAndGet(version, Math::max);
+    }
+    
+    private static void apply(Record record, Map<Long, User> users, Map<Long, Long> deletedVersions) {
+        User current = users.get(record.id);
+        long currentVersion = current != null ? current.getVersion() : deletedVersions.getOrDefault(record.id, 0L);
+        if (record.version <= currentVersion) {
+            return;
+        }
+        
+        if (record.type == UserRecordCodec.PUT) {
+            users.put(record.id, record.user);
+            deletedVersions.remove(record.id);
+        } else if (record.type == UserRecordCodec.DELETE) {
+            users.remove(record.id);
+            deletedVersions.put(record.id, record.version);
+        }
+    }
+    
+    /**
+     * @return the users in the snapshot, or null if it is incomplete or corrupt
+     */
+    private Map<Long, User> loadSnapshot(Path path) throws IOException {
+        Map<Long, User> users = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            Record record;
+            while ((record = UserRecordCodec.read(in)) != null) {
+                if (record.type == UserRecordCodec.END) {
+                    if (record.id != users.size()) {
+                        return null;
+                    }
+                    noteLogged(record.highestId, record.version);
+                    for (User user : users.values()) {
+                        noteLogged(user.getId(), user.getVersion());
+                    }
+                    return users;
+                }
+                users.put(record.id, record.user);
+            }
+        } catch (CorruptRecordException e) {
+            return null;
+        }
+        // No END record: the snapshot was never finished
+        return null;
+    }
+    
+    private List<Long> listSnapshots() throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .forEach(name -> snapshots.add(Long.parseLong(
+                            name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()))));
+        }
+        snapshots.sort(null);
+        return snapshots;
+    }
+    
+    private Path snapshotPath(long segment) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+    }
+    
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+}
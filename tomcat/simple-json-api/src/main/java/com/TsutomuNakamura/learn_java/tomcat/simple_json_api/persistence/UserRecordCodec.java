@@ -0,0 +1,148 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary encoding shared by log segments and snapshots.
+ * 
+ * Every record is framed as {@code [int length][int crc32c][payload]} and the
+ * payload is {@code [byte type][long version][long id]}, followed for PUT by
+ * {@code [int age][int nameLength][name][int emailLength][email]} in UTF-8.
+ * A frame whose checksum does not match marks the end of the valid data.
+ * 
+ * A snapshot ends with an END record whose version is the highest version ever
+ * logged and whose ID is the record count, followed by {@code [long highestId]}.
+ */
+class UserRecordCodec {
+    
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte END = 3;
+    
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+    
+    static byte[] encodePut(User user) {
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + 4 + 4 + name.length + 4 + email.length);
+        payload.put(PUT).putLong(user.getVersion()).putLong(user.getId()).putInt(user.getAge());
+        payload.putInt(name.length).put(name);
+        payload.putInt(email.length).put(email);
+        return frame(payload.array());
+    }
+    
+    static byte[] encodeDelete(long id, long version) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8);
+        payload.put(DELETE).putLong(version).putLong(id);
+        return frame(payload.array());
+    }
+    
+    static byte[] encodeEnd(long recordCount, long highestId, long highestVersion) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + 8);
+        payload.put(END).putLong(highestVersion).putLong(recordCount).putLong(highestId);
+        return frame(payload.array());
+    }
+    
+    /**
+     * Reads the next record.
+     * @return the record, or null at a clean end of input
+     * @throws CorruptRecordException if the input ends mid-frame or a checksum fails
+     */
+    static Record read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        
+        try {
+            int checksum = in.readInt();
+            if (length <= 0 || length > MAX_PAYLOAD_SIZE) {
+                throw new CorruptRecordException("Invalid record length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (checksum(payload) != checksum) {
+                throw new CorruptRecordException("Record checksum mismatch");
+            }
+            return decode(payload);
+        } catch (EOFException e) {
+            throw new CorruptRecordException("Truncated record");
+        }
+    }
+    
+    static int frameSize(Record record) {
+        return FRAME_HEADER_SIZE + record.payloadSize;
+    }
+    
+    private static Record decode(byte[] bytes) {
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        byte type = payload.get();
+        long version = payload.getLong();
+        long id = payload.getLong();
+        User user = null;
+        long highestId = 0;
+        if (type == PUT) {
+            int age = payload.getInt();
+            String name = readString(payload);
+            String email = readString(payload);
+            user = new User(id, name, email, age, version);
+        } else if (type == END && payload.remaining() >= 8) {
+            // Snapshots written before the marks were added end right after the count
+            highestId = payload.getLong();
+        }
+        return new Record(type, version, id, user, highestId, bytes.length);
+    }
+    
+    private static String readString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] frame(byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).putInt(checksum(payload)).put(payload);
+        return frame.array();
+    }
+    
+    private static int checksum(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+    
+    static class Record {
+        final byte type;
+        final long version;
+        final long id;
+        final User user;
+        /** For END only: the highest ID ever logged, deleted users included */
+        final long highestId;
+        final int payloadSize;
+        
+        Record(byte type, long version, long id, User user, long highestId, int payloadSize) {
+            this.type = type;
+            this.version = version;
+            this.id = id;
+            this.user = user;
+            this.highestId = highestId;
+            this.payloadSize = payloadSize;
+        }
+    }
+    
+    static class CorruptRecordException extends IOException {
+        CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+}
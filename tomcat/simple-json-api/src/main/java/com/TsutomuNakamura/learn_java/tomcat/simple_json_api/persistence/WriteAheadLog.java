@@ -0,0 +1,243 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of user mutations, split into numbered segment files.
+ * 
+ * Writers only enqueue an encoded record and get a future back. A single writer
+ * thread drains everything queued so far, writes it with one system call per
+ * buffer and, in {@link DurabilityMode#BATCH} mode, covers the whole batch with a
+ * single fsync before completing the futures. Under load a batch grows with the
+ * number of concurrent writers, which is what makes group commit cheap.
+ */
+class WriteAheadLog implements Closeable {
+    
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_BATCH_SIZE = 4096;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final String THREAD_NAME = "User-WAL-Writer";
+    
+    private final Path directory;
+    private final DurabilityMode durabilityMode;
+    private final long fsyncIntervalMillis;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Thread writerThread;
+    
+    private volatile boolean running = true;
+    private FileChannel channel;
+    private long segment;
+    private boolean dirty;
+    private long lastForceMillis = System.currentTimeMillis();
+    
+    WriteAheadLog(Path directory, long firstSegment, DurabilityMode durabilityMode, long fsyncIntervalMillis) 
+            throws IOException {
+        this.directory = directory;
+        this.durabilityMode = durabilityMode;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        openSegment(firstSegment);
+        
+        this.writerThread = new Thread(this::runWriter, THREAD_NAME);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+    
+    /**
+     * Queues an encoded record.
+     * @return a future completed once the record is written, and fsynced in BATCH mode
+     */
+    CompletableFuture<Void> append(byte[] record) {
+        Entry entry = new Entry(record, EntryType.RECORD);
+        enqueue(entry);
+        return entry.future.thenApply(ignored -> null);
+    }
+    
+    /**
+     * @return a future completed once every record queued before this call is written
+     */
+    CompletableFuture<Void> sync() {
+        Entry entry = new Entry(null, EntryType.BARRIER);
+        enqueue(entry);
+        return entry.future.thenApply(ignored -> null);
+    }
+    
+    /**
+     * Closes the current segment and starts a new one.
+     * @return a future completed with the number of the new segment; every record
+     *         queued before this call lives in an older segment
+     */
+    CompletableFuture<Long> rotate() {
+        Entry entry = new Entry(null, EntryType.ROTATE);
+        enqueue(entry);
+        return entry.future;
+    }
+    
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        queue.add(new Entry(null, EntryType.BARRIER));
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+    
+    /**
+     * Lists the segment numbers found in the directory, in ascending order.
+     */
+    static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+    
+    private void enqueue(Entry entry) {
+        if (!running) {
+            entry.future.completeExceptionally(new IllegalStateException("Write-ahead log is closed"));
+            return;
+        }
+        queue.add(entry);
+    }
+    
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        long pollMillis = durabilityMode == DurabilityMode.INTERVAL 
+                ? Math.min(fsyncIntervalMillis, IDLE_POLL_MILLIS) : IDLE_POLL_MILLIS;
+        
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+                writeBatch(batch);
+                for (Entry entry : batch) {
+                    entry.future.complete(entry.type == EntryType.ROTATE ? segment : null);
+                }
+            } catch (IOException e) {
+                System.err.println("[WAL] Failed to write log: " + e.getMessage());
+                for (Entry entry : batch) {
+                    entry.future.completeExceptionally(new UncheckedIOException(e));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            batch.clear();
+        }
+        
+        try {
+            flushWriteBuffer();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[WAL] Failed to close log: " + e.getMessage());
+        }
+    }
+    
+    private void writeBatch(List<Entry> batch) throws IOException {
+        for (Entry entry : batch) {
+            if (entry.type == EntryType.RECORD) {
+                write(entry.data);
+            } else if (entry.type == EntryType.ROTATE) {
+                flushWriteBuffer();
+                channel.force(false);
+                channel.close();
+                openSegment(segment + 1);
+            }
+        }
+        flushWriteBuffer();
+        
+        long now = System.currentTimeMillis();
+        boolean force = durabilityMode == DurabilityMode.BATCH
+                || (durabilityMode == DurabilityMode.INTERVAL && now - lastForceMillis >= fsyncIntervalMillis);
+        if (dirty && force) {
+            channel.force(false);
+            dirty = false;
+            lastForceMillis = now;
+        }
+    }
+    
+    private void write(byte[] data) throws IOException {
+        if (data.length > writeBuffer.remaining()) {
+            flushWriteBuffer();
+        }
+        if (data.length > writeBuffer.capacity()) {
+            writeFully(ByteBuffer.wrap(data));
+        } else {
+            writeBuffer.put(data);
+        }
+        bytesWritten.addAndGet(data.length);
+        dirty = true;
+    }
+    
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        writeFully(writeBuffer);
+        writeBuffer.clear();
+    }
+    
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private void openSegment(long number) throws IOException {
+        channel = FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment = number;
+    }
+    
+    private enum EntryType {
+        RECORD, BARRIER, ROTATE
+    }
+    
+    private static class Entry {
+        final byte[] data;
+        final EntryType type;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+        
+        Entry(byte[] data, EntryType type) {
+            this.data = data;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserQuery;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Secondary indexes on age and name, used to answer {@link UserQuery} filters.
+ *
+ * Ages are bucketed, one sorted set of IDs per age, so an age range is a merge of
+ * its buckets in ID order and each bucket keeps a count for cost estimates. Names
+ * are kept as (normalized name, ID) entries in a sorted set, so the users sharing
+ * a prefix form one contiguous range of it, and the users sharing a name one run
+ * in ID order within that range. A prefix is read in ID order by merging those
+ * runs, each started at the page cursor. Each name also keeps a count of its
+ * run, so the cost of that merge can be weighed against a scan of all users
+ * without reading the runs.
+ *
+ * The repository updates the index from inside the atomic store operation that
+ * publishes a write, so the entries of one user change in the same order as the
+ * user does. Entries may still briefly run ahead of the store, so callers check
+ * every candidate against the stored record.
+ */
+class UserAttributeIndex {
+    static final int MAX_AGE = 150;
+
+    private final AgeBucket[] ageBuckets = new AgeBucket[MAX_AGE + 1];
+    private final NavigableSet<NameEntry> names = new ConcurrentSkipListSet<>();
+    // Emptied counters stay mapped, so an add can never land in one that was just dropped
+    private final ConcurrentMap<String, LongAdder> nameCounts = new ConcurrentHashMap<>();
+
+    UserAttributeIndex() {
+        for (int age = 0; age <= MAX_AGE; age++) {
+            ageBuckets[age] = new AgeBucket();
+        }
+    }
+
+    void add(User user) {
+        addAge(user.getId(), user.getAge());
+        if (user.getName() != null) {
+            addName(user.getId(), UserQuery.normalizeName(user.getName()));
+        }
+    }
+
+    void remove(User user) {
+        removeAge(user.getId(), user.getAge());
+        if (user.getName() != null) {
+            removeName(user.getId(), UserQuery.normalizeName(user.getName()));
+        }
+    }
+
+    /**
+     * Moves a user's entries from its previous to its new attributes. New entries
+     * are added before old ones are removed, so the user never drops out of both.
+     */
+    void replace(User previous, User next) {
+        if (bucketOf(previous.getAge()) != bucketOf(next.getAge())) {
+            addAge(next.getId(), next.getAge());
+            removeAge(previous.getId(), previous.getAge());
+        }
+
+        String previousName = previous.getName() != null ? UserQuery.normalizeName(previous.getName()) : null;
+        String nextName = next.getName() != null ? UserQuery.normalizeName(next.getName()) : null;
+        if (nextName != null && !nextName.equals(previousName)) {
+            addName(next.getId(), nextName);
+        }
+        if (previousName != null && !previousName.equals(nextName)) {
+            removeName(previous.getId(), previousName);
+        }
+    }
+
+    void clear() {
+        for (AgeBucket bucket : ageBuckets) {
+            bucket.ids.clear();
+            bucket.count.reset();
+        }
+        names.clear();
+        nameCounts.clear();
+    }
+
+    /**
+     * Returns the number of IDs in the buckets covering the age range.
+     */
+    long countAges(int minAge, int maxAge) {
+        long count = 0;
+        for (int age = bucketOf(minAge); age <= bucketOf(maxAge); age++) {
+            count += ageBuckets[age].count.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Iterates the IDs in the age range in ascending order, starting after the given ID.
+     */
+    Iterator<Long> idsByAge(int minAge, int maxAge, Long afterId) {
+        PriorityQueue<PeekingIterator> heads = new PriorityQueue<>();
+        for (int age = bucketOf(minAge); age <= bucketOf(maxAge); age++) {
+            NavigableSet<Long> bucket = ageBuckets[age].ids;
+            PeekingIterator head = new PeekingIterator(
+                    afterId == null ? bucket.iterator() : bucket.tailSet(afterId, false).iterator());
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+        }
+        return new MergingIterator(heads);
+    }
+
+    /**
+     * Counts the names starting with the prefix, giving up once the count exceeds {@code limit}.
+     */
+    long countNamePrefix(String prefix, long limit) {
+        long count = 0;
+        for (NameEntry entry : namesWithPrefix(prefix)) {
+            if (!entry.name.startsWith(prefix) || ++count > limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Iterates the IDs of the names starting with the prefix in ascending order,
+     * starting after the given ID. Only the entries from the cursor on are read,
+     * and no more of them than the caller takes; setting up costs one lookup per
+     * distinct name with the prefix.
+     */
+    Iterator<Long> idsByNamePrefix(String prefix, Long afterId) {
+        long after = afterId != null ? afterId : Long.MIN_VALUE;
+        PriorityQueue<PeekingIterator> heads = new PriorityQueue<>();
+        NameEntry entry = names.ceiling(new NameEntry(prefix, Long.MIN_VALUE));
+        while (entry != null && entry.name.startsWith(prefix)) {
+            NavigableSet<NameEntry> run = names.subSet(new NameEntry(entry.name, after), false, 
+                    new NameEntry(entry.name, Long.MAX_VALUE), true);
+            PeekingIterator head = new PeekingIterator(new NameIdIterator(run.iterator()));
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+            entry = names.higher(new NameEntry(entry.name, Long.MAX_VALUE));
+        }
+        return new MergingIterator(heads);
+    }
+
+    /**
+     * Tells whether a page of users with the prefix is found sooner by checking
+     * every user in ID order than by merging the prefix's name runs. The scan
+     * reads about {@code limit * totalUsers / matches} users; the merge opens one
+     * run per distinct name and then reads {@code limit} entries. The names are
+     * only walked until the answer is certain, so deciding never costs more than
+     * opening the runs would.
+     */
+    boolean isNameScanCheaper(String prefix, long totalUsers, int limit) {
+        long scanBudget = (long) limit * totalUsers;
+        long matches = 0;
+        long distinctNames = 0;
+        NameEntry entry = names.ceiling(new NameEntry(prefix, Long.MIN_VALUE));
+        while (entry != null && entry.name.startsWith(prefix)) {
+            distinctNames++;
+            LongAdder count = nameCounts.get(entry.name);
+            matches += count != null ? Math.max(1, count.sum()) : 1;
+            // More names can only make the scan cheaper and the merge dearer
+            if (scanBudget / matches < distinctNames + limit) {
+                return true;
+            }
+            entry = names.higher(new NameEntry(entry.name, Long.MAX_VALUE));
+        }
+        return false;
+    }
+
+    private NavigableSet<NameEntry> namesWithPrefix(String prefix) {
+        return names.tailSet(new NameEntry(prefix, Long.MIN_VALUE), true);
+    }
+
+    private void addName(Long id, String name) {
+        if (names.add(new NameEntry(name, id))) {
+            nameCounts.computeIfAbsent(name, key -> new LongAdder()).increment();
+        }
+    }
+
+    private void removeName(Long id, String name) {
+        if (names.remove(new NameEntry(name, id))) {
+            LongAdder count = nameCounts.get(name);
+            if (count != null) {
+                count.decrement();
+            }
+        }
+    }
+
+    private void addAge(Long id, int age) {
+        AgeBucket bucket = ageBuckets[bucketOf(age)];
+        if (bucket.ids.add(id)) {
+            bucket.count.increment();
+        }
+    }
+
+    private void removeAge(Long id, int age) {
+        AgeBucket bucket = ageBuckets[bucketOf(age)];
+        if (bucket.ids.remove(id)) {
+            bucket.count.decrement();
+        }
+    }
+
+    private static int bucketOf(int age) {
+        return Math.max(0, Math.min(MAX_AGE, age));
+    }
+
+    private static final class AgeBucket {
+        private final NavigableSet<Long> ids = new ConcurrentSkipListSet<>();
+        private final LongAdder count = new LongAdder();
+    }
+
+    private static final class NameEntry implements Comparable<NameEntry> {
+        private final String name;
+        private final long id;
+
+        private NameEntry(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(NameEntry other) {
+            int result = name.compareTo(other.name);
+            return result != 0 ? result : Long.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NameEntry)) {
+                return false;
+            }
+            NameEntry other = (NameEntry) obj;
+            return id == other.id && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + Long.hashCode(id);
+        }
+    }
+
+    private static final class PeekingIterator implements Comparable<PeekingIterator> {
+        private final Iterator<Long> iterator;
+        private Long next;
+
+        private PeekingIterator(Iterator<Long> iterator) {
+            this.iterator = iterator;
+            this.next = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        private boolean hasNext() {
+            return next != null;
+        }
+
+        private Long advance() {
+            Long current = next;
+            next = iterator.hasNext() ? iterator.next() : null;
+            return current;
+        }
+
+        @Override
+        public int compareTo(PeekingIterator other) {
+            return Long.compare(next, other.next);
+        }
+    }
+
+    private static final class NameIdIterator implements Iterator<Long> {
+        private final Iterator<NameEntry> entries;
+
+        private NameIdIterator(Iterator<NameEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public Long next() {
+            return entries.next().id;
+        }
+    }
+
+    /**
+     * Merges sorted ID iterators, dropping the duplicates left by a user that is
+     * briefly in two buckets while its age changes, or under two names while it
+     * is renamed.
+     */
+    private static final class MergingIterator implements Iterator<Long> {
+        private final PriorityQueue<PeekingIterator> heads;
+        private Long last;
+
+        private MergingIterator(PriorityQueue<PeekingIterator> heads) {
+            this.heads = heads;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!heads.isEmpty() && heads.peek().next.equals(last)) {
+                take();
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = take();
+            return last;
+        }
+
+        private Long take() {
+            PeekingIterator head = heads.poll();
+            Long id = head.advance();
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+/**
+ * Receives every write made through {@link UserRepository}.
+ * 
+ * Listeners are called from inside the atomic store operation that publishes the
+ * write, so the changes of one user arrive in the order they were applied. They
+ * must return quickly and must never call back into the repository.
+ */
+@FunctionalInterface
+public interface UserChangeListener {
+    
+    /**
+     * @param id ID of the user that changed
+     * @param previous the user as stored before, or null if it was just created
+     * @param user the user as now stored, or null if it was deleted
+     */
+    void onChange(Long id, User previous, User user);
+}
@@ -1,58 +1,774 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
 
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.VersionConflictException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BatchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.SearchResult;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserPatch;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserQuery;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence.UserPersistenceEngine;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage.HeapUserStore;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage.UserStore;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
+/**
+ * Thread-safe in-memory user store.
+ *
+ * Users are kept by ID in a {@link UserStore}, which makes lookups, updates and
+ * deletes constant-time, and new IDs come from a lock-free counter so concurrent
+ * POSTs never hand out the same ID. Users are immutable, so an update publishes a
+ * whole new instance and readers see either the old user or the new one. The
+ * store is an on-heap hash map unless another one is installed with
+ * {@link #useStore(UserStore)} on startup.
+ *
+ * A secondary index maps each normalized email to the ID that owns it. Writers
+ * claim the new email and release the previous one from inside the atomic store
+ * operation that publishes the record, so two users can never end up sharing an
+ * email and the index never disagrees with the stored user, even when writes to
+ * the same ID race.
+ *
+ * IDs are also kept in a sorted skip list, which serves keyset pagination and
+ * ordered full scans. A page walks the skip list from the cursor and skips IDs
+ * whose record has already been removed, so its cost is proportional to the page
+ * size and concurrent inserts or deletes never shift rows between pages.
+ *
+ * Filters on age and name prefix are served by a {@link UserAttributeIndex}, which
+ * is updated from inside the atomic store operation of every write, so the index
+ * entries of a user always change in the same order as the user. Full-text search
+ * is served the same way by a {@link UserSearchIndex}, which can be turned off to
+ * save memory, in which case searches scan every user.
+ *
+ * Every stored user carries the version it was written at, and the repository as
+ * a whole has a version that is bumped after each write becomes visible. Callers
+ * read the repository version before reading data, so a version can never be
+ * paired with data older than itself.
+ *
+ * Updates and deletes can be made conditional on the version a client last saw.
+ * The version is compared inside the same atomic store operation that publishes
+ * the write, so of several writers holding the same version exactly one wins and
+ * the others see a {@link VersionConflictException}. With the default heap store,
+ * writes to different users never wait for each other; the off-heap store takes
+ * one write at a time.
+ *
+ * Registered {@link UserChangeListener}s see every create, update and delete from
+ * inside the same atomic operation.
+ *
+ * When a {@link UserPersistenceEngine} is attached, every write is appended to its
+ * log from inside the same atomic map operation that publishes it, and the caller
+ * waits for the write to be durable before returning. Each write holds the
+ * engine's write fence from before it is logged until it is published, so a
+ * snapshot never rotates the log past a write it cannot see yet.
+ */
 public class UserRepository {
-    private static final List<User> users = new ArrayList<>();
-    
+    /**
+     * Expected version that matches whatever version the user is at.
+     */
+    public static final long ANY_VERSION = -1;
+
+    private static volatile UserStore users = new HeapUserStore();
+    private static final ConcurrentMap<String, Long> emailIndex = new ConcurrentHashMap<>();
+    private static final NavigableSet<Long> orderedIds = new ConcurrentSkipListSet<>();
+    private static final UserAttributeIndex attributes = new UserAttributeIndex();
+    private static volatile UserSearchIndex searchIndex = new UserSearchIndex();
+    // Budgets of each search pass, so an unselective query costs no more than a few milliseconds
+    private static final int MAX_SEARCH_EXAMINED = 10_000;
+    private static final int MAX_SEARCH_CANDIDATES = 1_000;
+    private static final AtomicLong idSequence = new AtomicLong();
+    private static final AtomicLong versionSequence = new AtomicLong();
+    private static final AtomicLong repositoryVersion = new AtomicLong();
+    private static volatile UserPersistenceEngine persistence;
+    private static final List<UserChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
     static {
         // Initialize with sample data
-        users.add(new User(1L, "John Doe", "john@example.com", 30));
-        users.add(new User(2L, "Jane Smith", "jane@example.com", 25));
-        users.add(new User(3L, "Bob Johnson", "bob@example.com", 35));
+        seed(new User(1L, "John Doe", "john@example.com", 30));
+        seed(new User(2L, "Jane Smith", "jane@example.com", 25));
+        seed(new User(3L, "Bob Johnson", "bob@example.com", 35));
+    }
+
+    /**
+     * Routes every subsequent write through the given persistence engine, or
+     * stops persisting when null.
+     */
+    public static void attachPersistence(UserPersistenceEngine engine) {
+        persistence = engine;
+    }
+
+    public static void addChangeListener(UserChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public static void removeChangeListener(UserChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Moves every user into the given store and serves from it from now on.
+     * Only meant to be called on startup, before any request is served.
+     */
+    public static void useStore(UserStore store) {
+        users.forEach(store::put);
+        users = store;
+    }
+
+    /**
+     * Drops the full-text search index, so searches scan every user instead.
+     * Only meant to be called on startup, before any request is served.
+     */
+    public static void disableSearchIndex() {
+        searchIndex = null;
+    }
+
+    /**
+     * Replaces the whole user table with the given users, continuing the ID and
+     * version sequences after the highest of them.
+     */
+    public static void restore(Collection<User> recovered) {
+        restore(recovered, 0, 0);
+    }
+
+    /**
+     * Replaces the whole user table with recovered users, and continues the ID
+     * and version sequences after the given marks or the highest recovered
+     * user, whichever is higher. The marks come from the persistence engine and
+     * cover deleted users, whose IDs and versions must not be handed out again.
+     * Only meant to be called on startup, before any request is served.
+     */
+    public static void restore(Collection<User> recovered, long highestId, long highestVersion) {
+        users.clear();
+        emailIndex.clear();
+        orderedIds.clear();
+        attributes.clear();
+        UserSearchIndex search = searchIndex;
+        if (search != null) {
+            search.clear();
+        }
+        for (User user : recovered) {
+            users.put(user);
+            attributes.add(user);
+            if (search != null) {
+                search.add(user);
+            }
+            orderedIds.add(user.getId());
+            emailIndex.put(normalizeEmail(user.getEmail()), user.getId());
+            highestId = Math.max(highestId, user.getId());
+            highestVersion = Math.max(highestVersion, user.getVersion());
+        }
+        idSequence.set(highestId);
+        versionSequence.set(highestVersion);
+        repositoryVersion.incrementAndGet();
+    }
+
+    private static void seed(User seed) {
+        User user = seed.withVersion(versionSequence.incrementAndGet());
+        users.put(user);
+        attributes.add(user);
+        searchIndex.add(user);
+        orderedIds.add(user.getId());
+        emailIndex.put(normalizeEmail(user.getEmail()), user.getId());
+        idSequence.accumulateAndGet(user.getId(), Math::max);
     }
-    
+
     public List<User> findAll() {
-        return new ArrayList<>(users);
+        List<User> result = new ArrayList<>(users.size());
+        for (Long id : orderedIds) {
+            User user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} users with an ID greater than {@code afterId}, in ID order.
+     * @param afterId last ID of the previous page, or null for the first page
+     * @param limit maximum number of users to return
+     */
+    public List<User> findPage(Long afterId, int limit) {
+        NavigableSet<Long> ids = afterId == null ? orderedIds : orderedIds.tailSet(afterId, false);
+        List<User> result = new ArrayList<>(Math.min(limit, 1024));
+        for (Long id : ids) {
+            if (result.size() >= limit) {
+                break;
+            }
+            User user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} users matching the query with an ID greater than
+     * {@code afterId}, in ID order.
+     *
+     * The query is driven by whichever index yields fewer candidates: the age
+     * buckets when a range is given, or the name range when its prefix matches
+     * fewer users than the age range does. Either way the work done is
+     * proportional to the candidates read, not to the number of users. A name
+     * range is read by merging one run per distinct name, so a prefix spread
+     * over very many names is instead checked against the users in ID order from
+     * the cursor, when the users that scan is expected to read cost less than
+     * opening those runs.
+     * @param afterId last ID of the previous page, or null for the first page
+     * @param limit maximum number of users to return
+     */
+    public List<User> findMatching(UserQuery query, Long afterId, int limit) {
+        if (!query.hasAgeRange() && !query.hasNamePrefix()) {
+            return findPage(afterId, limit);
+        }
+
+        int minAge = query.getMinAge() != null ? query.getMinAge() : 0;
+        int maxAge = query.getMaxAge() != null ? query.getMaxAge() : UserAttributeIndex.MAX_AGE;
+        boolean byName = query.hasNamePrefix();
+        if (byName && query.hasAgeRange()) {
+            long ageCandidates = attributes.countAges(minAge, maxAge);
+            byName = attributes.countNamePrefix(query.getNamePrefix(), ageCandidates) <= ageCandidates;
+        }
+
+        Iterator<Long> ids;
+        if (!byName) {
+            ids = attributes.idsByAge(minAge, maxAge, afterId);
+        } else if (attributes.isNameScanCheaper(query.getNamePrefix(), users.size(), limit)) {
+            ids = (afterId == null ? orderedIds : orderedIds.tailSet(afterId, false)).iterator();
+        } else {
+            ids = attributes.idsByNamePrefix(query.getNamePrefix(), afterId);
+        }
+
+        List<User> result = new ArrayList<>(Math.min(limit, 1024));
+        while (result.size() < limit && ids.hasNext()) {
+            addIfMatches(ids.next(), query, result);
+        }
+        return result;
     }
-    
+
+    private static void addIfMatches(Long id, UserQuery query, List<User> result) {
+        // Index entries can run ahead of the store, so check the record itself
+        User user = users.get(id);
+        if (user != null && query.matches(user)) {
+            result.add(user);
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} users whose name or email contains the query,
+     * best matches first. Queries of six characters or more may contain a typo,
+     * and queries of ten or more two.
+     *
+     * Exact matches rank before fuzzy ones, and within each, matches at the start of
+     * the name rank before matches at the start of a word, anywhere in the name,
+     * and then in the email. Ties go to shorter names, then to lower IDs.
+     */
+    public SearchResult<User> search(String query, int limit) {
+        String key = UserSearchIndex.normalize(query);
+        int maxTypos = UserSearchIndex.maxTyposFor(key);
+
+        // Keep the best 'limit' hits, with the worst of them at the head
+        Comparator<SearchHit> ranking = Comparator.<SearchHit>comparingInt(hit -> hit.score)
+                .thenComparingInt(hit -> hit.user.getName().length())
+                .thenComparing(hit -> hit.user.getId());
+        PriorityQueue<SearchHit> best = new PriorityQueue<>(ranking.reversed());
+        Consumer<User> collect = user -> {
+            int score = scoreMatch(user, key, maxTypos);
+            if (score >= 0) {
+                best.add(new SearchHit(user, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        };
+
+        boolean truncated = false;
+        UserSearchIndex search = searchIndex;
+        if (search != null) {
+            UserSearchIndex.Candidates candidates = search.candidates(key, maxTypos, limit,
+                    MAX_SEARCH_EXAMINED, MAX_SEARCH_CANDIDATES);
+            for (long id : candidates.ids) {
+                // Index entries can run ahead of the store, so score the record itself
+                User user = users.get(id);
+                if (user != null) {
+                    collect.accept(user);
+                }
+            }
+            truncated = candidates.truncated;
+        } else {
+            users.forEach(collect);
+        }
+
+        List<User> items = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            items.add(best.poll().user);
+        }
+        Collections.reverse(items);
+        return new SearchResult<>(query, items, limit, truncated);
+    }
+
+    /**
+     * Scores how well the user matches a search, lower being better.
+     * @return the score, or -1 if the user does not match
+     */
+    private static int scoreMatch(User user, String key, int maxTypos) {
+        if (user.getName() == null || user.getEmail() == null) {
+            return -1;
+        }
+        String name = UserSearchIndex.normalize(user.getName());
+        int nameDistance = UserSearchIndex.substringDistance(key, name, maxTypos);
+        if (nameDistance == 0) {
+            // An exact name match outranks anything the email could offer
+            int at = name.indexOf(key);
+            return at == 0 ? 0 : !Character.isLetterOrDigit(name.charAt(at - 1)) ? 1 : 2;
+        }
+
+        String email = UserSearchIndex.normalize(user.getEmail());
+        int emailDistance = UserSearchIndex.substringDistance(key, email, maxTypos);
+        int distance = Math.min(nameDistance, emailDistance);
+        if (distance > maxTypos) {
+            return -1;
+        }
+
+        int position;
+        if (nameDistance == distance) {
+            position = 2;
+        } else {
+            position = distance == 0 && email.startsWith(key) ? 3 : 4;
+        }
+        return distance * 5 + position;
+    }
+
+    private static final class SearchHit {
+        private final User user;
+        private final int score;
+
+        private SearchHit(User user, int score) {
+            this.user = user;
+            this.score = score;
+        }
+    }
+
     public Optional<User> findById(Long id) {
-        return users.stream()
-                .filter(user -> user.getId().equals(id))
-                .findFirst();
+        if (id == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(users.get(id));
+    }
+
+    /**
+     * Looks up many users in one pass over the IDs, with one store lookup each.
+     * @return the users found and the IDs with no user, both in the given order
+     */
+    public BatchResult<User> findAllById(List<Long> ids) {
+        List<User> found = new ArrayList<>(ids.size());
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            User user = users.get(id);
+            if (user != null) {
+                found.add(user);
+            } else {
+                missing.add(id);
+            }
+        }
+        return new BatchResult<>(found, missing);
     }
-    
-    public User save(User user) {
+
+    public Optional<User> findByEmail(String email) {
+        if (email == null) {
+            return Optional.empty();
+        }
+
+        String key = normalizeEmail(email);
+        Long id = emailIndex.get(key);
+        if (id == null) {
+            return Optional.empty();
+        }
+
+        // The index entry may be a reservation whose record is not published yet
+        User user = users.get(id);
+        if (user == null || !normalizeEmail(user.getEmail()).equals(key)) {
+            return Optional.empty();
+        }
+        return Optional.of(user);
+    }
+
+    public User save(User user) throws DuplicateEmailException {
+        return save(user, true);
+    }
+
+    private User save(User user, boolean sync) throws DuplicateEmailException {
+        String emailKey = normalizeEmail(user.getEmail());
+
         if (user.getId() == null) {
-            // Generate new ID for new users
-            Long newId = users.stream()
-                    .mapToLong(User::getId)
-                    .max()
-                    .orElse(0L) + 1;
-            user.setId(newId);
-            users.add(user);
-        } else {
-            // Update existing user
-            Optional<User> existingUser = findById(user.getId());
-            if (existingUser.isPresent()) {
-                User existing = existingUser.get();
-                existing.setName(user.getName());
-                existing.setEmail(user.getEmail());
-                existing.setAge(user.getAge());
-                return existing;
+            // Generate new ID for new users. An upsert may already have claimed the
+            // next ID explicitly, in which case we move on to the following one.
+            while (true) {
+                Long newId = idSequence.incrementAndGet();
+                User created = insert(newId, emailKey, user, sync);
+                if (created != null) {
+                    return created;
+                }
+            }
+        }
+
+        // Update existing user
+        User updated = replace(user.getId(), emailKey, existing -> user, ANY_VERSION, sync, new User[1]);
+        return updated != null ? updated : user;
+    }
+
+    /**
+     * Replaces the user with the given ID, provided it is still at the expected version.
+     * @param expectedVersion version the user must be at, or {@link #ANY_VERSION}
+     * @return the stored user, or null if there is no user with that ID
+     * @throws VersionConflictException if the user is at another version
+     */
+    public User update(Long id, User user, long expectedVersion)
+            throws DuplicateEmailException, VersionConflictException {
+        User[] current = new User[1];
+        User updated = replace(id, normalizeEmail(user.getEmail()), existing -> user, expectedVersion, true,
+                current);
+        if (updated == null && current[0] != null) {
+            throw new VersionConflictException("User has been modified since it was read");
+        }
+        return updated;
+    }
+
+    /**
+     * Applies a patch to the user with the given ID, provided it is still at the
+     * expected version. The patch is applied to the user as it is at the moment of
+     * the write, so concurrent patches of different fields both take effect.
+     * @param expectedVersion version the user must be at, or {@link #ANY_VERSION}
+     * @return the stored user, or null if there is no user with that ID
+     * @throws VersionConflictException if the user is at another version
+     */
+    public User patch(Long id, UserPatch patch, long expectedVersion)
+            throws DuplicateEmailException, VersionConflictException {
+        // Without a new email the user keeps the one it owns, so there is nothing to reserve
+        String emailKey = patch.hasEmail() ? normalizeEmail(patch.getEmail()) : null;
+        User[] current = new User[1];
+        User updated = replace(id, emailKey, patch::applyTo, expectedVersion, true, current);
+        if (updated == null && current[0] != null) {
+            throw new VersionConflictException("User has been modified since it was read");
+        }
+        return updated;
+    }
+
+    /**
+     * Saves the user under its own ID, creating it when that ID is not taken yet.
+     * Users without an ID are created with a generated one, as in {@link #save(User)}.
+     */
+    public User upsert(User user) throws DuplicateEmailException {
+        return upsert(user, true);
+    }
+
+    /**
+     * Same as {@link #upsert(User)}, but with {@code sync} false the call returns
+     * without waiting for the write to become durable. Call {@link #sync()} after a
+     * batch of such writes, so one log flush covers the whole batch.
+     */
+    public User upsert(User user, boolean sync) throws DuplicateEmailException {
+        Long id = user.getId();
+        if (id == null) {
+            return save(user, sync);
+        }
+
+        String emailKey = normalizeEmail(user.getEmail());
+        while (true) {
+            if (users.containsKey(id)) {
+                User updated = replace(id, emailKey, existing -> user, ANY_VERSION, sync, new User[1]);
+                if (updated != null) {
+                    return updated;
+                }
+                // Deleted between the check and the update; try inserting instead
+            }
+
+            User created = insert(id, emailKey, user, sync);
+            if (created != null) {
+                idSequence.accumulateAndGet(id, Math::max);
+                return created;
             }
         }
-        return user;
     }
-    
+
     public boolean deleteById(Long id) {
-        return users.removeIf(user -> user.getId().equals(id));
+        return delete(id, ANY_VERSION, new User[1]);
     }
-    
+
+    /**
+     * Deletes the user with the given ID, provided it is still at the expected version.
+     * @param expectedVersion version the user must be at, or {@link #ANY_VERSION}
+     * @return false if there is no user with that ID
+     * @throws VersionConflictException if the user is at another version
+     */
+    public boolean deleteById(Long id, long expectedVersion) throws VersionConflictException {
+        User[] current = new User[1];
+        if (delete(id, expectedVersion, current)) {
+            return true;
+        }
+        if (current[0] != null) {
+            throw new VersionConflictException("User has been modified since it was read");
+        }
+        return false;
+    }
+
+    /**
+     * @param current receives the user found under the ID, or null if there was none
+     * @return true if the user was deleted
+     */
+    private static boolean delete(Long id, long expectedVersion, User[] current) {
+        if (id == null) {
+            return false;
+        }
+
+        UserPersistenceEngine engine = persistence;
+        CompletableFuture<?>[] logged = new CompletableFuture<?>[1];
+        boolean[] removed = new boolean[1];
+        beginWrite(engine);
+        try {
+            users.computeIfPresent(id, (key, existing) -> {
+                current[0] = existing;
+                if (expectedVersion != ANY_VERSION && existing.getVersion() != expectedVersion) {
+                    return existing;
+                }
+                removed[0] = true;
+                logged[0] = logDelete(engine, key, versionSequence.incrementAndGet());
+                orderedIds.remove(key);
+                emailIndex.remove(normalizeEmail(existing.getEmail()), key);
+                attributes.remove(existing);
+                UserSearchIndex search = searchIndex;
+                if (search != null) {
+                    search.remove(existing);
+                }
+                notifyChange(key, existing, null);
+                return null;
+            });
+        } finally {
+            endWrite(engine);
+        }
+        if (!removed[0]) {
+            return false;
+        }
+
+        repositoryVersion.incrementAndGet();
+        awaitDurable(logged[0], true);
+        return true;
+    }
+
+    /**
+     * Waits until every write made so far is durable.
+     */
+    public void sync() {
+        UserPersistenceEngine engine = persistence;
+        if (engine != null) {
+            awaitDurable(engine.sync(), true);
+        }
+    }
+
+    public void forEach(Consumer<User> action) {
+        users.forEach(action);
+    }
+
     public boolean existsById(Long id) {
-        return users.stream().anyMatch(user -> user.getId().equals(id));
+        return id != null && users.containsKey(id);
+    }
+
+    public long count() {
+        return users.size();
+    }
+
+    /**
+     * Returns the repository version, which increases after every create, update
+     * and delete.
+     */
+    public long getVersion() {
+        return repositoryVersion.get();
+    }
+
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Swaps in a new record for an existing user, if it is at the expected version.
+     * @param emailKey normalized email of the new record, or null if it keeps the current one
+     * @param changes produces the new record's fields from the current record
+     * @param current receives the user found under the ID, or null if there was none
+     * @return the stored user, or null if the ID was absent or the version did not match
+     */
+    private static User replace(Long id, String emailKey, UnaryOperator<User> changes, long expectedVersion,
+            boolean sync, User[] current) throws DuplicateEmailException {
+        if (!users.containsKey(id)) {
+            return null;
+        }
+
+        UserPersistenceEngine engine = persistence;
+        CompletableFuture<?>[] logged = new CompletableFuture<?>[1];
+        boolean[] emailTaken = new boolean[1];
+        User stored;
+        beginWrite(engine);
+        try {
+            // Swap in a fresh instance, so readers never observe a half-applied update.
+            // Logging inside the swap keeps the log order per user equal to the apply order,
+            // and checking the version there makes the swap a compare-and-set.
+            stored = users.computeIfPresent(id, (key, existing) -> {
+                current[0] = existing;
+                if (expectedVersion != ANY_VERSION && existing.getVersion() != expectedVersion) {
+                    return existing;
+                }
+                String previousKey = normalizeEmail(existing.getEmail());
+                if (emailKey != null && !emailKey.equals(previousKey)) {
+                    if (!claimEmail(emailKey, key)) {
+                        emailTaken[0] = true;
+                        return existing;
+                    }
+                    emailIndex.remove(previousKey, key);
+                }
+                User replacement = copyOf(key, changes.apply(existing));
+                logged[0] = logPut(engine, replacement);
+                attributes.replace(existing, replacement);
+                UserSearchIndex search = searchIndex;
+                if (search != null) {
+                    search.replace(existing, replacement);
+                }
+                notifyChange(key, existing, replacement);
+                return replacement;
+            });
+        } finally {
+            endWrite(engine);
+        }
+
+        if (emailTaken[0]) {
+            throw new DuplicateEmailException("Email is already in use: " + emailKey);
+        }
+        if (stored == null || stored == current[0]) {
+            // Deleted concurrently, or at another version
+            return null;
+        }
+
+        repositoryVersion.incrementAndGet();
+        awaitDurable(logged[0], sync);
+        return stored;
+    }
+
+    /**
+     * Publishes a new record under the given ID.
+     * @return the stored user, or null if the ID is already taken
+     */
+    private static User insert(Long id, String emailKey, User user, boolean sync) throws DuplicateEmailException {
+        User created = copyOf(id, user);
+        UserPersistenceEngine engine = persistence;
+        CompletableFuture<?>[] logged = new CompletableFuture<?>[1];
+        boolean[] emailTaken = new boolean[1];
+        User stored;
+        beginWrite(engine);
+        try {
+            stored = users.computeIfAbsent(id, key -> {
+                if (!claimEmail(emailKey, key)) {
+                    emailTaken[0] = true;
+                    return null;
+                }
+                logged[0] = logPut(engine, created);
+                attributes.add(created);
+                UserSearchIndex search = searchIndex;
+                if (search != null) {
+                    search.add(created);
+                }
+                // Inside the insert, so a delete of the same ID can never run in between
+                orderedIds.add(key);
+                notifyChange(key, null, created);
+                return created;
+            });
+        } finally {
+            endWrite(engine);
+        }
+        if (emailTaken[0]) {
+            throw new DuplicateEmailException("Email is already in use: " + emailKey);
+        }
+        if (stored != created) {
+            return null;
+        }
+
+        repositoryVersion.incrementAndGet();
+        awaitDurable(logged[0], sync);
+        return created;
+    }
+
+    private static void notifyChange(Long id, User previous, User user) {
+        for (UserChangeListener listener : changeListeners) {
+            listener.onChange(id, previous, user);
+        }
+    }
+
+    /**
+     * Keeps a snapshot from rotating the log between logging a write and publishing
+     * it, which would leave the write in neither the snapshot nor a kept segment.
+     */
+    private static void beginWrite(UserPersistenceEngine engine) {
+        if (engine != null) {
+            engine.beginWrite();
+        }
+    }
+
+    private static void endWrite(UserPersistenceEngine engine) {
+        if (engine != null) {
+            engine.endWrite();
+        }
+    }
+
+    private static CompletableFuture<?> logPut(UserPersistenceEngine engine, User user) {
+        return engine != null ? engine.logPut(user) : null;
+    }
+
+    private static CompletableFuture<?> logDelete(UserPersistenceEngine engine, Long id, long version) {
+        return engine != null ? engine.logDelete(id, version) : null;
+    }
+
+    private static void awaitDurable(CompletableFuture<?> logged, boolean sync) {
+        if (logged == null || !sync) {
+            return;
+        }
+        try {
+            logged.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Claims the email for the given user ID. Only called from inside the store
+     * operation that publishes the user, so the claim and the record go together.
+     * @return false if another user owns the email
+     */
+    private static boolean claimEmail(String emailKey, Long id) {
+        Long owner = emailIndex.putIfAbsent(emailKey, id);
+        return owner == null || owner.equals(id);
+    }
+
+    private static User copyOf(Long id, User source) {
+        return new User(id, source.getName(), source.getEmail(), source.getAge(),
+                versionSequence.incrementAndGet());
     }
 }
@@ -0,0 +1,404 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Trigram inverted index over user names and emails, used by full-text search.
+ *
+ * Every distinct three-character substring of a user's normalized name and email
+ * maps to the set of IDs containing it. Each typo breaks at most three of the
+ * query's trigrams, so a user whose name or email contains the query within
+ * {@code k} typos is in all but at most {@code 3k} of the query's posting lists,
+ * and therefore in at least one of the rarest {@code 3k + 1}. Candidates are
+ * gathered from those lists alone and then checked against the rest, which keeps
+ * the work proportional to the rare lists rather than to the number of users.
+ *
+ * Like {@link UserAttributeIndex}, the index is updated from inside the atomic
+ * store operation of every write, and callers check candidates against the stored
+ * record.
+ */
+class UserSearchIndex {
+    static final int GRAM_LENGTH = 3;
+
+    private final ConcurrentMap<Long, Postings> grams = new ConcurrentHashMap<>();
+
+    void add(User user) {
+        for (long gram : gramsOf(user)) {
+            addPosting(gram, user.getId());
+        }
+    }
+
+    void remove(User user) {
+        for (long gram : gramsOf(user)) {
+            removePosting(gram, user.getId());
+        }
+    }
+
+    /**
+     * Moves a user's postings from its previous to its new name and email, leaving
+     * the trigrams both share untouched.
+     */
+    void replace(User previous, User next) {
+        long[] before = gramsOf(previous);
+        long[] after = gramsOf(next);
+        for (long gram : after) {
+            if (Arrays.binarySearch(before, gram) < 0) {
+                addPosting(gram, next.getId());
+            }
+        }
+        for (long gram : before) {
+            if (Arrays.binarySearch(after, gram) < 0) {
+                removePosting(gram, previous.getId());
+            }
+        }
+    }
+
+    void clear() {
+        grams.clear();
+    }
+
+    /**
+     * Returns the IDs that may contain the query within {@code maxTypos} edits.
+     *
+     * IDs found in every posting list of the query come first; they are the only
+     * ones that can contain it verbatim, and exact matches outrank fuzzy ones. The
+     * fuzzy pass only runs when the first one found fewer than {@code wanted}.
+     * Both passes walk IDs in ascending order and stop at the given budgets.
+     * @param query normalized query, at least {@link #GRAM_LENGTH} characters long
+     * @param wanted number of exact candidates that makes the fuzzy pass unnecessary
+     * @param maxExamined IDs each pass may read from the posting lists
+     * @param maxCandidates IDs each pass may return
+     */
+    Candidates candidates(String query, int maxTypos, int wanted, int maxExamined, int maxCandidates) {
+        long[] queryGrams = gramsOf(query);
+        Postings[] lists = new Postings[queryGrams.length];
+        for (int i = 0; i < queryGrams.length; i++) {
+            lists[i] = grams.get(queryGrams[i]);
+            if (lists[i] == null) {
+                lists[i] = Postings.EMPTY;
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+
+        Postings seen = new Postings();
+        CandidateBuffer result = new CandidateBuffer();
+        collect(lists, 1, lists.length, maxExamined, maxCandidates, seen, result);
+        if (maxTypos > 0 && result.count < wanted) {
+            // Each edit breaks at most three trigrams, and a match must keep the rest,
+            // so it is in at least one of the rarest lists
+            int required = Math.max(1, lists.length - GRAM_LENGTH * maxTypos);
+            collect(lists, lists.length - required + 1, required, maxExamined, 
+                    result.count + maxCandidates, seen, result);
+        }
+        return new Candidates(Arrays.copyOf(result.ids, result.count), result.truncated);
+    }
+
+    /**
+     * Adds the IDs from the first {@code probe} lists that are in at least
+     * {@code required} lists, skipping IDs already seen.
+     */
+    private static void collect(Postings[] lists, int probe, int required, int maxExamined, int maxCandidates,
+            Postings seen, CandidateBuffer result) {
+        int examined = 0;
+        for (int i = 0; i < probe && i < lists.length; i++) {
+            long[] ids = lists[i].toArray(maxExamined - examined);
+            for (long id : ids) {
+                if (!seen.add(id)) {
+                    continue;
+                }
+                // Count the other lists holding the ID, giving up once 'required' is out of reach
+                int shared = 0;
+                for (int j = 0; j < lists.length && shared + (lists.length - j) >= required; j++) {
+                    if (j == i || lists[j].contains(id)) {
+                        shared++;
+                    }
+                }
+                if (shared >= required) {
+                    result.add(id);
+                    if (result.count >= maxCandidates) {
+                        result.truncated = true;
+                        return;
+                    }
+                }
+            }
+            examined += ids.length;
+            if (examined >= maxExamined) {
+                result.truncated = true;
+                return;
+            }
+        }
+    }
+
+    private void addPosting(long gram, long id) {
+        Postings postings = grams.get(gram);
+        if (postings == null) {
+            postings = grams.computeIfAbsent(gram, key -> new Postings());
+        }
+        postings.add(id);
+    }
+
+    private void removePosting(long gram, long id) {
+        // Emptied sets stay mapped, so an add can never land in a set that was just dropped
+        Postings postings = grams.get(gram);
+        if (postings != null) {
+            postings.remove(id);
+        }
+    }
+
+    /**
+     * Returns the sorted, distinct trigrams of a user's name and email.
+     */
+    private static long[] gramsOf(User user) {
+        String name = user.getName() != null ? normalize(user.getName()) : "";
+        String email = user.getEmail() != null ? normalize(user.getEmail()) : "";
+        long[] nameGrams = gramsOf(name);
+        long[] emailGrams = gramsOf(email);
+        long[] all = Arrays.copyOf(nameGrams, nameGrams.length + emailGrams.length);
+        System.arraycopy(emailGrams, 0, all, nameGrams.length, emailGrams.length);
+        return distinct(all);
+    }
+
+    static long[] gramsOf(String text) {
+        if (text.length() < GRAM_LENGTH) {
+            return new long[0];
+        }
+        long[] result = new long[text.length() - GRAM_LENGTH + 1];
+        for (int i = 0; i < result.length; i++) {
+            // Spread so that Long.hashCode keeps the first and last characters of
+            // ASCII trigrams apart, instead of folding them onto each other
+            result[i] = ((long) text.charAt(i) << 40) | ((long) text.charAt(i + 1) << 20) | text.charAt(i + 2);
+        }
+        return distinct(result);
+    }
+
+    private static long[] distinct(long[] values) {
+        Arrays.sort(values);
+        int unique = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (unique == 0 || values[unique - 1] != values[i]) {
+                values[unique++] = values[i];
+            }
+        }
+        return unique == values.length ? values : Arrays.copyOf(values, unique);
+    }
+
+    /**
+     * Returns how many typos a query may contain: none for short queries, and never
+     * so many that a match could share no trigram with the query.
+     */
+    static int maxTyposFor(String query) {
+        int typos = query.length() >= 10 ? 2 : query.length() >= 6 ? 1 : 0;
+        return Math.min(typos, (gramsOf(query).length - 1) / GRAM_LENGTH);
+    }
+
+    static String normalize(String text) {
+        return text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the fewest edits that turn the query into some substring of the text,
+     * or {@code maxTypos + 1} if that takes more than {@code maxTypos} edits.
+     */
+    static int substringDistance(String query, String text, int maxTypos) {
+        if (text.contains(query)) {
+            return 0;
+        }
+        if (maxTypos == 0) {
+            return 1;
+        }
+
+        // Edit distance where the match may start and end anywhere in the text
+        int[] previous = new int[query.length() + 1];
+        int[] current = new int[query.length() + 1];
+        for (int i = 0; i <= query.length(); i++) {
+            previous[i] = i;
+        }
+        int best = previous[query.length()];
+        for (int j = 1; j <= text.length(); j++) {
+            current[0] = 0;
+            char c = text.charAt(j - 1);
+            for (int i = 1; i <= query.length(); i++) {
+                int substitution = previous[i - 1] + (query.charAt(i - 1) == c ? 0 : 1);
+                current[i] = Math.min(substitution, Math.min(previous[i], current[i - 1]) + 1);
+            }
+            best = Math.min(best, current[query.length()]);
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(best, maxTypos + 1);
+    }
+
+    private static final class CandidateBuffer {
+        private long[] ids = new long[16];
+        private int count;
+        private boolean truncated;
+
+        private void add(long id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+    }
+
+    static final class Candidates {
+        final long[] ids;
+        /** True when the search stopped before examining every posting that could match. */
+        final boolean truncated;
+
+        private Candidates(long[] ids, boolean truncated) {
+            this.ids = ids;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * Sorted set of IDs, split into blocks of at most {@link #BLOCK_CAPACITY} so an
+     * insert only ever shifts one small block. New IDs mostly arrive in ascending
+     * order and land at the end of the last block, which stays in cache. Instances
+     * are shared between threads, so every access is synchronized.
+     */
+    private static final class Postings {
+        private static final Postings EMPTY = new Postings();
+        private static final int BLOCK_CAPACITY = 256;
+
+        private long[][] blocks = { new long[2] };
+        // First ID of each block, kept apart so finding a block touches one array
+        private long[] firsts = new long[1];
+        private int[] counts = new int[1];
+        private int blockCount = 1;
+        private int size;
+
+        synchronized boolean add(long id) {
+            int b = blockOf(id);
+            long[] block = blocks[b];
+            int count = counts[b];
+            int position = Arrays.binarySearch(block, 0, count, id);
+            if (position >= 0) {
+                return false;
+            }
+            position = -position - 1;
+
+            if (count == block.length) {
+                if (block.length < BLOCK_CAPACITY) {
+                    block = blocks[b] = Arrays.copyOf(block, block.length * 2);
+                } else if (b == blockCount - 1 && position == count) {
+                    // Appending past the last full block: start a new one, leaving this one full
+                    insertBlock(b + 1, new long[BLOCK_CAPACITY], 0);
+                    b++;
+                    block = blocks[b];
+                    count = 0;
+                    position = 0;
+                } else {
+                    int half = count / 2;
+                    long[] upper = new long[BLOCK_CAPACITY];
+                    System.arraycopy(block, half, upper, 0, count - half);
+                    insertBlock(b + 1, upper, count - half);
+                    firsts[b + 1] = upper[0];
+                    counts[b] = half;
+                    if (position > half) {
+                        b++;
+                        block = upper;
+                        position -= half;
+                    }
+                    count = counts[b];
+                }
+            }
+
+            System.arraycopy(block, position, block, position + 1, count - position);
+            block[position] = id;
+            counts[b] = count + 1;
+            if (position == 0) {
+                firsts[b] = id;
+            }
+            size++;
+            return true;
+        }
+
+        synchronized boolean contains(long id) {
+            int b = blockOf(id);
+            return Arrays.binarySearch(blocks[b], 0, counts[b], id) >= 0;
+        }
+
+        synchronized void remove(long id) {
+            int b = blockOf(id);
+            long[] block = blocks[b];
+            int count = counts[b];
+            int position = Arrays.binarySearch(block, 0, count, id);
+            if (position < 0) {
+                return;
+            }
+
+            System.arraycopy(block, position + 1, block, position, count - position - 1);
+            counts[b] = count - 1;
+            size--;
+            if (counts[b] == 0 && blockCount > 1) {
+                System.arraycopy(blocks, b + 1, blocks, b, blockCount - b - 1);
+                System.arraycopy(firsts, b + 1, firsts, b, blockCount - b - 1);
+                System.arraycopy(counts, b + 1, counts, b, blockCount - b - 1);
+                blocks[--blockCount] = null;
+            } else if (position == 0 && counts[b] > 0) {
+                firsts[b] = block[0];
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Copies up to {@code max} of the lowest IDs out of the set, in ascending order.
+         */
+        synchronized long[] toArray(int max) {
+            long[] result = new long[Math.min(size, max)];
+            int copied = 0;
+            for (int b = 0; b < blockCount && copied < result.length; b++) {
+                int length = Math.min(counts[b], result.length - copied);
+                System.arraycopy(blocks[b], 0, result, copied, length);
+                copied += length;
+            }
+            return result;
+        }
+
+        /**
+         * Returns the last block whose first ID is not above the given one, or the first block.
+         */
+        private int blockOf(long id) {
+            if (firsts[blockCount - 1] <= id) {
+                // Ascending inserts and recent IDs all end up in the last block
+                return blockCount - 1;
+            }
+            int low = 1;
+            int high = blockCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (firsts[middle] <= id) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low - 1;
+        }
+
+        private void insertBlock(int index, long[] block, int count) {
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+                firsts = Arrays.copyOf(firsts, blockCount * 2);
+                counts = Arrays.copyOf(counts, blockCount * 2);
+            }
+            System.arraycopy(blocks, index, blocks, index + 1, blockCount - index);
+            System.arraycopy(firsts, index, firsts, index + 1, blockCount - index);
+            System.arraycopy(counts, index, counts, index + 1, blockCount - index);
+            blocks[index] = block;
+            counts[index] = count;
+            blockCount++;
+        }
+    }
+}
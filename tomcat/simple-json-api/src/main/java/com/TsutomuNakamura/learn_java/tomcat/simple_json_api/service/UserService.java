@@ -1,12 +1,29 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.service;
 
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BatchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BulkImportResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.Page;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.SearchResult;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserPatch;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserQuery;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserChangeListener;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.UserNotFoundException;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.VersionConflictException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.CursorUtil;
 import java.util.List;
 
 public class UserService {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int DEFAULT_SEARCH_LIMIT = 20;
+    public static final int MAX_SEARCH_LIMIT = 100;
+    public static final int MIN_SEARCH_QUERY_LENGTH = 3;
+    public static final int MAX_SEARCH_QUERY_LENGTH = 64;
+    
     private final UserRepository userRepository;
     
     public UserService() {
@@ -18,46 +35,227 @@ public class UserService {
         this.userRepository = userRepository;
     }
     
+    /**
+     * Registers a listener that sees every user write, see {@link UserChangeListener}.
+     */
+    public void addChangeListener(UserChangeListener listener) {
+        UserRepository.addChangeListener(listener);
+    }
+    
+    public void removeChangeListener(UserChangeListener listener) {
+        UserRepository.removeChangeListener(listener);
+    }
+    
     public List<User> getAllUsers() {
         return userRepository.findAll();
     }
     
+    /**
+     * Returns the repository version, which changes whenever any user changes.
+     */
+    public long getVersion() {
+        return userRepository.getVersion();
+    }
+    
+    public Page<User> getUsersPage(String cursor, Integer limit) throws InvalidDataException {
+        return getUsersPage(new UserQuery(null, null, null), cursor, limit);
+    }
+    
+    /**
+     * Returns every user matching the query, in ID order.
+     */
+    public List<User> findUsers(UserQuery query) throws InvalidDataException {
+        validateQuery(query);
+        return userRepository.findMatching(query, null, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Returns one page of the users matching the query, in ID order.
+     */
+    public Page<User> getUsersPage(UserQuery query, String cursor, Integer limit) throws InvalidDataException {
+        validateQuery(query);
+        int pageSize = limit != null ? limit : DEFAULT_PAGE_SIZE;
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidDataException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        
+        Long afterId = cursor != null ? CursorUtil.decode(cursor) : null;
+        // Fetch one extra row to learn whether another page follows
+        List<User> users = userRepository.findMatching(query, afterId, pageSize + 1);
+        String nextCursor = null;
+        if (users.size() > pageSize) {
+            users = users.subList(0, pageSize);
+            nextCursor = CursorUtil.encode(users.get(pageSize - 1).getId());
+        }
+        return new Page<>(users, nextCursor, pageSize);
+    }
+    
+    /**
+     * Searches user names and emails for the query, best matches first.
+     */
+    public SearchResult<User> searchUsers(String query, Integer limit) throws InvalidDataException {
+        String trimmed = query != null ? query.trim() : "";
+        if (trimmed.length() < MIN_SEARCH_QUERY_LENGTH || trimmed.length() > MAX_SEARCH_QUERY_LENGTH) {
+            throw new InvalidDataException("Search query must be between " + MIN_SEARCH_QUERY_LENGTH 
+                    + " and " + MAX_SEARCH_QUERY_LENGTH + " characters");
+        }
+        
+        int resultSize = limit != null ? limit : DEFAULT_SEARCH_LIMIT;
+        if (resultSize <= 0 || resultSize > MAX_SEARCH_LIMIT) {
+            throw new InvalidDataException("Limit must be between 1 and " + MAX_SEARCH_LIMIT);
+        }
+        return userRepository.search(trimmed, resultSize);
+    }
+    
     public User getUserById(Long id) throws UserNotFoundException, InvalidDataException {
         if (id == null || id <= 0) {
             throw new InvalidDataException("Invalid user ID");
         }
         
         return userRepository.findById(id)
-                .orElseThrow(() -> new UserNotFoundException("User not found with ID: " + id));
+                .orElseThrow(() -> new UserNotFoundException(id));
     }
     
-    public User createUser(User user) throws InvalidDataException {
+    /**
+     * Looks up users by ID. IDs with no user are reported as missing rather than
+     * failing the whole lookup.
+     * @param ids positive IDs, without repeats
+     */
+    public BatchResult<User> getUsersByIds(List<Long> ids) throws InvalidDataException {
+        if (ids.isEmpty()) {
+            throw new InvalidDataException("At least one user ID is required");
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            if (id == null || id <= 0) {
+                throw new InvalidDataException("Invalid user ID");
+            }
+        }
+        return userRepository.findAllById(ids);
+    }
+    
+    public User getUserByEmail(String email) throws UserNotFoundException, InvalidDataException {
+        if (email == null || email.trim().isEmpty() || !isValidEmail(email)) {
+            throw new InvalidDataException("Invalid email format");
+        }
+        
+        return userRepository.findByEmail(email)
+                .orElseThrow(() -> new UserNotFoundException("User not found with email: " + email));
+    }
+    
+    public User createUser(User user) throws InvalidDataException, DuplicateEmailException {
         validateUser(user);
-        user.setId(null); // Ensure ID is null for new users
-        return userRepository.save(user);
+        return userRepository.save(user.withId(null)); // Ensure ID is null for new users
     }
     
-    public User updateUser(Long id, User user) throws UserNotFoundException, InvalidDataException {
+    /**
+     * Replaces a user's fields in one atomic step.
+     * @param expectedVersion version the user must still be at, or
+     *                        {@link UserRepository#ANY_VERSION} to update unconditionally
+     */
+    public User updateUser(Long id, User user, long expectedVersion) throws UserNotFoundException, 
+            InvalidDataException, DuplicateEmailException, VersionConflictException {
         if (id == null || id <= 0) {
             throw new InvalidDataException("Invalid user ID");
         }
         
         if (!userRepository.existsById(id)) {
-            throw new UserNotFoundException("User not found with ID: " + id);
+            throw new UserNotFoundException(id);
         }
         
         validateUser(user);
-        user.setId(id);
-        return userRepository.save(user);
+        User updated = userRepository.update(id, user, expectedVersion);
+        if (updated == null) {
+            // Deleted since the check above
+            throw new UserNotFoundException(id);
+        }
+        return updated;
     }
     
-    public void deleteUser(Long id) throws UserNotFoundException, InvalidDataException {
+    /**
+     * Changes only the fields the patch supplies, in one atomic step on the user as
+     * it is at that moment. Only the supplied fields are validated. An empty patch
+     * changes nothing and returns the user as it is.
+     * @param expectedVersion version the user must still be at, or
+     *                        {@link UserRepository#ANY_VERSION} to patch unconditionally
+     */
+    public User patchUser(Long id, UserPatch patch, long expectedVersion) throws UserNotFoundException, 
+            InvalidDataException, DuplicateEmailException, VersionConflictException {
         if (id == null || id <= 0) {
             throw new InvalidDataException("Invalid user ID");
         }
         
-        if (!userRepository.deleteById(id)) {
-            throw new UserNotFoundException("User not found with ID: " + id);
+        if (patch.isEmpty()) {
+            User user = getUserById(id);
+            if (expectedVersion != UserRepository.ANY_VERSION && user.getVersion() != expectedVersion) {
+                throw new VersionConflictException("User has been modified since it was read");
+            }
+            return user;
+        }
+        
+        if (patch.hasName()) {
+            validateName(patch.getName());
+        }
+        if (patch.hasEmail()) {
+            validateEmail(patch.getEmail());
+        }
+        if (patch.hasAge()) {
+            if (patch.getAge() == null) {
+                throw new InvalidDataException("User age is required");
+            }
+            validateAge(patch.getAge());
+        }
+        
+        User patched = userRepository.patch(id, patch, expectedVersion);
+        if (patched == null) {
+            throw new UserNotFoundException(id);
+        }
+        return patched;
+    }
+    
+    /**
+     * Validates and upserts one batch of a bulk import. Users with an ID replace the
+     * stored user (or are created under that ID); users without one get a new ID.
+     * @param batch users to import
+     * @param lines source line of each user, used for error reporting
+     * @param result summary to record the outcome of every user in
+     */
+    public void importUsers(List<User> batch, long[] lines, BulkImportResult result) {
+        for (int i = 0; i < batch.size(); i++) {
+            User user = batch.get(i);
+            try {
+                if (user != null && user.getId() != null && user.getId() <= 0) {
+                    throw new InvalidDataException("Invalid user ID");
+                }
+                validateUser(user);
+                
+                boolean existed = userRepository.existsById(user.getId());
+                userRepository.upsert(user, false);
+                if (existed) {
+                    result.recordUpdated();
+                } else {
+                    result.recordCreated();
+                }
+            } catch (InvalidDataException | DuplicateEmailException e) {
+                result.recordFailed(lines[i], e.getMessage());
+            }
+        }
+        // One durable flush for the whole batch instead of one per user
+        userRepository.sync();
+    }
+    
+    /**
+     * @param expectedVersion version the user must still be at, or
+     *                        {@link UserRepository#ANY_VERSION} to delete unconditionally
+     */
+    public void deleteUser(Long id, long expectedVersion) 
+            throws UserNotFoundException, InvalidDataException, VersionConflictException {
+        if (id == null || id <= 0) {
+            throw new InvalidDataException("Invalid user ID");
+        }
+        
+        if (!userRepository.deleteById(id, expectedVersion)) {
+            throw new UserNotFoundException(id);
         }
     }
     
@@ -66,23 +264,47 @@ public class UserService {
             throw new InvalidDataException("User data cannot be null");
         }
         
-        if (user.getName() == null || user.getName().trim().isEmpty()) {
+        validateName(user.getName());
+        validateEmail(user.getEmail());
+        validateAge(user.getAge());
+    }
+    
+    private void validateName(String name) throws InvalidDataException {
+        if (name == null || name.trim().isEmpty()) {
             throw new InvalidDataException("User name is required");
         }
-        
-        if (user.getEmail() == null || user.getEmail().trim().isEmpty()) {
+    }
+    
+    private void validateEmail(String email) throws InvalidDataException {
+        if (email == null || email.trim().isEmpty()) {
             throw new InvalidDataException("User email is required");
         }
         
-        if (!isValidEmail(user.getEmail())) {
+        if (!isValidEmail(email)) {
             throw new InvalidDataException("Invalid email format");
         }
-        
-        if (user.getAge() < 0 || user.getAge() > 150) {
+    }
+    
+    private void validateAge(int age) throws InvalidDataException {
+        if (age < 0 || age > 150) {
             throw new InvalidDataException("User age must be between 0 and 150");
         }
     }
     
+    private void validateQuery(UserQuery query) throws InvalidDataException {
+        if (query.getMinAge() != null && (query.getMinAge() < 0 || query.getMinAge() > 150)) {
+            throw new InvalidDataException("minAge must be between 0 and 150");
+        }
+        
+        if (query.getMaxAge() != null && (query.getMaxAge() < 0 || query.getMaxAge() > 150)) {
+            throw new InvalidDataException("maxAge must be between 0 and 150");
+        }
+        
+        if (query.getMinAge() != null && query.getMaxAge() != null && query.getMinAge() > query.getMaxAge()) {
+            throw new InvalidDataException("minAge must not be greater than maxAge");
+        }
+    }
+    
     private boolean isValidEmail(String email) {
         return email.contains("@") && email.contains(".");
     }
@@ -0,0 +1,58 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps every user as a regular object in a concurrent hash map. Fastest to read,
+ * but each user costs several heap objects.
+ */
+public class HeapUserStore implements UserStore {
+    
+    private final ConcurrentMap<Long, User> users = new ConcurrentHashMap<>();
+    
+    @Override
+    public User get(Long id) {
+        return users.get(id);
+    }
+    
+    @Override
+    public boolean containsKey(Long id) {
+        return users.containsKey(id);
+    }
+    
+    @Override
+    public User computeIfAbsent(Long id, Function<Long, User> mappingFunction) {
+        return users.computeIfAbsent(id, mappingFunction);
+    }
+    
+    @Override
+    public User computeIfPresent(Long id, BiFunction<Long, User, User> remappingFunction) {
+        return users.computeIfPresent(id, remappingFunction);
+    }
+    
+    @Override
+    public void put(User user) {
+        users.put(user.getId(), user);
+    }
+    
+    @Override
+    public void clear() {
+        users.clear();
+    }
+    
+    @Override
+    public int size() {
+        return users.size();
+    }
+    
+    @Override
+    public void forEach(Consumer<User> action) {
+        users.values().forEach(action);
+    }
+}
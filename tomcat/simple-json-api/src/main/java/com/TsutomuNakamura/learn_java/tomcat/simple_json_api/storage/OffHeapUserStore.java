@@ -0,0 +1,535 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps users outside the Java heap, in columnar segments of direct buffers.
+ *
+ * Each row is a slot in a set of fixed-size column segments: ID, version and age
+ * are primitive columns, names and the local part of emails are references into
+ * an append-only area of length-prefixed UTF-8 strings, and email domains are
+ * dictionary-encoded, since most users share a handful of domains. The ID to slot
+ * index is an open-addressing hash table that lives off-heap as well, so the heap
+ * holds only the domain dictionary and a few arrays of segment buffers, however
+ * many users are stored. {@link User} objects are only created when a row is read.
+ *
+ * Writes take an exclusive lock, so compute functions are atomic with respect to
+ * every other write. Reads are optimistic and only fall back to a shared lock when
+ * a write got in the way. Strings replaced by updates are reclaimed by compacting
+ * the string area once more than half of it is garbage.
+ *
+ * The lock covers the whole store, because the ID index, the free slots and the
+ * string area are shared by every row, so the store takes one write at a time.
+ * The repository's compute functions also update its indexes, append to the
+ * write-ahead log and notify change listeners, all while holding it, and every
+ * optimistic read that overlaps a write retries behind it. Use this store for
+ * read-mostly tables too large for the heap; under write-heavy load the
+ * {@link HeapUserStore}, which writes different users in parallel, is the better
+ * choice.
+ */
+public class OffHeapUserStore implements UserStore {
+
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int ROWS_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = ROWS_PER_SEGMENT - 1;
+    private static final int STRING_CHUNK_BYTES = 8 << 20;
+
+    // Index entries are an 8-byte ID followed by a 4-byte slot; ID 0 marks a free entry
+    private static final int INDEX_ENTRY_BYTES = 12;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 10;
+    private static final long NULL_REF = -1L;
+    private static final int NO_DOMAIN = -1;
+
+    private final StampedLock lock = new StampedLock();
+
+    // One buffer per column per segment; a row with ID 0 is free
+    private final List<ByteBuffer> ids = new ArrayList<>();
+    private final List<ByteBuffer> versions = new ArrayList<>();
+    private final List<ByteBuffer> ages = new ArrayList<>();
+    private final List<ByteBuffer> nameRefs = new ArrayList<>();
+    private final List<ByteBuffer> emailLocalRefs = new ArrayList<>();
+    private final List<ByteBuffer> emailDomains = new ArrayList<>();
+
+    // String references are the chunk number in the high 32 bits and the offset in the low 32 bits
+    private List<ByteBuffer> stringChunks = new ArrayList<>();
+    private long stringBytes;
+    private long garbageStringBytes;
+
+    // Domain dictionary; readers only ever see the array, which is replaced on growth
+    private final Map<String, Integer> domainCodes = new HashMap<>();
+    private volatile String[] domains = new String[16];
+
+    private ByteBuffer index = allocateIndex(INITIAL_INDEX_CAPACITY);
+    private int indexCapacity = INITIAL_INDEX_CAPACITY;
+
+    private int[] freeSlots = new int[64];
+    private int freeSlotCount;
+    private int highWaterMark;
+    private volatile int size;
+
+    @Override
+    public User get(Long id) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int slot = findSlot(id);
+                User user = slot < 0 ? null : readRow(slot);
+                if (lock.validate(stamp)) {
+                    return user;
+                }
+            } catch (RuntimeException e) {
+                // Read a row while it was being rewritten; retry under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            int slot = findSlot(id);
+            return slot < 0 ? null : readRow(slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Long id) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = findSlot(id) >= 0;
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // Index was resized underneath us; retry under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return findSlot(id) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public User computeIfAbsent(Long id, Function<Long, User> mappingFunction) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(id);
+            if (slot >= 0) {
+                return readRow(slot);
+            }
+            User user = mappingFunction.apply(id);
+            if (user != null) {
+                insertRow(id, user);
+            }
+            return user;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public User computeIfPresent(Long id, BiFunction<Long, User, User> remappingFunction) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(id);
+            if (slot < 0) {
+                return null;
+            }
+            User replacement = remappingFunction.apply(id, readRow(slot));
+            if (replacement == null) {
+                deleteRow(id, slot);
+            } else {
+                writeRow(slot, id, replacement);
+            }
+            return replacement;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void put(User user) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(user.getId());
+            if (slot >= 0) {
+                writeRow(slot, user.getId(), user);
+            } else {
+                insertRow(user.getId(), user);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            // Dropping the buffers hands their memory back once they are collected
+            ids.clear();
+            versions.clear();
+            ages.clear();
+            nameRefs.clear();
+            emailLocalRefs.clear();
+            emailDomains.clear();
+            stringChunks = new ArrayList<>();
+            stringBytes = 0;
+            garbageStringBytes = 0;
+            domainCodes.clear();
+            domains = new String[16];
+            index = allocateIndex(INITIAL_INDEX_CAPACITY);
+            indexCapacity = INITIAL_INDEX_CAPACITY;
+            freeSlots = new int[64];
+            freeSlotCount = 0;
+            highWaterMark = 0;
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Walks one segment at a time, holding the shared lock only while the segment's
+     * rows are copied out, so a full scan never blocks writers for long.
+     */
+    @Override
+    public void forEach(Consumer<User> action) {
+        List<User> batch = new ArrayList<>();
+        for (int segment = 0; ; segment++) {
+            long stamp = lock.readLock();
+            try {
+                if (segment >= ids.size()) {
+                    break;
+                }
+                ByteBuffer idColumn = ids.get(segment);
+                int rows = Math.min(ROWS_PER_SEGMENT, highWaterMark - (segment << SEGMENT_SHIFT));
+                for (int row = 0; row < rows; row++) {
+                    if (idColumn.getLong(row * Long.BYTES) != 0) {
+                        batch.add(readRow((segment << SEGMENT_SHIFT) | row));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            batch.forEach(action);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Returns the number of bytes held outside the heap.
+     */
+    public long getOffHeapBytes() {
+        long stamp = lock.readLock();
+        try {
+            long bytes = (long) ids.size() * ROWS_PER_SEGMENT * (Long.BYTES * 4 + Integer.BYTES * 2);
+            for (ByteBuffer chunk : stringChunks) {
+                bytes += chunk.capacity();
+            }
+            return bytes + index.capacity();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ---- Rows ----
+
+    private User readRow(int slot) {
+        int segment = slot >>> SEGMENT_SHIFT;
+        int row = slot & SEGMENT_MASK;
+
+        String name = readString(nameRefs.get(segment).getLong(row * Long.BYTES));
+        String email = readString(emailLocalRefs.get(segment).getLong(row * Long.BYTES));
+        int domain = emailDomains.get(segment).getInt(row * Integer.BYTES);
+        if (domain != NO_DOMAIN) {
+            email = email + '@' + domains[domain];
+        }
+
+        return new User(ids.get(segment).getLong(row * Long.BYTES), name, email,
+                ages.get(segment).getInt(row * Integer.BYTES), versions.get(segment).getLong(row * Long.BYTES));
+    }
+
+    private void insertRow(long id, User user) {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            slot = highWaterMark;
+            if ((slot >>> SEGMENT_SHIFT) >= ids.size()) {
+                addSegment();
+            }
+            highWaterMark++;
+        }
+
+        // Clear the string references first, so writeRow has nothing to release
+        int segment = slot >>> SEGMENT_SHIFT;
+        int row = slot & SEGMENT_MASK;
+        nameRefs.get(segment).putLong(row * Long.BYTES, NULL_REF);
+        emailLocalRefs.get(segment).putLong(row * Long.BYTES, NULL_REF);
+
+        writeRow(slot, id, user);
+        indexPut(id, slot);
+        size++;
+    }
+
+    private void writeRow(int slot, long id, User user) {
+        int segment = slot >>> SEGMENT_SHIFT;
+        int row = slot & SEGMENT_MASK;
+
+        String email = user.getEmail();
+        String local = email;
+        int domain = NO_DOMAIN;
+        int at = email == null ? -1 : email.lastIndexOf('@');
+        if (at >= 0) {
+            local = email.substring(0, at);
+            domain = domainCode(email.substring(at + 1));
+        }
+
+        ByteBuffer names = nameRefs.get(segment);
+        ByteBuffer locals = emailLocalRefs.get(segment);
+        releaseString(names.getLong(row * Long.BYTES));
+        releaseString(locals.getLong(row * Long.BYTES));
+        names.putLong(row * Long.BYTES, appendString(user.getName()));
+        locals.putLong(row * Long.BYTES, appendString(local));
+        emailDomains.get(segment).putInt(row * Integer.BYTES, domain);
+        ages.get(segment).putInt(row * Integer.BYTES, user.getAge());
+        versions.get(segment).putLong(row * Long.BYTES, user.getVersion());
+        ids.get(segment).putLong(row * Long.BYTES, id);
+
+        if (garbageStringBytes > STRING_CHUNK_BYTES && garbageStringBytes * 2 > stringBytes) {
+            compactStrings();
+        }
+    }
+
+    private void deleteRow(long id, int slot) {
+        int segment = slot >>> SEGMENT_SHIFT;
+        int row = slot & SEGMENT_MASK;
+
+        ByteBuffer names = nameRefs.get(segment);
+        ByteBuffer locals = emailLocalRefs.get(segment);
+        releaseString(names.getLong(row * Long.BYTES));
+        releaseString(locals.getLong(row * Long.BYTES));
+        names.putLong(row * Long.BYTES, NULL_REF);
+        locals.putLong(row * Long.BYTES, NULL_REF);
+        ids.get(segment).putLong(row * Long.BYTES, 0L);
+
+        indexRemove(id);
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        size--;
+    }
+
+    private void addSegment() {
+        ids.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Long.BYTES));
+        versions.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Long.BYTES));
+        ages.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Integer.BYTES));
+        nameRefs.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Long.BYTES));
+        emailLocalRefs.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Long.BYTES));
+        emailDomains.add(ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * Integer.BYTES));
+    }
+
+    private int domainCode(String domain) {
+        Integer code = domainCodes.get(domain);
+        if (code != null) {
+            return code;
+        }
+
+        int next = domainCodes.size();
+        String[] current = domains;
+        if (next == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[next] = domain;
+        // Publish the entry before any row can refer to it
+        domains = current;
+        domainCodes.put(domain, next);
+        return next;
+    }
+
+    // ---- Strings ----
+
+    private String readString(long ref) {
+        if (ref == NULL_REF) {
+            return null;
+        }
+        ByteBuffer chunk = stringChunks.get((int) (ref >>> 32));
+        int offset = (int) ref;
+        int length = chunk.getInt(offset);
+        if (length < 0 || length > chunk.capacity() - offset - Integer.BYTES) {
+            throw new IllegalStateException("Corrupt string reference: " + ref);
+        }
+        byte[] bytes = new byte[length];
+        chunk.get(offset + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long appendString(String value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        return appendBytes(stringChunks, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long appendBytes(List<ByteBuffer> chunks, byte[] bytes) {
+        int needed = Integer.BYTES + bytes.length;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < needed) {
+            chunk = ByteBuffer.allocateDirect(Math.max(STRING_CHUNK_BYTES, needed));
+            chunks.add(chunk);
+        }
+
+        long ref = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.putInt(bytes.length);
+        chunk.put(bytes);
+        stringBytes += needed;
+        return ref;
+    }
+
+    private void releaseString(long ref) {
+        if (ref != NULL_REF) {
+            ByteBuffer chunk = stringChunks.get((int) (ref >>> 32));
+            garbageStringBytes += Integer.BYTES + chunk.getInt((int) ref);
+        }
+    }
+
+    /**
+     * Copies every live string into fresh chunks and rewrites the references.
+     */
+    private void compactStrings() {
+        List<ByteBuffer> compacted = new ArrayList<>();
+        stringBytes = 0;
+        for (int slot = 0; slot < highWaterMark; slot++) {
+            int segment = slot >>> SEGMENT_SHIFT;
+            int row = slot & SEGMENT_MASK;
+            if (ids.get(segment).getLong(row * Long.BYTES) == 0) {
+                continue;
+            }
+            moveString(nameRefs.get(segment), row * Long.BYTES, compacted);
+            moveString(emailLocalRefs.get(segment), row * Long.BYTES, compacted);
+        }
+        stringChunks = compacted;
+        garbageStringBytes = 0;
+    }
+
+    private void moveString(ByteBuffer refs, int position, List<ByteBuffer> target) {
+        long ref = refs.getLong(position);
+        if (ref == NULL_REF) {
+            return;
+        }
+        ByteBuffer chunk = stringChunks.get((int) (ref >>> 32));
+        byte[] bytes = new byte[chunk.getInt((int) ref)];
+        chunk.get((int) ref + Integer.BYTES, bytes);
+        refs.putLong(position, appendBytes(target, bytes));
+    }
+
+    // ---- ID index ----
+
+    private static ByteBuffer allocateIndex(int capacity) {
+        // Direct buffers start zeroed, so every entry starts out free
+        return ByteBuffer.allocateDirect(capacity * INDEX_ENTRY_BYTES);
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findSlot(Long id) {
+        if (id == null || id == 0) {
+            return -1;
+        }
+        ByteBuffer table = index;
+        int mask = table.capacity() / INDEX_ENTRY_BYTES - 1;
+        for (int entry = hash(id) & mask; ; entry = (entry + 1) & mask) {
+            long key = table.getLong(entry * INDEX_ENTRY_BYTES);
+            if (key == id) {
+                return table.getInt(entry * INDEX_ENTRY_BYTES + Long.BYTES);
+            }
+            if (key == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void indexPut(long id, int slot) {
+        if ((size + 1) * 10L > indexCapacity * 7L) {
+            resizeIndex(indexCapacity * 2);
+        }
+        insertEntry(index, indexCapacity - 1, id, slot);
+    }
+
+    private static void insertEntry(ByteBuffer table, int mask, long id, int slot) {
+        int entry = hash(id) & mask;
+        while (table.getLong(entry * INDEX_ENTRY_BYTES) != 0) {
+            entry = (entry + 1) & mask;
+        }
+        table.putInt(entry * INDEX_ENTRY_BYTES + Long.BYTES, slot);
+        table.putLong(entry * INDEX_ENTRY_BYTES, id);
+    }
+
+    private void resizeIndex(int capacity) {
+        ByteBuffer table = allocateIndex(capacity);
+        for (int entry = 0; entry < indexCapacity; entry++) {
+            long key = index.getLong(entry * INDEX_ENTRY_BYTES);
+            if (key != 0) {
+                insertEntry(table, capacity - 1, key, index.getInt(entry * INDEX_ENTRY_BYTES + Long.BYTES));
+            }
+        }
+        index = table;
+        indexCapacity = capacity;
+    }
+
+    /**
+     * Removes an entry by shifting later entries of the same probe run back,
+     * which keeps lookups free of tombstones.
+     */
+    private void indexRemove(long id) {
+        int mask = indexCapacity - 1;
+        int entry = hash(id) & mask;
+        while (index.getLong(entry * INDEX_ENTRY_BYTES) != id) {
+            entry = (entry + 1) & mask;
+        }
+
+        int hole = entry;
+        for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            long key = index.getLong(next * INDEX_ENTRY_BYTES);
+            if (key == 0) {
+                break;
+            }
+            int home = hash(key) & mask;
+            // Move the entry into the hole unless its home lies between the hole and itself
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                index.putLong(hole * INDEX_ENTRY_BYTES, key);
+                index.putInt(hole * INDEX_ENTRY_BYTES + Long.BYTES, index.getInt(next * INDEX_ENTRY_BYTES + Long.BYTES));
+                hole = next;
+            }
+        }
+        index.putLong(hole * INDEX_ENTRY_BYTES, 0L);
+    }
+}
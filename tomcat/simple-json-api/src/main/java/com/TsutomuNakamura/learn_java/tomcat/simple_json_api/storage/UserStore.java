@@ -0,0 +1,46 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Primary storage for users, keyed by ID.
+ * 
+ * The compute methods follow {@link java.util.concurrent.ConcurrentMap}: the
+ * function runs atomically with respect to other writes of the same ID, which is
+ * what lets the repository log a write and publish it as one step.
+ */
+public interface UserStore {
+    
+    User get(Long id);
+    
+    boolean containsKey(Long id);
+    
+    /**
+     * Stores the user returned by the function unless the ID is already taken.
+     * @return the user produced by the function, or the stored user if the ID was taken
+     */
+    User computeIfAbsent(Long id, Function<Long, User> mappingFunction);
+    
+    /**
+     * Replaces the stored user with the function's result, or removes it if the
+     * function returns null.
+     * @return the new user, or null if the ID was absent or the user was removed
+     */
+    User computeIfPresent(Long id, BiFunction<Long, User, User> remappingFunction);
+    
+    void put(User user);
+    
+    void clear();
+    
+    int size();
+    
+    /**
+     * Visits every user. Weakly consistent: writes made during the walk may or may
+     * not be seen, but users left untouched during the walk always are.
+     */
+    void forEach(Consumer<User> action);
+}
@@ -0,0 +1,78 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Content negotiation between JSON and the {@link UserBinaryCodec} format.
+ *
+ * JSON stays the default. A client gets the binary format only when its Accept
+ * header names {@link #MEDIA_TYPE} with a higher or equal quality than JSON, so
+ * browsers and other clients that accept anything are unaffected. Errors are
+ * always sent as JSON; clients tell the two apart by Content-Type.
+ */
+public class BinaryResponseUtil {
+
+    public static final String MEDIA_TYPE = "application/vnd.simple-json-api.user+binary";
+    private static final String JSON_MEDIA_TYPE = "application/json";
+
+    /**
+     * Returns whether the client prefers the binary format to JSON. Requests
+     * that do not mention it at all are turned away after one substring search.
+     */
+    public static boolean prefersBinary(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        if (accept == null || accept.indexOf("+binary") < 0) {
+            return false;
+        }
+
+        double binaryQuality = 0;
+        double jsonQuality = 0;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim();
+            double quality = quality(parts);
+            if (type.equalsIgnoreCase(MEDIA_TYPE)) {
+                binaryQuality = Math.max(binaryQuality, quality);
+            } else if (type.equalsIgnoreCase(JSON_MEDIA_TYPE) || type.equals("*/*")
+                    || type.equalsIgnoreCase("application/*")) {
+                jsonQuality = Math.max(jsonQuality, quality);
+            }
+        }
+        return binaryQuality > 0 && binaryQuality >= jsonQuality;
+    }
+
+    /**
+     * Sends a response in the binary format, written straight into the response
+     * stream.
+     */
+    public static void sendBinaryResponse(HttpServletResponse response, ApiResponse<?> data, int statusCode)
+            throws IOException {
+        response.setContentType(MEDIA_TYPE);
+        response.setStatus(statusCode);
+        JsonResponseUtil.setCorsHeaders(response);
+
+        OutputStream out = response.getOutputStream();
+        UserBinaryCodec.encode(out, data);
+    }
+
+    private static double quality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q')
+                    && parameter.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,33 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import jakarta.servlet.ServletContext;
+
+/**
+ * Reads tuning values from the context-params declared in web.xml, falling back
+ * to a default when a parameter is absent or malformed.
+ */
+public class ContextConfigUtil {
+
+    public static String getString(ServletContext context, String name, String defaultValue) {
+        String value = context.getInitParameter(name);
+        return value != null && !value.trim().isEmpty() ? value.trim() : defaultValue;
+    }
+
+    public static long getLong(ServletContext context, String name, long defaultValue) {
+        String value = context.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(ServletContext context, String name, int defaultValue) {
+        return (int) getLong(context, name, defaultValue);
+    }
+}
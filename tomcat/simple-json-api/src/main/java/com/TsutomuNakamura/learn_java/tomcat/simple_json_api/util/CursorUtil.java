@@ -0,0 +1,30 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.InvalidDataException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Encodes keyset pagination cursors. A cursor is the last ID of the previous page,
+ * wrapped in URL-safe Base64 so clients treat it as opaque.
+ */
+public class CursorUtil {
+    private static final String PREFIX = "id:";
+
+    public static String encode(long lastId) {
+        byte[] raw = (PREFIX + lastId).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    public static long decode(String cursor) throws InvalidDataException {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            if (!raw.startsWith(PREFIX)) {
+                throw new InvalidDataException("Invalid cursor");
+            }
+            return Long.parseLong(raw.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidDataException("Invalid cursor");
+        }
+    }
+}
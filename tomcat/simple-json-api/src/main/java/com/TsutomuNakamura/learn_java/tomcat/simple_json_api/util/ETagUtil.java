@@ -0,0 +1,123 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Builds strong ETags from repository versions and answers If-None-Match and If-Match.
+ * 
+ * JSON and the binary format are different bytes for the same version, so the
+ * binary representation's tag carries a {@code -b} suffix.
+ */
+public class ETagUtil {
+    // Versions restart from zero on every deployment, so tags carry the start time too
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final String BINARY_SUFFIX = "-b";
+    
+    /**
+     * Version no user is ever at, for an If-Match that cannot be met.
+     */
+    public static final long NO_VERSION = 0;
+    
+    public static String forCollection(long repositoryVersion) {
+        return "\"c" + EPOCH + "-" + repositoryVersion + "\"";
+    }
+    
+    public static String forUser(long id, long version) {
+        return "\"u" + EPOCH + "-" + id + "-" + version + "\"";
+    }
+    
+    /**
+     * Returns the tag of the representation the request is answered with: the
+     * given one for JSON, or its binary variant if the client prefers that format.
+     */
+    public static String forRepresentation(HttpServletRequest request, String etag) {
+        if (!BinaryResponseUtil.prefersBinary(request)) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + BINARY_SUFFIX + "\"";
+    }
+    
+    /**
+     * Sets the ETag header for the representation the request gets and, when the
+     * request's If-None-Match already names that tag, completes the response with
+     * 304 Not Modified. Vary is set first, since the 304 depends on Accept too.
+     * @param etag the JSON tag, from {@link #forUser} or {@link #forCollection}
+     * @return true if the response was completed and no body must be written
+     */
+    public static boolean handleConditionalGet(HttpServletRequest request, HttpServletResponse response, 
+            String etag) {
+        response.addHeader("Vary", "Accept");
+        etag = forRepresentation(request, etag);
+        response.setHeader("ETag", etag);
+        
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null || !matches(ifNoneMatch, etag)) {
+            return false;
+        }
+        
+        JsonResponseUtil.setCorsHeaders(response);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+    
+    /**
+     * Returns the version of the user that the request's If-Match asks for, to be
+     * passed on as the expected version of a conditional write.
+     * 
+     * If-Match uses strong comparison, so weak tags never match. Tags from an
+     * earlier deployment or for another user cannot match either. A list naming
+     * several versions of the user is matched against the first of them. The JSON
+     * and binary tags of a version both name that version.
+     * @return {@link UserRepository#ANY_VERSION} without If-Match or for {@code *},
+     *         otherwise the version named by the header, or {@link #NO_VERSION} if
+     *         it names none
+     */
+    public static long expectedUserVersion(HttpServletRequest request, long id) {
+        String ifMatch = request.getHeader("If-Match");
+        if (ifMatch == null) {
+            return UserRepository.ANY_VERSION;
+        }
+        
+        String prefix = "\"u" + EPOCH + "-" + id + "-";
+        for (String candidate : ifMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return UserRepository.ANY_VERSION;
+            }
+            if (tag.startsWith(prefix) && tag.endsWith("\"") && tag.length() > prefix.length() + 1) {
+                int end = tag.length() - 1;
+                if (tag.startsWith(BINARY_SUFFIX, end - BINARY_SUFFIX.length())) {
+                    end -= BINARY_SUFFIX.length();
+                }
+                try {
+                    long version = Long.parseLong(tag, prefix.length(), end, 10);
+                    return version > 0 ? version : NO_VERSION;
+                } catch (NumberFormatException e) {
+                    // Not one of our tags after all
+                }
+            }
+        }
+        return NO_VERSION;
+    }
+    
+    /**
+     * If-None-Match uses weak comparison, so a W/ prefix on the client's tag is ignored.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
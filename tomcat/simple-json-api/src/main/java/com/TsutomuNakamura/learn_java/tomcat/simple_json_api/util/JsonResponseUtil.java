@@ -1,13 +1,53 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
 
 import jakarta.servlet.http.HttpServletResponse;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class JsonResponseUtil {
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // The servlet container owns the response stream, so Jackson must never close it
+    private static final ObjectMapper objectMapper = JsonMapper.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
     
+    private static final byte[] ENVELOPE_START = "{\"success\":true,\"message\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENVELOPE_DATA = ",\"data\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENVELOPE_TIMESTAMP = ",\"timestamp\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_START = "{\"success\":false,\"message\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_END = ",\"data\":null,\"timestamp\":".getBytes(StandardCharsets.UTF_8);
+    
+    // Only constant messages are kept, so these hold a fixed set of entries
+    private static final ConcurrentMap<String, byte[]> encodedErrors = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, byte[]> encodedErrorPrefixes = new ConcurrentHashMap<>();
+    
+    /**
+     * Writes the JSON of a response's data straight to the response stream.
+     */
+    @FunctionalInterface
+    public interface JsonBody {
+        void writeTo(JsonWriter out) throws IOException;
+    }
+    
+    /**
+     * Serializes data as UTF-8 JSON straight into the response output stream.
+     * 
+     * An ApiResponse carrying a user or nothing is written by {@link JsonWriter}
+     * into a pooled buffer, without reflection or garbage. Anything else goes
+     * through Jackson. Either way no intermediate String is built: the encoder
+     * hands each full buffer to the container, so a response of any size is sent
+     * with constant extra memory.
+     */
     public static void sendJsonResponse(HttpServletResponse response, Object data, int statusCode) 
             throws IOException {
         response.setContentType("application/json");
@@ -15,19 +55,163 @@ public class JsonResponseUtil {
         response.setStatus(statusCode);
         
         // Enable CORS for browser testing
-        response.setHeader("Access-Control-Allow-Origin", "*");
-        response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        setCorsHeaders(response);
         
-        PrintWriter out = response.getWriter();
-        String jsonString = objectMapper.writeValueAsString(data);
-        out.print(jsonString);
+        OutputStream out = response.getOutputStream();
+        if (data instanceof ApiResponse) {
+            ApiResponse<?> apiResponse = (ApiResponse<?>) data;
+            Object payload = apiResponse.getData();
+            if (payload == null || payload instanceof User) {
+                try (JsonWriter writer = JsonWriter.acquire(out)) {
+                    writer.writeRaw(apiResponse.isSuccess() ? ENVELOPE_START : ERROR_START);
+                    writer.writeString(apiResponse.getMessage());
+                    writer.writeRaw(ENVELOPE_DATA);
+                    if (payload == null) {
+                        writer.writeString(null);
+                    } else {
+                        writer.writeUser((User) payload);
+                    }
+                    writer.writeRaw(ENVELOPE_TIMESTAMP);
+                    writer.writeLong(apiResponse.getTimestamp());
+                    writer.write('}');
+                    writer.flush();
+                }
+                return;
+            }
+        }
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            objectMapper.writeValue(generator, data);
+        }
         out.flush();
     }
     
+    /**
+     * Sends a successful ApiResponse whose data is written by the given body,
+     * typically from pre-encoded fragments. The bytes are the same as
+     * {@link #sendJsonResponse(HttpServletResponse, Object, int)} would produce for
+     * {@code ApiResponse.success(message, data)}.
+     */
+    public static void sendJsonResponse(HttpServletResponse response, String message, JsonBody data, 
+            int statusCode) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(statusCode);
+        setCorsHeaders(response);
+        
+        try (JsonWriter writer = JsonWriter.acquire(response.getOutputStream())) {
+            writer.writeRaw(ENVELOPE_START);
+            writer.writeString(message);
+            writer.writeRaw(ENVELOPE_DATA);
+            data.writeTo(writer);
+            writer.writeRaw(ENVELOPE_TIMESTAMP);
+            writer.writeLong(System.currentTimeMillis());
+            writer.write('}');
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Sends an error ApiResponse without going through Jackson. The message is
+     * encoded on every call, so it may carry anything, such as a value taken from
+     * the request. The bytes are the same as
+     * {@link #sendJsonResponse(HttpServletResponse, Object, int)} would produce for
+     * {@code ApiResponse.error(message)}.
+     */
+    public static void sendErrorResponse(HttpServletResponse response, String message, int statusCode) 
+            throws IOException {
+        try (JsonWriter writer = startError(response, statusCode)) {
+            writer.writeRaw(ERROR_START);
+            writer.writeString(message);
+            writer.writeRaw(ERROR_END);
+            writer.writeLong(System.currentTimeMillis());
+            writer.write('}');
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Sends an error ApiResponse with a fixed message. Everything but the
+     * timestamp is encoded once per message and reused, so repeated errors cost
+     * little more than copying their bytes.
+     * @param message a constant; every distinct message is kept encoded
+     */
+    public static void sendFixedErrorResponse(HttpServletResponse response, String message, int statusCode) 
+            throws IOException {
+        byte[] encoded = encodedErrors.get(message);
+        if (encoded == null) {
+            encoded = concat(ERROR_START, toJsonBytes(message), ERROR_END);
+            encodedErrors.putIfAbsent(message, encoded);
+        }
+        
+        try (JsonWriter writer = startError(response, statusCode)) {
+            writer.writeRaw(encoded);
+            writer.writeLong(System.currentTimeMillis());
+            writer.write('}');
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Sends an error ApiResponse whose message is a fixed prefix followed by a
+     * number, such as an ID, without building the message.
+     * @param messagePrefix a constant; every distinct prefix is kept encoded
+     */
+    public static void sendErrorResponse(HttpServletResponse response, String messagePrefix, long value, 
+            int statusCode) throws IOException {
+        byte[] encoded = encodedErrorPrefixes.get(messagePrefix);
+        if (encoded == null) {
+            byte[] quoted = toJsonBytes(messagePrefix);
+            // Leave the string open for the number
+            encoded = concat(ERROR_START, Arrays.copyOf(quoted, quoted.length - 1));
+            encodedErrorPrefixes.putIfAbsent(messagePrefix, encoded);
+        }
+        
+        try (JsonWriter writer = startError(response, statusCode)) {
+            writer.writeRaw(encoded);
+            writer.writeLong(value);
+            writer.write('"');
+            writer.writeRaw(ERROR_END);
+            writer.writeLong(System.currentTimeMillis());
+            writer.write('}');
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Encodes a value as UTF-8 JSON through Jackson, with the same settings as
+     * every response.
+     */
+    public static byte[] toJsonBytes(Object value) throws IOException {
+        return objectMapper.writeValueAsBytes(value);
+    }
+    
+    private static JsonWriter startError(HttpServletResponse response, int statusCode) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(statusCode);
+        setCorsHeaders(response);
+        return JsonWriter.acquire(response.getOutputStream());
+    }
+    
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, offset, part.length);
+            offset += part.length;
+        }
+        return joined;
+    }
+    
     public static void setCorsHeaders(HttpServletResponse response) {
         response.setHeader("Access-Control-Allow-Origin", "*");
-        response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, PATCH, DELETE, OPTIONS");
+        response.setHeader("Access-Control-Allow-Headers", "Content-Type, If-Match, If-None-Match, Prefer, Last-Event-ID");
+        // Lets browser clients read the tag they need for If-Match
+        response.setHeader("Access-Control-Expose-Headers", "ETag");
     }
 }
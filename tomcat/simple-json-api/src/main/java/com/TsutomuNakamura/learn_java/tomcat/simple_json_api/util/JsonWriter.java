@@ -0,0 +1,285 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hand-written JSON encoder for the shapes every response has: users and the
+ * ApiResponse envelope. Anything else still goes through Jackson.
+ *
+ * A writer buffers into a byte array of its own and hands each full buffer to
+ * the underlying stream, so responses of any size are streamed. Writers and
+ * their buffers are pooled: a response borrows one with {@link #acquire} and
+ * returns it with {@link #close}, so sending a response allocates nothing once
+ * the pool is warm. Field names are encoded once, integers are formatted
+ * straight into the buffer, and strings with nothing to escape are copied a
+ * char at a time.
+ *
+ * The bytes are the same as Jackson's with default settings: control characters
+ * and surrogates are escaped, everything else is written as UTF-8.
+ */
+public final class JsonWriter extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int POOL_SIZE = 64;
+
+    private static final byte[] USER_ID = "{\"id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USER_NAME = ",\"name\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USER_EMAIL = ",\"email\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USER_AGE = ",\"age\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USER_VERSION = ",\"version\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private static final AtomicReferenceArray<JsonWriter> pool = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream out;
+
+    private JsonWriter() {
+    }
+
+    /**
+     * Borrows a writer that writes to the given stream. The caller must close it.
+     */
+    public static JsonWriter acquire(OutputStream out) {
+        int start = probe();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (start + i) & (POOL_SIZE - 1);
+            JsonWriter writer = pool.get(slot);
+            if (writer != null && pool.compareAndSet(slot, writer, null)) {
+                writer.out = out;
+                return writer;
+            }
+        }
+        // More responses in flight than pooled writers; this one is dropped on close
+        JsonWriter writer = new JsonWriter();
+        writer.out = out;
+        return writer;
+    }
+
+    /**
+     * Encodes a user on its own, for callers that keep the bytes.
+     */
+    public static byte[] encode(User user) throws IOException {
+        // Every char takes at most six bytes, as an escape
+        long maxLength = 128 + 6L * (length(user.getName()) + length(user.getEmail()));
+        if (maxLength > BUFFER_SIZE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (JsonWriter writer = acquire(bytes)) {
+                writer.writeUser(user);
+                writer.drain();
+            }
+            return bytes.toByteArray();
+        }
+        try (JsonWriter writer = acquire(null)) {
+            writer.writeUser(user);
+            return Arrays.copyOf(writer.buffer, writer.position);
+        }
+    }
+
+    /**
+     * Writes a whole user the way Jackson serializes {@link User}.
+     */
+    public void writeUser(User user) throws IOException {
+        writeRaw(USER_ID);
+        writeLong(user.getId());
+        writeRaw(USER_NAME);
+        writeString(user.getName());
+        writeRaw(USER_EMAIL);
+        writeString(user.getEmail());
+        writeRaw(USER_AGE);
+        writeLong(user.getAge());
+        writeRaw(USER_VERSION);
+        writeLong(user.getVersion());
+        write('}');
+    }
+
+    /**
+     * Writes pre-encoded JSON, such as a field name with its quotes and colon.
+     */
+    public void writeRaw(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        writeRaw(value ? TRUE : FALSE);
+    }
+
+    public void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int end = position + digits(value);
+        int index = end;
+        do {
+            buffer[--index] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        position = end;
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string, or null.
+     */
+    public void writeString(String value) throws IOException {
+        if (value == null) {
+            writeRaw(NULL);
+            return;
+        }
+        write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (position + 6 > BUFFER_SIZE) {
+                drain();
+            }
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x80) {
+                writeEscape(c);
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                writeUnicodeEscape(c);
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        write('"');
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == BUFFER_SIZE) {
+            drain();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > BUFFER_SIZE - position) {
+            drain();
+            if (length > BUFFER_SIZE) {
+                // Large fragments go straight through rather than being copied twice
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Hands everything buffered to the underlying stream and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Returns the writer to the pool, discarding anything not yet flushed. The
+     * underlying stream stays open; it belongs to the container.
+     */
+    @Override
+    public void close() {
+        position = 0;
+        out = null;
+        int start = probe();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (start + i) & (POOL_SIZE - 1);
+            if (pool.get(slot) == null && pool.compareAndSet(slot, null, this)) {
+                return;
+            }
+        }
+    }
+
+    private void writeEscape(char c) {
+        byte escape;
+        switch (c) {
+            case '"':
+            case '\\':
+                escape = (byte) c;
+                break;
+            case '\b':
+                escape = 'b';
+                break;
+            case '\t':
+                escape = 't';
+                break;
+            case '\n':
+                escape = 'n';
+                break;
+            case '\f':
+                escape = 'f';
+                break;
+            case '\r':
+                escape = 'r';
+                break;
+            default:
+                writeUnicodeEscape(c);
+                return;
+        }
+        buffer[position++] = '\\';
+        buffer[position++] = escape;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buffer[position++] = '\\';
+        buffer[position++] = 'u';
+        buffer[position++] = HEX[c >> 12];
+        buffer[position++] = HEX[(c >> 8) & 0xF];
+        buffer[position++] = HEX[(c >> 4) & 0xF];
+        buffer[position++] = HEX[c & 0xF];
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (BUFFER_SIZE - position < bytes) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private static int digits(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static int probe() {
+        return (int) Thread.currentThread().getId() & (POOL_SIZE - 1);
+    }
+}
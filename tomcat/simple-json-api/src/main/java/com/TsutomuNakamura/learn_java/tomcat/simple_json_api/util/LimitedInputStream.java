@@ -0,0 +1,57 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.PayloadTooLargeException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that fails with {@link PayloadTooLargeException} as soon as more
+ * than {@code maxBytes} have been read, so an oversized body is never buffered.
+ */
+public class LimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long count;
+
+    public LimitedInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws PayloadTooLargeException {
+        count += n;
+        if (count > maxBytes) {
+            throw new PayloadTooLargeException("Request body exceeds " + maxBytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs asynchronous request handlers.
+ * 
+ * On JDK 21+ every request gets its own virtual thread, so blocking on I/O no
+ * longer ties up a scarce platform thread. Older JDKs get a bounded platform pool
+ * that rejects work once its queue is full, instead of queueing without limit.
+ */
+public class RequestExecutorUtil {
+    
+    public static final String MODE_AUTO = "auto";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_PLATFORM = "platform";
+    
+    /**
+     * @param mode "auto" or "virtual" to prefer virtual threads, "platform" to force the pool
+     * @param poolSize number of platform threads
+     * @param queueCapacity requests that may wait for a platform thread
+     * @param threadNamePrefix name prefix for the platform threads
+     */
+    public static ExecutorService create(String mode, int poolSize, int queueCapacity, String threadNamePrefix) {
+        if (!MODE_PLATFORM.equals(mode)) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+            if (MODE_VIRTUAL.equals(mode)) {
+                System.err.println("Virtual threads require JDK 21+, falling back to a platform thread pool");
+            }
+        }
+        return newBoundedPlatformPool(poolSize, queueCapacity, threadNamePrefix);
+    }
+    
+    /**
+     * Shuts the executor down, giving running requests up to the timeout to finish.
+     */
+    public static void shutdown(ExecutorService executor, long timeoutSeconds) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        
+        // Looked up reflectively because the module is compiled for Java 17
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Failed to create virtual thread executor: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private static ExecutorService newBoundedPlatformPool(int poolSize, int queueCapacity, String threadNamePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
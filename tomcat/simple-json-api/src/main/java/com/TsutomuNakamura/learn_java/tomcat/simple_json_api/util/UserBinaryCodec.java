@@ -0,0 +1,424 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.BatchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.Page;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.SearchResult;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of user responses, for clients that would rather not
+ * pay for JSON's number formatting and repeated field names.
+ *
+ * A response is {@code 'U' 'B' [schema] [flags] [message] [timestamp] [tag] [data]}.
+ * The schema byte is {@link #SCHEMA_VERSION}; bit 0 of flags is the success flag
+ * of the ApiResponse. The tag says what the data is:
+ * <ul>
+ * <li>{@link #TAG_NULL}: nothing</li>
+ * <li>{@link #TAG_USER}: one user</li>
+ * <li>{@link #TAG_USER_LIST}: {@code [count] [user]...}</li>
+ * <li>{@link #TAG_USER_PAGE}: {@code [count] [user]... [nextCursor] [limit]}</li>
+ * <li>{@link #TAG_SEARCH_RESULT}: {@code [query] [count] [user]... [limit] [truncated]}</li>
+ * <li>{@link #TAG_USER_BATCH}: {@code [count] [user]... [missing count] [id]...}</li>
+ * </ul>
+ * A user is {@code [length] [id] [version] [age] [name] [email]}, where length is
+ * the size of the rest of the record, so a decoder can skip fields appended by a
+ * later schema. Integers are unsigned LEB128 varints, except age, which is
+ * zigzag encoded. Strings are a varint byte length followed by UTF-8; nullable
+ * strings store the length plus one, with 0 meaning null.
+ *
+ * The encoder writes through a small buffer of its own straight into the
+ * response stream, and encodes strings without building byte arrays first.
+ */
+public class UserBinaryCodec {
+
+    public static final byte SCHEMA_VERSION = 1;
+    public static final byte TAG_NULL = 0;
+    public static final byte TAG_USER = 1;
+    public static final byte TAG_USER_LIST = 2;
+    public static final byte TAG_USER_PAGE = 3;
+    public static final byte TAG_SEARCH_RESULT = 4;
+    public static final byte TAG_USER_BATCH = 5;
+
+    private static final byte MAGIC_0 = 'U';
+    private static final byte MAGIC_1 = 'B';
+    private static final int FLAG_SUCCESS = 1;
+    private static final int BUFFER_SIZE = 4096;
+    // Longest user record header: length, id and version varints, age zigzag varint
+    private static final int MAX_HEADER_SIZE = 5 + 10 + 10 + 5;
+
+    private UserBinaryCodec() {
+    }
+
+    /**
+     * Encodes a response whose data is null, a {@link User}, a list of users, a
+     * page of users, a search result or a batch of users.
+     * @throws IllegalArgumentException for any other data
+     */
+    public static void encode(OutputStream out, ApiResponse<?> response) throws IOException {
+        Encoder encoder = new Encoder(out);
+        encoder.writeByte(MAGIC_0);
+        encoder.writeByte(MAGIC_1);
+        encoder.writeByte(SCHEMA_VERSION);
+        encoder.writeByte(response.isSuccess() ? FLAG_SUCCESS : 0);
+        encoder.writeNullableString(response.getMessage());
+        encoder.writeVarLong(response.getTimestamp());
+        encodeData(encoder, response.getData());
+        encoder.flush();
+    }
+
+    /**
+     * Decodes a whole response. The data is a {@link User}, a {@code List<User>},
+     * a {@code Page<User>}, a {@code SearchResult<User>}, a {@code BatchResult<User>}
+     * or null, depending on the tag.
+     * @throws IOException if the input is not a response of a known schema
+     */
+    public static ApiResponse<Object> decode(InputStream in) throws IOException {
+        return decode(in.readAllBytes());
+    }
+
+    public static ApiResponse<Object> decode(byte[] bytes) throws IOException {
+        Decoder decoder = new Decoder(bytes);
+        if (decoder.readByte() != MAGIC_0 || decoder.readByte() != MAGIC_1) {
+            throw new IOException("Not a binary user response");
+        }
+        int schema = decoder.readByte();
+        if (schema != SCHEMA_VERSION) {
+            throw new IOException("Unsupported binary schema " + schema);
+        }
+        ApiResponse<Object> response = new ApiResponse<>();
+        response.setSuccess((decoder.readByte() & FLAG_SUCCESS) != 0);
+        response.setMessage(decoder.readNullableString());
+        response.setTimestamp(decoder.readVarLong());
+        response.setData(decodeData(decoder));
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void encodeData(Encoder encoder, Object data) throws IOException {
+        if (data == null) {
+            encoder.writeByte(TAG_NULL);
+        } else if (data instanceof User) {
+            encoder.writeByte(TAG_USER);
+            encoder.writeUser((User) data);
+        } else if (data instanceof List) {
+            encoder.writeByte(TAG_USER_LIST);
+            encoder.writeUsers((List<User>) data);
+        } else if (data instanceof Page) {
+            Page<User> page = (Page<User>) data;
+            encoder.writeByte(TAG_USER_PAGE);
+            encoder.writeUsers(page.getItems());
+            encoder.writeNullableString(page.getNextCursor());
+            encoder.writeVarLong(page.getLimit());
+        } else if (data instanceof SearchResult) {
+            SearchResult<User> result = (SearchResult<User>) data;
+            encoder.writeByte(TAG_SEARCH_RESULT);
+            encoder.writeNullableString(result.getQuery());
+            encoder.writeUsers(result.getItems());
+            encoder.writeVarLong(result.getLimit());
+            encoder.writeByte(result.isTruncated() ? 1 : 0);
+        } else if (data instanceof BatchResult) {
+            BatchResult<User> result = (BatchResult<User>) data;
+            encoder.writeByte(TAG_USER_BATCH);
+            encoder.writeUsers(result.getItems());
+            List<Long> missing = result.getMissing();
+            encoder.writeVarLong(missing.size());
+            for (int i = 0; i < missing.size(); i++) {
+                encoder.writeVarLong(missing.get(i));
+            }
+        } else {
+            throw new IllegalArgumentException("No binary encoding for " + data.getClass().getName());
+        }
+    }
+
+    private static Object decodeData(Decoder decoder) throws IOException {
+        int tag = decoder.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_USER:
+                return decoder.readUser();
+            case TAG_USER_LIST:
+                return decoder.readUsers();
+            case TAG_USER_PAGE: {
+                List<User> items = decoder.readUsers();
+                String nextCursor = decoder.readNullableString();
+                return new Page<>(items, nextCursor, (int) decoder.readVarLong());
+            }
+            case TAG_SEARCH_RESULT: {
+                String query = decoder.readNullableString();
+                List<User> items = decoder.readUsers();
+                int limit = (int) decoder.readVarLong();
+                return new SearchResult<>(query, items, limit, decoder.readByte() != 0);
+            }
+            case TAG_USER_BATCH: {
+                List<User> items = decoder.readUsers();
+                // Every ID takes at least a byte, which bounds the count
+                int count = decoder.readLength();
+                List<Long> missing = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    missing.add(decoder.readVarLong());
+                }
+                return new BatchResult<>(items, missing);
+            }
+            default:
+                throw new IOException("Unknown binary data tag " + tag);
+        }
+    }
+
+    /**
+     * Buffered writer of the primitives of the format.
+     */
+    private static final class Encoder {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        private Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        private void writeUsers(List<User> users) throws IOException {
+            writeVarLong(users.size());
+            for (int i = 0; i < users.size(); i++) {
+                writeUser(users.get(i));
+            }
+        }
+
+        private void writeUser(User user) throws IOException {
+            String name = user.getName();
+            String email = user.getEmail();
+            int nameLength = utf8Length(name);
+            int emailLength = utf8Length(email);
+            int age = user.getAge();
+            long zigzagAge = ((age << 1) ^ (age >> 31)) & 0xFFFFFFFFL;
+            int bodyLength = varLongSize(user.getId()) + varLongSize(user.getVersion()) + varLongSize(zigzagAge)
+                    + varLongSize(nameLength) + nameLength + varLongSize(emailLength) + emailLength;
+
+            ensure(MAX_HEADER_SIZE);
+            putVarLong(bodyLength);
+            putVarLong(user.getId());
+            putVarLong(user.getVersion());
+            putVarLong(zigzagAge);
+            writeString(name, nameLength);
+            writeString(email, emailLength);
+        }
+
+        private void writeNullableString(String value) throws IOException {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            int length = utf8Length(value);
+            writeVarLong(length + 1L);
+            writeChars(value, length);
+        }
+
+        private void writeString(String value, int length) throws IOException {
+            writeVarLong(length);
+            writeChars(value, length);
+        }
+
+        /**
+         * Writes the UTF-8 of a string whose encoded length is already known,
+         * straight into the buffer.
+         */
+        private void writeChars(String value, int length) throws IOException {
+            if (length == value.length()) {
+                // ASCII only, one byte per char
+                int offset = 0;
+                while (offset < length) {
+                    ensure(1);
+                    int end = offset + Math.min(length - offset, BUFFER_SIZE - position);
+                    while (offset < end) {
+                        buffer[position++] = (byte) value.charAt(offset++);
+                    }
+                }
+                return;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                ensure(4);
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xC0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate becomes '?', as String.getBytes does
+                    buffer[position++] = '?';
+                } else {
+                    buffer[position++] = (byte) (0xE0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private void writeByte(int value) throws IOException {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            ensure(10);
+            putVarLong(value);
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (BUFFER_SIZE - position < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        private void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+        private static int varLongSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        /**
+         * Returns the UTF-8 length of a string, the same as its char count for ASCII.
+         */
+        private static int utf8Length(String value) {
+            int length = value.length();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    if (c < 0x800) {
+                        length += 1;
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        // Two chars, four bytes
+                        length += 2;
+                        i++;
+                    } else if (!Character.isSurrogate(c)) {
+                        length += 2;
+                    }
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Reader of the primitives of the format from a whole response.
+     */
+    private static final class Decoder {
+        private final byte[] bytes;
+        private int position;
+
+        private Decoder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private List<User> readUsers() throws IOException {
+            int count = readLength();
+            List<User> users = new ArrayList<>(Math.min(count, bytes.length - position));
+            for (int i = 0; i < count; i++) {
+                users.add(readUser());
+            }
+            return users;
+        }
+
+        private User readUser() throws IOException {
+            int length = readLength();
+            int end = position + length;
+            long id = readVarLong();
+            long version = readVarLong();
+            long zigzagAge = readVarLong();
+            int age = (int) (zigzagAge >>> 1) ^ -(int) (zigzagAge & 1);
+            String name = readString();
+            String email = readString();
+            if (position > end) {
+                throw new IOException("User record overruns its length");
+            }
+            // Skip fields added by later schemas
+            position = end;
+            return new User(id, name, email, age, version);
+        }
+
+        private String readString() throws IOException {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private String readNullableString() throws IOException {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            int size = checkLength(length - 1);
+            String value = new String(bytes, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Truncated binary response");
+            }
+            return bytes[position++];
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int readLength() throws IOException {
+            return checkLength(readVarLong());
+        }
+
+        private int checkLength(long length) throws IOException {
+            if (length < 0 || length > bytes.length - position) {
+                throw new IOException("Truncated binary response");
+            }
+            return (int) length;
+        }
+    }
+}
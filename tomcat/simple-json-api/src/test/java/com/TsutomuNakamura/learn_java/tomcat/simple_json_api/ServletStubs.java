@@ -0,0 +1,28 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Stand-ins for servlet API objects, for tests that need a request, response or
+ * context without a container. Public only so the tests in every subpackage can
+ * reach it.
+ */
+public final class ServletStubs {
+
+    private ServletStubs() {
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    /**
+     * Returns a servlet API object that answers only what the handler knows about.
+     * Every other call returns null, so the handler must cover any primitive getter.
+     */
+    public static <T> T stub(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> handler.handle(method.getName(), args)));
+    }
+}
@@ -0,0 +1,171 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.changes.UserChangeFeed.ChangeEvent;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.TsutomuNakamura.learn_java.tomcat.simple_json_api.ServletStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserChangeFeedTest {
+
+    // Far below the 15 second heartbeat that used to pick up late events
+    private static final long DELIVERY_TIMEOUT_MILLIS = 2_000;
+    private static final Pattern SEQUENCE = Pattern.compile("data: \\{\"sequence\":(\\d+),\"type\"");
+
+    private final UserChangeFeed feed = new UserChangeFeed(1024, 10);
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    @AfterEach
+    void tearDown() {
+        feed.close();
+    }
+
+    @Test
+    void streamsEveryChangeInOrder() throws Exception {
+        subscribe();
+        int threads = 4;
+        int perThread = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long id = t + 1;
+                futures.add(executor.submit(() -> {
+                    User user = new User(id, "User " + id, "user" + id + "@example.com", 30);
+                    for (int i = 0; i < perThread; i++) {
+                        feed.onChange(id, i == 0 ? null : user, user);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Long> sequences = awaitEvents(threads * perThread);
+        for (int i = 0; i < sequences.size(); i++) {
+            assertEquals(i + 1, sequences.get(i));
+        }
+    }
+
+    @Test
+    void sendsAnEventAtOnceWhenItsWriterStoresItAfterTheDispatcherLooked() throws Exception {
+        subscribe();
+
+        // Replays a writer that took its sequence, and was descheduled before
+        // storing the event while the dispatcher woke up and found nothing
+        AtomicLong sequence = field("sequence");
+        AtomicReferenceArray<ChangeEvent> ring = field("ring");
+        Thread dispatcher = field("dispatcher");
+        long seq = sequence.incrementAndGet();
+        LockSupport.unpark(dispatcher);
+        Thread.sleep(200);
+
+        Constructor<ChangeEvent> constructor = ChangeEvent.class.getDeclaredConstructor(
+                long.class, String.class, Long.class, User.class);
+        constructor.setAccessible(true);
+        User user = new User(1L, "Jane", "jane@example.com", 25);
+        ring.set((int) seq & (feed.getCapacity() - 1), constructor.newInstance(seq, UserChangeFeed.CREATED, 1L, user));
+        LockSupport.unpark(dispatcher);
+
+        assertEquals(List.of(seq), awaitEvents(1));
+    }
+
+    private void subscribe() throws Exception {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                synchronized (received) {
+                    received.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (received) {
+                    received.write(b, off, len);
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                // The container reports the stream as ready right away, from another thread
+                new Thread(() -> {
+                    try {
+                        writeListener.onWritePossible();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).start();
+            }
+        };
+        ServletResponse response = stub(ServletResponse.class, (name, args) -> "getOutputStream".equals(name) ? out : null);
+        AsyncContext asyncContext = stub(AsyncContext.class, (name, args) -> "getResponse".equals(name) ? response : null);
+        assertTrue(feed.subscribe(asyncContext, null));
+    }
+
+    /**
+     * Waits until the given number of events has been streamed and returns their sequences.
+     */
+    private List<Long> awaitEvents(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MILLIS);
+        List<Long> sequences;
+        do {
+            String text;
+            synchronized (received) {
+                text = received.toString(StandardCharsets.UTF_8);
+            }
+            sequences = new ArrayList<>();
+            Matcher matcher = SEQUENCE.matcher(text);
+            while (matcher.find()) {
+                sequences.add(Long.parseLong(matcher.group(1)));
+            }
+            if (sequences.size() >= count) {
+                return sequences;
+            }
+            Thread.sleep(10);
+        } while (System.nanoTime() < deadline);
+        throw new AssertionError("Got " + sequences.size() + " of " + count + " events within "
+                + DELIVERY_TIMEOUT_MILLIS + " ms");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T field(String name) throws ReflectiveOperationException {
+        Field field = UserChangeFeed.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (T) field.get(feed);
+    }
+}
@@ -0,0 +1,372 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.controller;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.TsutomuNakamura.learn_java.tomcat.simple_json_api.ServletStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the asynchronous request path with the timeout fired by hand, the way
+ * the container fires it, while the handler is queued or still running.
+ */
+class UserControllerAsyncTest {
+
+    private final UserRepository repository = new UserRepository();
+    private final UserController controller = new UserController();
+    private boolean destroyed;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        UserRepository.restore(List.of());
+        // One worker and one queue slot, so a blocked request keeps the next one queued
+        controller.init(config(Map.of(
+                UserController.ASYNC_EXECUTOR_PARAM, "platform",
+                UserController.ASYNC_POOL_SIZE_PARAM, "1",
+                UserController.ASYNC_QUEUE_CAPACITY_PARAM, "1")));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (!destroyed) {
+            controller.destroy();
+        }
+        UserRepository.restore(List.of());
+    }
+
+    @Test
+    void aWriteThatTimesOutWhileRunningIsNotReportedAsRetryable() throws Exception {
+        Exchange exchange = new Exchange("POST", user("late@example.com"));
+        exchange.body.block();
+        controller.service(exchange.request, exchange.response);
+        assertTrue(exchange.body.reading.await(5, TimeUnit.SECONDS));
+
+        exchange.timeout();
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exchange.status);
+        String timedOut = exchange.body();
+        assertTrue(timedOut.contains("check before retrying"), timedOut);
+
+        // The handler goes on and applies the write, but cannot answer any more
+        exchange.body.release.countDown();
+        awaitHandlers();
+        assertTrue(repository.findByEmail("late@example.com").isPresent());
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exchange.status);
+        assertEquals(timedOut, exchange.body());
+        assertEquals(1, exchange.completions);
+    }
+
+    @Test
+    void aRequestThatTimesOutInTheQueueNeverRuns() throws Exception {
+        Exchange running = new Exchange("POST", user("running@example.com"));
+        running.body.block();
+        controller.service(running.request, running.response);
+        assertTrue(running.body.reading.await(5, TimeUnit.SECONDS));
+        Exchange queued = new Exchange("POST", user("queued@example.com"));
+        controller.service(queued.request, queued.response);
+
+        queued.timeout();
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, queued.status);
+
+        running.body.release.countDown();
+        awaitHandlers();
+        assertEquals(HttpServletResponse.SC_CREATED, running.status);
+        assertTrue(repository.findByEmail("running@example.com").isPresent());
+        assertFalse(repository.findByEmail("queued@example.com").isPresent());
+        assertEquals(1, queued.completions);
+    }
+
+    @Test
+    void aHandlerThatFinishesFirstCompletesTheRequestOnce() throws Exception {
+        Exchange exchange = new Exchange("POST", user("jane@example.com"));
+        controller.service(exchange.request, exchange.response);
+        awaitHandlers();
+
+        exchange.timeout();
+        assertEquals(HttpServletResponse.SC_CREATED, exchange.status);
+        assertTrue(exchange.body().contains("jane@example.com"));
+        assertEquals(1, exchange.completions);
+    }
+
+    @Test
+    void aTimeoutDoesNotWaitForAHandlerStuckWritingToASlowClient() throws Exception {
+        Exchange exchange = new Exchange("GET", new byte[0]);
+        exchange.blockWrites();
+        controller.service(exchange.request, exchange.response);
+        assertTrue(exchange.writing.await(5, TimeUnit.SECONDS));
+
+        ExecutorService container = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> timeout = container.submit(() -> {
+                exchange.timeout();
+                return null;
+            });
+            timeout.get(5, TimeUnit.SECONDS);
+            // Completed, without an error body written over the handler's response
+            assertEquals(1, exchange.completions);
+            assertEquals(HttpServletResponse.SC_OK, exchange.status);
+        } finally {
+            exchange.releaseWrites.countDown();
+            container.shutdownNow();
+        }
+
+        awaitHandlers();
+        assertEquals(1, exchange.completions);
+    }
+
+    /**
+     * Shuts the controller down, which waits for every handler to finish.
+     */
+    private void awaitHandlers() {
+        controller.destroy();
+        destroyed = true;
+    }
+
+    private static byte[] user(String email) {
+        return ("{\"name\":\"Jane\",\"email\":\"" + email + "\",\"age\":25}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ServletConfig config(Map<String, String> contextParams) {
+        ServletContext context = stub(ServletContext.class, (name, args) -> {
+            switch (name) {
+                case "getInitParameter":
+                    return contextParams.get((String) args[0]);
+                case "getInitParameterNames":
+                    return Collections.enumeration(contextParams.keySet());
+                default:
+                    return null;
+            }
+        });
+        return stub(ServletConfig.class, (name, args) -> {
+            switch (name) {
+                case "getServletContext":
+                    return context;
+                case "getServletName":
+                    return "UserController";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * One request with the response and AsyncContext it is served through.
+     */
+    private static final class Exchange {
+        final RequestBody body;
+        final HttpServletRequest request;
+        final HttpServletResponse response;
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch releaseWrites = new CountDownLatch(1);
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private volatile boolean blockingWrites;
+        private AsyncListener listener;
+        volatile int status = HttpServletResponse.SC_OK;
+        volatile int completions;
+
+        Exchange(String method, byte[] content) {
+            body = new RequestBody(content);
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    awaitWriteRelease();
+                    synchronized (written) {
+                        written.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    awaitWriteRelease();
+                    synchronized (written) {
+                        written.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+            };
+            response = stub(HttpServletResponse.class, (name, args) -> {
+                switch (name) {
+                    case "getOutputStream":
+                        return out;
+                    case "setStatus":
+                        status = (Integer) args[0];
+                        return null;
+                    case "resetBuffer":
+                        synchronized (written) {
+                            written.reset();
+                        }
+                        return null;
+                    case "getCharacterEncoding":
+                        return "UTF-8";
+                    case "isCommitted":
+                        return false;
+                    case "containsHeader":
+                        return false;
+                    default:
+                        return null;
+                }
+            });
+            AsyncContext asyncContext = stub(AsyncContext.class, (name, args) -> {
+                switch (name) {
+                    case "addListener":
+                        listener = (AsyncListener) args[0];
+                        return null;
+                    case "complete":
+                        completions++;
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+            request = stub(HttpServletRequest.class, (name, args) -> {
+                switch (name) {
+                    case "getMethod":
+                        return method;
+                    case "getDispatcherType":
+                        return DispatcherType.REQUEST;
+                    case "getProtocol":
+                        return "HTTP/1.1";
+                    case "startAsync":
+                        return asyncContext;
+                    case "getInputStream":
+                        return body;
+                    case "getContentLengthLong":
+                        return (long) content.length;
+                    case "getContentLength":
+                        return content.length;
+                    case "getDateHeader":
+                        return -1L;
+                    case "getIntHeader":
+                        return -1;
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        /**
+         * Makes the handler's writes hang, like writes to a client that stopped reading.
+         */
+        void blockWrites() {
+            blockingWrites = true;
+        }
+
+        private void awaitWriteRelease() throws IOException {
+            if (!blockingWrites) {
+                return;
+            }
+            writing.countDown();
+            try {
+                if (!releaseWrites.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Writes never released");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        void timeout() throws IOException {
+            listener.onTimeout(null);
+        }
+
+        String body() {
+            synchronized (written) {
+                return written.toString(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    /**
+     * A request body that can hold the handler on its first read until released.
+     */
+    private static final class RequestBody extends ServletInputStream {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final ByteArrayInputStream in;
+        private boolean blocking;
+
+        RequestBody(byte[] content) {
+            in = new ByteArrayInputStream(content);
+        }
+
+        void block() {
+            blocking = true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            awaitRelease();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            awaitRelease();
+            return in.read(b, off, len);
+        }
+
+        private void awaitRelease() throws IOException {
+            reading.countDown();
+            if (!blocking) {
+                return;
+            }
+            try {
+                if (!release.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Request body never released");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+    }
+}
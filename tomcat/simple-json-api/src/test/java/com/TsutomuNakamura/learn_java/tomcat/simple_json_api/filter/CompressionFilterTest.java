@@ -0,0 +1,152 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.filter;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.TsutomuNakamura.learn_java.tomcat.simple_json_api.ServletStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressionFilterTest {
+
+    private static final byte[] LARGE_BODY = "{\"name\":\"Jane\"}".repeat(500).getBytes(StandardCharsets.UTF_8);
+
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    private final Map<String, String> headers = new HashMap<>();
+
+    @Test
+    void gzipsALargeBody() throws Exception {
+        filter("gzip", (req, res) -> res.getOutputStream().write(LARGE_BODY));
+
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertArrayEquals(LARGE_BODY, new GZIPInputStream(received()).readAllBytes());
+    }
+
+    @Test
+    void deflatesALargeBody() throws Exception {
+        filter("deflate", (req, res) -> res.getOutputStream().write(LARGE_BODY));
+
+        assertEquals("deflate", headers.get("Content-Encoding"));
+        assertArrayEquals(LARGE_BODY, new InflaterInputStream(received()).readAllBytes());
+    }
+
+    @Test
+    void sendsASmallBodyAsItIs() throws Exception {
+        byte[] body = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        filter("gzip", (req, res) -> res.getOutputStream().write(body));
+
+        assertNull(headers.get("Content-Encoding"));
+        assertArrayEquals(body, sink.toByteArray());
+    }
+
+    @Test
+    void endsTheCompressorWithoutATrailerWhenTheChainThrows() throws Exception {
+        for (String encoding : new String[] {"gzip", "deflate"}) {
+            sink.reset();
+            ServletOutputStream[] stream = new ServletOutputStream[1];
+            assertThrows(ServletException.class, () -> filter(encoding, (req, res) -> {
+                stream[0] = res.getOutputStream();
+                stream[0].write(LARGE_BODY);
+                throw new ServletException("Handler failed");
+            }));
+
+            // The compressor is closed, and nothing it still held reached the client
+            assertThrows(IOException.class, () -> stream[0].write(LARGE_BODY));
+            InputStream in = "gzip".equals(encoding)
+                    ? new GZIPInputStream(received()) : new InflaterInputStream(received());
+            assertThrows(IOException.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void dropsABufferedBodyWhenTheChainThrows() {
+        assertThrows(ServletException.class, () -> filter("gzip", (req, res) -> {
+            res.getOutputStream().write('{');
+            throw new ServletException("Handler failed");
+        }));
+
+        // Nothing was committed, so the container can still send its error page
+        assertEquals(0, sink.size());
+    }
+
+    private void filter(String acceptEncoding, FilterChain chain) throws IOException, ServletException {
+        new CompressionFilter().doFilter(request(acceptEncoding), response(), chain);
+    }
+
+    private InputStream received() {
+        return new ByteArrayInputStream(sink.toByteArray());
+    }
+
+    private static HttpServletRequest request(String acceptEncoding) {
+        return stub(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+                case "getMethod":
+                    return "GET";
+                case "getHeader":
+                    return "Accept-Encoding".equals(args[0]) ? acceptEncoding : null;
+                case "isAsyncStarted":
+                    return false;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private HttpServletResponse response() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                sink.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                sink.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return stub(HttpServletResponse.class, (name, args) -> {
+            switch (name) {
+                case "getOutputStream":
+                    return out;
+                case "setHeader":
+                case "addHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                case "getHeader":
+                    return headers.get((String) args[0]);
+                case "getCharacterEncoding":
+                    return "UTF-8";
+                case "isCommitted":
+                    return sink.size() > 0;
+                default:
+                    return null;
+            }
+        });
+    }
+}
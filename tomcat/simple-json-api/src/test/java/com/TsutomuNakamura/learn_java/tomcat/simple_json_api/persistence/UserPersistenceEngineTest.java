@@ -0,0 +1,321 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.persistence;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserChangeListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Restarts the repository on a real data directory, the way the context
+ * listener does on deployment, and checks what comes back.
+ */
+class UserPersistenceEngineTest {
+
+    @TempDir
+    Path directory;
+
+    private final UserRepository repository = new UserRepository();
+    private UserPersistenceEngine engine;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        stop();
+        UserRepository.restore(List.of());
+    }
+
+    @Test
+    void replaysTheLogAfterARestart() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        User john = repository.save(new User(null, "John", "john@example.com", 30));
+        User gone = repository.save(new User(null, "Gone", "gone@example.com", 40));
+        User updated = repository.update(john.getId(), new User(john.getId(), "John", "john@example.org", 31), 
+                john.getVersion());
+        assertTrue(repository.deleteById(gone.getId()));
+
+        restart();
+
+        assertEquals(describe(List.of(jane, updated)), describe(repository.findAll()));
+        assertEquals(updated.getId(), repository.findByEmail("john@example.org").orElseThrow().getId());
+        assertFalse(repository.findByEmail("gone@example.com").isPresent());
+    }
+
+    @Test
+    void doesNotReuseADeletedUsersIdOrVersionAfterARestart() throws Exception {
+        checkDeletedUserStaysDeleted(false);
+    }
+
+    @Test
+    void doesNotReuseADeletedUsersIdOrVersionAfterASnapshot() throws Exception {
+        checkDeletedUserStaysDeleted(true);
+    }
+
+    private void checkDeletedUserStaysDeleted(boolean snapshot) throws Exception {
+        User kept = repository.save(new User(null, "Kept", "kept@example.com", 25));
+        User deleted = repository.save(new User(null, "Deleted", "deleted@example.com", 30));
+        assertTrue(repository.deleteById(deleted.getId()));
+        if (snapshot) {
+            // Compacts the delete out of the log
+            engine.snapshot(repository::forEach);
+        }
+
+        restart();
+        User created = repository.save(new User(null, "Created", "created@example.com", 35));
+        assertTrue(created.getId() > deleted.getId(), "Reused ID " + created.getId());
+        assertTrue(created.getVersion() > deleted.getVersion() + 1, "Reused version " + created.getVersion());
+
+        // Replay must not take the new user for an old write to the deleted one
+        restart();
+        assertEquals(describe(List.of(kept, created)), describe(repository.findAll()));
+    }
+
+    @Test
+    void recoversFromASnapshotAndTheLogWrittenAfterIt() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        engine.snapshot(repository::forEach);
+        User john = repository.save(new User(null, "John", "john@example.com", 30));
+
+        restart();
+
+        assertEquals(describe(List.of(jane, john)), describe(repository.findAll()));
+    }
+
+    @Test
+    void keepsAnUpdateThatASnapshotRotatesPastBeforeItIsPublished() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        User updated = snapshotDuring("Janet", () -> repository.update(jane.getId(), 
+                new User(jane.getId(), "Janet", "jane@example.com", 26), UserRepository.ANY_VERSION));
+
+        restart();
+
+        assertEquals(describe(List.of(updated)), describe(repository.findAll()));
+    }
+
+    @Test
+    void keepsAnInsertThatASnapshotRotatesPastBeforeItIsPublished() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        User john = snapshotDuring("John", () -> repository.save(new User(null, "John", "john@example.com", 30)));
+
+        restart();
+
+        assertEquals(describe(List.of(jane, john)), describe(repository.findAll()));
+    }
+
+    @Test
+    void recoversEveryWriteMadeWhileSnapshotsRun() throws Exception {
+        int threads = 4;
+        int perThread = 300;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        User user = repository.save(new User(null, "Writer " + thread, 
+                                "writer" + thread + "-" + i + "@example.com", 30));
+                        repository.update(user.getId(), new User(user.getId(), "Writer " + thread, 
+                                user.getEmail(), 31), user.getVersion());
+                        if (i % 3 == 0) {
+                            repository.deleteById(user.getId());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Future<?> snapshots = executor.submit(() -> {
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    engine.snapshot(repository::forEach);
+                }
+                return null;
+            });
+            for (Future<?> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+            snapshots.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        List<User> written = repository.findAll();
+
+        restart();
+
+        assertEquals(threads * (perThread - perThread / 3), written.size());
+        assertEquals(describe(written), describe(repository.findAll()));
+    }
+
+    /**
+     * Runs the write, and takes a snapshot while the write is logged but not yet
+     * published. The write is held there until the snapshot finishes or has
+     * clearly been made to wait for it.
+     * @param name name of the user the write stores, to recognise it by
+     */
+    private User snapshotDuring(String name, Callable<User> write) throws Exception {
+        CountDownLatch logged = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Listeners run after the write is logged and before the store publishes it
+        UserChangeListener stall = (id, previous, user) -> {
+            if (user != null && name.equals(user.getName())) {
+                logged.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        UserRepository.addChangeListener(stall);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<User> written = executor.submit(write);
+            assertTrue(logged.await(10, TimeUnit.SECONDS));
+            Future<?> snapshot = executor.submit(() -> {
+                engine.snapshot(repository::forEach);
+                return null;
+            });
+            try {
+                snapshot.get(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Waiting for the write to be published, as it should
+            }
+            release.countDown();
+            User user = written.get(10, TimeUnit.SECONDS);
+            snapshot.get(10, TimeUnit.SECONDS);
+            return user;
+        } finally {
+            release.countDown();
+            UserRepository.removeChangeListener(stall);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void cutsOffATornRecordAndKeepsLogging() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        stop();
+
+        // A crash in the middle of a write leaves half a frame behind
+        Path segment = newestSegment();
+        long validSize = Files.size(segment);
+        byte[] record = UserRecordCodec.encodePut(new User(2L, "Torn", "torn@example.com", 30, 99L));
+        Files.write(segment, Arrays.copyOf(record, record.length / 2), StandardOpenOption.APPEND);
+
+        start();
+        assertEquals(describe(List.of(jane)), describe(repository.findAll()));
+        assertEquals(validSize, Files.size(segment));
+
+        User john = repository.save(new User(null, "John", "john@example.com", 30));
+        restart();
+        assertEquals(describe(List.of(jane, john)), describe(repository.findAll()));
+    }
+
+    @Test
+    void dropsARecordWhoseChecksumDoesNotMatch() throws Exception {
+        User jane = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        repository.save(new User(null, "John", "john@example.com", 30));
+        stop();
+
+        // Flip a bit in the last byte of John's email
+        Path segment = newestSegment();
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+
+        start();
+        assertEquals(describe(List.of(jane)), describe(repository.findAll()));
+    }
+
+    @Test
+    void keepsEveryWriteOfConcurrentGroupCommits() throws Exception {
+        int threads = 4;
+        int perThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        String email = "writer" + thread + "-" + i + "@example.com";
+                        repository.save(new User(null, "Writer " + thread, email, 30));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<User> written = repository.findAll();
+
+        restart();
+
+        assertEquals(threads * perThread, written.size());
+        assertEquals(describe(written), describe(repository.findAll()));
+    }
+
+    /**
+     * Recovers the repository from the data directory and starts logging to it,
+     * as the context listener does.
+     */
+    private void start() throws IOException {
+        engine = new UserPersistenceEngine(directory, DurabilityMode.BATCH, 1000, 3600);
+        Collection<User> recovered = engine.recover();
+        UserRepository.restore(recovered != null ? recovered : List.of(), 
+                engine.getHighestId(), engine.getHighestVersion());
+        engine.start(repository::forEach);
+        UserRepository.attachPersistence(engine);
+    }
+
+    private void stop() throws IOException {
+        if (engine != null) {
+            UserRepository.attachPersistence(null);
+            engine.close();
+            engine = null;
+        }
+    }
+
+    private void restart() throws IOException {
+        stop();
+        start();
+    }
+
+    private static List<String> describe(List<User> users) {
+        return users.stream().map(user -> user.getId() + " " + user.getName() + " " + user.getEmail() 
+                + " " + user.getAge() + " v" + user.getVersion()).toList();
+    }
+
+    private Path newestSegment() throws IOException {
+        List<Long> segments = WriteAheadLog.listSegments(directory);
+        return WriteAheadLog.segmentPath(directory, segments.get(segments.size() - 1));
+    }
+}
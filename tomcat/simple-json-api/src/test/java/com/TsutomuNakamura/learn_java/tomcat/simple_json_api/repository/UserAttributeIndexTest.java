@@ -0,0 +1,143 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserQuery;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserAttributeIndexTest {
+
+    private final UserAttributeIndex index = new UserAttributeIndex();
+
+    @Test
+    void readsANamePrefixInIdOrderFromTheCursor() {
+        index.add(new User(7L, "Alice", "a7@example.com", 30));
+        index.add(new User(2L, "Alan", "a2@example.com", 30));
+        index.add(new User(5L, "alice", "a5@example.com", 30));
+        index.add(new User(3L, "Albert", "a3@example.com", 30));
+        index.add(new User(4L, "Bob", "b4@example.com", 30));
+        index.add(new User(9L, "Alan", "a9@example.com", 30));
+
+        assertEquals(List.of(2L, 3L, 5L, 7L, 9L), drain(index.idsByNamePrefix("al", null)));
+        assertEquals(List.of(5L, 7L, 9L), drain(index.idsByNamePrefix("al", 3L)));
+        assertEquals(List.of(9L), drain(index.idsByNamePrefix("al", 7L)));
+        assertEquals(List.of(5L, 7L), drain(index.idsByNamePrefix("alice", null)));
+        assertEquals(List.of(), drain(index.idsByNamePrefix("c", null)));
+    }
+
+    @Test
+    void listsARenamedUserOnceWhileItIsUnderBothNames() {
+        User before = new User(4L, "Alan", "a4@example.com", 30);
+        index.add(new User(1L, "Alfred", "a1@example.com", 30));
+        index.add(before);
+
+        // replace() adds the new entry first; stop halfway through a rename
+        index.add(new User(4L, "Alice", "a4@example.com", 30));
+        assertEquals(List.of(1L, 4L), drain(index.idsByNamePrefix("al", null)));
+
+        index.remove(before);
+        assertEquals(List.of(1L, 4L), drain(index.idsByNamePrefix("al", null)));
+        assertEquals(List.of(), drain(index.idsByNamePrefix("alan", null)));
+    }
+
+    @Test
+    void countsANamePrefixUpToTheLimit() {
+        for (long id = 1; id <= 10; id++) {
+            index.add(new User(id, "Name " + id, "n" + id + "@example.com", 30));
+        }
+        index.add(new User(11L, "Other", "o@example.com", 30));
+
+        assertEquals(10, index.countNamePrefix("name", 100));
+        assertEquals(4, index.countNamePrefix("name", 3));
+        assertEquals(2, index.countNamePrefix("name 1", 100));
+        assertEquals(0, index.countNamePrefix("z", 100));
+    }
+
+    @Test
+    void mergesAnAgeRangeInIdOrder() {
+        index.add(new User(6L, "A", "a@example.com", 20));
+        index.add(new User(1L, "B", "b@example.com", 22));
+        index.add(new User(4L, "C", "c@example.com", 21));
+        index.add(new User(3L, "D", "d@example.com", 40));
+
+        assertEquals(List.of(1L, 4L, 6L), drain(index.idsByAge(20, 22, null)));
+        assertEquals(List.of(4L, 6L), drain(index.idsByAge(20, 22, 1L)));
+        assertEquals(3, index.countAges(20, 22));
+
+        // Halfway through an age change the user is in both buckets
+        User before = new User(8L, "E", "e@example.com", 50);
+        index.add(before);
+        index.add(new User(8L, "E", "e@example.com", 21));
+        assertEquals(List.of(1L, 3L, 4L, 6L, 8L), drain(index.idsByAge(0, 200, null)));
+
+        index.remove(before);
+        assertEquals(List.of(1L, 4L, 6L, 8L), drain(index.idsByAge(20, 22, null)));
+        assertEquals(5, index.countAges(0, 200));
+    }
+
+    @Test
+    void scansOnlyWhenThatReadsFewerUsersThanOpeningEveryNameRun() {
+        // 20,000 users: 300 "Zed n", 19,500 "User n", and 200 all called "Same"
+        for (long id = 1; id <= 20_000; id++) {
+            String name = id <= 300 ? "Zed " + id : id <= 19_800 ? "User " + id : "Same";
+            index.add(new User(id, name, "u" + id + "@example.com", 30));
+        }
+
+        // Sparse: a scan would read about 100 * 20,000 / 300 users, the merge opens 300 runs
+        assertFalse(index.isNameScanCheaper("zed", 20_000, 100));
+        // Dense and spread over many names: a scan finds a match in almost every user
+        assertTrue(index.isNameScanCheaper("user", 20_000, 100));
+        // Dense but in a single run, which the merge reads directly
+        assertFalse(index.isNameScanCheaper("same", 20_000, 100));
+        assertFalse(index.isNameScanCheaper("nobody", 20_000, 100));
+    }
+
+    @Test
+    void pagesThroughAPrefixWithCursors() throws Exception {
+        UserRepository.restore(List.of());
+        try {
+            UserRepository repository = new UserRepository();
+            List<Long> sparse = new ArrayList<>();
+            List<Long> dense = new ArrayList<>();
+            for (int i = 0; i < 5_000; i++) {
+                String name = i % 50 == 0 ? "Sam " + i : "User " + i;
+                User saved = repository.upsert(new User(null, name, "u" + i + "@example.com", 30), false);
+                (name.startsWith("Sam") ? sparse : dense).add(saved.getId());
+            }
+
+            // The sparse prefix is read from the name runs, the dense one by scanning
+            assertEquals(sparse, pageThrough(repository, "sa", 7));
+            assertEquals(dense, pageThrough(repository, "us", 7));
+        } finally {
+            UserRepository.restore(List.of());
+        }
+    }
+
+    private static List<Long> pageThrough(UserRepository repository, String prefix, int limit) {
+        UserQuery query = new UserQuery(null, null, prefix);
+        List<Long> paged = new ArrayList<>();
+        Long cursor = null;
+        List<User> page;
+        do {
+            page = repository.findMatching(query, cursor, limit);
+            for (User user : page) {
+                paged.add(user.getId());
+                cursor = user.getId();
+            }
+        } while (page.size() == limit);
+        return paged;
+    }
+
+    private static List<Long> drain(Iterator<Long> ids) {
+        List<Long> result = new ArrayList<>();
+        ids.forEachRemaining(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,179 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Grows the repository from the 3 sample users up to {@code users.scaling.max-users}
+ * and checks that every user stays reachable through lookups, updates and deletes.
+ *
+ * The default run stops at 10,000 users and checks results only. The timing check,
+ * that those operations cost the same at every size, is opt-in because it measures
+ * wall-clock time and fills up to 1,000,000 users by default:
+ * {@code mvn test -Dtest=UserRepositoryScalingTest -Dusers.scaling.timing=true}
+ * The full run to 10,000,000 users needs about 8 GB:
+ * {@code mvn test -Dtest=UserRepositoryScalingTest -Dusers.scaling.timing=true -Dusers.scaling.max-users=10000000 -DargLine=-Xmx8g}
+ */
+class UserRepositoryScalingTest {
+
+    private static final int[] SIZES = {3, 1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+    private static final int DEFAULT_MAX_USERS = 10_000;
+    private static final int DEFAULT_TIMED_MAX_USERS = 1_000_000;
+    private static final int OPERATIONS = 20_000;
+    private static final int ROUNDS = 3;
+    // A linear scan would be a thousand times slower at a million users than at a thousand
+    private static final double MAX_SLOWDOWN = 20;
+
+    private final UserRepository repository = new UserRepository();
+
+    @AfterEach
+    void tearDown() {
+        UserRepository.restore(List.of());
+    }
+
+    @Test
+    void everyUserStaysReachableFromThreeToMaxUsers() throws Exception {
+        int maxUsers = Integer.getInteger("users.scaling.max-users", DEFAULT_MAX_USERS);
+        for (int size : SIZES) {
+            if (size > maxUsers) {
+                break;
+            }
+            load(size);
+            // The same random lookups, updates, deletes and re-creates the timing run makes
+            measure(size);
+
+            assertEquals(size, repository.count());
+            Set<Long> ids = new HashSet<>();
+            for (User user : repository.findAll()) {
+                assertTrue(ids.add(user.getId()), "ID listed twice: " + user.getId());
+            }
+            assertEquals(size, ids.size());
+            for (long id = 1; id <= size; id++) {
+                assertTrue(repository.findById(id).isPresent(), "User " + id + " is missing");
+            }
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "users.scaling.timing", matches = "true")
+    void operationsStayConstantTimeFromThreeToMaxUsers() throws Exception {
+        int maxUsers = Integer.getInteger("users.scaling.max-users", DEFAULT_TIMED_MAX_USERS);
+        double baseline = 0;
+        for (int size : SIZES) {
+            if (size > maxUsers) {
+                break;
+            }
+            load(size);
+            double nanos = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                nanos = Math.min(nanos, measure(size));
+            }
+            System.out.printf("%,d users: %.0f ns per lookup, update and delete%n", size, nanos);
+            assertEquals(size, repository.count());
+
+            // Three users fit in any cache, so the first comparable size is the baseline
+            if (size >= 1_000 && baseline == 0) {
+                baseline = nanos;
+            } else if (baseline > 0) {
+                assertTrue(nanos < baseline * MAX_SLOWDOWN, String.format(
+                        "%,d users took %.0f ns per operation, against %.0f ns at 1,000", size, nanos, baseline));
+            }
+        }
+    }
+
+    @Test
+    void concurrentCreatesGetDistinctIds() throws Exception {
+        load(3);
+        int threads = 4;
+        int perThread = 5_000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        String email = "writer" + thread + "-" + i + "@example.com";
+                        User created = repository.save(new User(null, "Writer " + thread, email, 30));
+                        assertTrue(ids.add(created.getId()), "ID handed out twice: " + created.getId());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * perThread, ids.size());
+        assertEquals(3 + threads * perThread, repository.count());
+        assertEquals(3 + threads * perThread, repository.findAll().size());
+        for (Long id : ids) {
+            assertTrue(repository.findById(id).isPresent());
+        }
+    }
+
+    /**
+     * Returns the mean time of a random lookup, update and delete, each delete
+     * followed by a create so the size stays put.
+     */
+    private double measure(int size) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] ids = new long[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            ids[i] = 1 + random.nextLong(size);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            User user = repository.findById(ids[i]).orElse(null);
+            if (user != null) {
+                User updated = repository.update(user.getId(), new User(user.getId(), user.getName(),
+                        user.getEmail(), user.getAge() + 1), UserRepository.ANY_VERSION);
+                assertNotNull(updated);
+            }
+        }
+        for (int i = 0; i < OPERATIONS; i++) {
+            User user = repository.findById(ids[i]).orElse(null);
+            if (user != null) {
+                assertTrue(repository.deleteById(user.getId()));
+                assertFalse(repository.existsById(user.getId()));
+                repository.upsert(user);
+            }
+        }
+        return (double) (System.nanoTime() - start) / OPERATIONS;
+    }
+
+    private static void load(int size) {
+        List<User> users = new ArrayList<>(size);
+        for (long id = 1; id <= size; id++) {
+            users.add(new User(id, "User " + id, "user" + id + "@example.com", 20 + (int) (id % 50), id));
+        }
+        UserRepository.restore(users);
+    }
+}
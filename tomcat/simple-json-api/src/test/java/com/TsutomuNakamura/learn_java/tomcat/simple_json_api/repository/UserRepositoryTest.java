@@ -0,0 +1,217 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.DuplicateEmailException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.exception.VersionConflictException;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.UserPatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserRepositoryTest {
+
+    private final UserRepository repository = new UserRepository();
+
+    @BeforeEach
+    void setUp() {
+        UserRepository.restore(List.of());
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserRepository.restore(List.of());
+    }
+
+    @Test
+    void findsUsersByEmailIgnoringCaseAndSpaces() throws Exception {
+        User created = repository.save(new User(null, "Jane", "Jane@Example.com", 25));
+
+        assertEquals(created.getId(), repository.findByEmail("  jane@example.COM ").orElseThrow().getId());
+        assertFalse(repository.findByEmail("john@example.com").isPresent());
+    }
+
+    @Test
+    void rejectsAnEmailThatAnotherUserOwns() throws Exception {
+        repository.save(new User(null, "Jane", "jane@example.com", 25));
+
+        assertThrows(DuplicateEmailException.class,
+                () -> repository.save(new User(null, "Other", "JANE@example.com", 30)));
+        assertThrows(DuplicateEmailException.class,
+                () -> repository.upsert(new User(42L, "Other", "jane@example.com", 30)));
+        assertEquals(1, repository.count());
+        assertFalse(repository.existsById(42L));
+    }
+
+    @Test
+    void freesTheEmailOfADeletedUser() throws Exception {
+        User created = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        assertTrue(repository.deleteById(created.getId()));
+
+        assertFalse(repository.findByEmail("jane@example.com").isPresent());
+        User again = repository.save(new User(null, "Jane", "jane@example.com", 26));
+        assertEquals(again.getId(), repository.findByEmail("jane@example.com").orElseThrow().getId());
+    }
+
+    @Test
+    void keepsUsersInIdOrderAcrossCreatesAndDeletes() throws Exception {
+        repository.upsert(new User(5L, "Five", "five@example.com", 5));
+        repository.upsert(new User(2L, "Two", "two@example.com", 2));
+        repository.upsert(new User(9L, "Nine", "nine@example.com", 9));
+        repository.deleteById(5L);
+        User created = repository.save(new User(null, "Ten", "ten@example.com", 10));
+
+        assertEquals(10L, created.getId());
+        assertEquals(List.of(2L, 9L, 10L), ids(repository.findAll()));
+        assertEquals(List.of(9L, 10L), ids(repository.findPage(2L, 10)));
+    }
+
+    @Test
+    void updatesOnlyAtTheExpectedVersion() throws Exception {
+        User created = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        long version = created.getVersion();
+
+        assertThrows(VersionConflictException.class, () -> repository.update(created.getId(),
+                new User(created.getId(), "Stale", "jane@example.com", 25), version + 1));
+        assertEquals("Jane", repository.findById(created.getId()).orElseThrow().getName());
+
+        User updated = repository.update(created.getId(), new User(created.getId(), "Janet", "jane@example.com", 26),
+                version);
+        assertEquals("Janet", updated.getName());
+        assertTrue(updated.getVersion() > version);
+        assertThrows(VersionConflictException.class, () -> repository.update(created.getId(),
+                new User(created.getId(), "Stale", "jane@example.com", 25), version));
+        assertNull(repository.update(999L, new User(999L, "None", "none@example.com", 1), version));
+    }
+
+    @Test
+    void patchesAndDeletesOnlyAtTheExpectedVersion() throws Exception {
+        User created = repository.save(new User(null, "Jane", "jane@example.com", 25));
+        UserPatch patch = new UserPatch();
+        patch.setAge(26);
+
+        assertThrows(VersionConflictException.class, 
+                () -> repository.patch(created.getId(), patch, created.getVersion() + 1));
+        User patched = repository.patch(created.getId(), patch, created.getVersion());
+        assertEquals(26, patched.getAge());
+        assertEquals("Jane", patched.getName());
+
+        assertThrows(VersionConflictException.class, 
+                () -> repository.deleteById(created.getId(), created.getVersion()));
+        assertTrue(repository.existsById(created.getId()));
+        assertTrue(repository.deleteById(created.getId(), patched.getVersion()));
+        assertFalse(repository.deleteById(created.getId(), patched.getVersion()));
+    }
+
+    @Test
+    void losesNoUpdateWhenReadModifyWritesRace() throws Exception {
+        User user = repository.save(new User(null, "Counter", "counter@example.com", 0));
+        AtomicInteger applied = new AtomicInteger();
+        race(4, 500, () -> {
+            // Each write must be based on the latest version, or it is retried
+            while (true) {
+                User current = repository.findById(user.getId()).orElseThrow();
+                try {
+                    repository.update(user.getId(), new User(user.getId(), "Counter", "counter@example.com", 
+                            current.getAge() + 1), current.getVersion());
+                    applied.incrementAndGet();
+                    return;
+                } catch (VersionConflictException e) {
+                    // Someone else wrote first
+                }
+            }
+        });
+
+        assertEquals(2000, applied.get());
+        assertEquals(2000, repository.findById(user.getId()).orElseThrow().getAge());
+    }
+
+    @Test
+    void keepsIndexesInStepWhenDeletesRaceUpserts() throws Exception {
+        int userCount = 32;
+        race(4, 20_000, () -> {
+            long id = 1 + ThreadLocalRandom.current().nextInt(userCount);
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                repository.deleteById(id);
+            } else {
+                repository.upsert(new User(id, "User " + id, "user" + id + "@example.com", 30));
+            }
+        });
+
+        List<Long> stored = new ArrayList<>();
+        for (long id = 1; id <= userCount; id++) {
+            String email = "user" + id + "@example.com";
+            if (repository.existsById(id)) {
+                stored.add(id);
+                assertEquals(id, repository.findByEmail(email).orElseThrow().getId());
+            } else {
+                // A stale index entry would make the email look taken
+                assertFalse(repository.findByEmail(email).isPresent());
+                repository.save(new User(null, "Check", email, 30));
+            }
+        }
+        assertEquals(stored, ids(repository.findAll()).subList(0, stored.size()));
+    }
+
+    @Test
+    void keepsTheEmailIndexInStepWhenUpdatesRace() throws Exception {
+        User user = repository.save(new User(null, "Jane", "a@example.com", 25));
+        String[] emails = {"a@example.com", "b@example.com"};
+        race(4, 20_000, () -> {
+            String email = emails[ThreadLocalRandom.current().nextInt(2)];
+            repository.update(user.getId(), new User(user.getId(), "Jane", email, 25), UserRepository.ANY_VERSION);
+        });
+
+        String current = repository.findById(user.getId()).orElseThrow().getEmail();
+        String other = current.equals(emails[0]) ? emails[1] : emails[0];
+        assertEquals(user.getId(), repository.findByEmail(current).orElseThrow().getId());
+        assertFalse(repository.findByEmail(other).isPresent());
+        repository.save(new User(null, "Other", other, 30));
+        assertThrows(DuplicateEmailException.class, () -> repository.save(new User(null, "Other", current, 30)));
+    }
+
+    /**
+     * Runs the action the given number of times on each of several threads at once.
+     */
+    private static void race(int threads, int iterations, ThrowingRunnable action) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        action.run();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    private static List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).toList();
+    }
+}
@@ -0,0 +1,110 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserSearchIndexTest {
+
+    private static final int UNLIMITED = 1_000_000;
+
+    private final UserSearchIndex index = new UserSearchIndex();
+
+    @Test
+    void findsUsersContainingTheQueryInTheirNameOrEmail() {
+        index.add(new User(1L, "Jonathan Smith", "jon@example.com", 30));
+        index.add(new User(2L, "Jane Doe", "jane@smithy.org", 30));
+        index.add(new User(3L, "Bob Brown", "bob@example.com", 30));
+
+        assertArrayEquals(new long[] {1L, 2L}, candidates("smith", 0));
+        assertArrayEquals(new long[] {1L, 3L}, candidates("example", 0));
+        assertArrayEquals(new long[0], candidates("zzz", 0));
+    }
+
+    @Test
+    void findsUsersWithinTheAllowedTypos() {
+        index.add(new User(1L, "Jonathan Smith", "jon@example.com", 30));
+        index.add(new User(2L, "Jonathon Smyth", "js@example.com", 30));
+        index.add(new User(3L, "Someone Else", "else@example.com", 30));
+
+        assertArrayEquals(new long[] {1L}, candidates("jonathan", 0));
+        // The exact match comes first, then the users that may be one typo away
+        assertArrayEquals(new long[] {1L, 2L}, candidates("jonathan", 1));
+
+        assertEquals(0, UserSearchIndex.substringDistance("jonathan", "mr jonathan smith", 1));
+        assertEquals(1, UserSearchIndex.substringDistance("jonathan", "jonathon smyth", 1));
+        assertEquals(2, UserSearchIndex.substringDistance("jonathan", "someone else", 1));
+        assertEquals(0, UserSearchIndex.maxTyposFor("jon"));
+        assertEquals(1, UserSearchIndex.maxTyposFor("jonathan"));
+        assertEquals(2, UserSearchIndex.maxTyposFor("jonathan smith"));
+    }
+
+    @Test
+    void movesPostingsWhenAUserIsRenamed() {
+        User before = new User(1L, "Alice Walker", "alice@example.com", 30);
+        User after = new User(1L, "Alicia Keys", "alice@example.com", 30);
+        index.add(before);
+        index.replace(before, after);
+
+        assertArrayEquals(new long[0], candidates("walker", 0));
+        assertArrayEquals(new long[] {1L}, candidates("keys", 0));
+        // Trigrams both names share stay in place
+        assertArrayEquals(new long[] {1L}, candidates("alic", 0));
+
+        index.remove(after);
+        assertArrayEquals(new long[0], candidates("alic", 0));
+    }
+
+    @Test
+    void keepsLargePostingListsSortedThroughInsertsAndRemoves() {
+        // Enough IDs, in random order, to split posting blocks many times over
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            ids.add(id);
+        }
+        Collections.shuffle(ids, new Random(42));
+        for (long id : ids) {
+            index.add(new User(id, "Common " + id, "c" + id + "@example.com", 30));
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            if (id % 3 == 0) {
+                index.remove(new User(id, "Common " + id, "c" + id + "@example.com", 30));
+            } else {
+                expected.add(id);
+            }
+        }
+
+        assertArrayEquals(expected.stream().mapToLong(Long::longValue).toArray(), candidates("common", 0));
+    }
+
+    @Test
+    void stopsAtTheBudgetAndSaysSo() {
+        for (long id = 1; id <= 100; id++) {
+            index.add(new User(id, "Common " + id, "c" + id + "@example.com", 30));
+        }
+
+        UserSearchIndex.Candidates limited = index.candidates("common", 0, 10, UNLIMITED, 10);
+        assertArrayEquals(new long[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, limited.ids);
+        assertTrue(limited.truncated);
+
+        UserSearchIndex.Candidates examined = index.candidates("common", 0, 10, 20, UNLIMITED);
+        assertEquals(20, examined.ids.length);
+        assertTrue(examined.truncated);
+
+        assertFalse(index.candidates("common", 0, 10, UNLIMITED, UNLIMITED).truncated);
+    }
+
+    private long[] candidates(String query, int maxTypos) {
+        return index.candidates(query, maxTypos, UNLIMITED, UNLIMITED, UNLIMITED).ids;
+    }
+}
@@ -0,0 +1,150 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.storage;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapUserStoreTest {
+
+    private final OffHeapUserStore store = new OffHeapUserStore();
+
+    @Test
+    void readsBackWhatWasStored() {
+        store.put(new User(1L, "Jane Doe", "jane@example.com", 25, 3L));
+        store.put(new User(2L, "Zoë ☃", "no-domain", 0, 4L));
+        store.put(new User(3L, null, null, 150, 5L));
+
+        assertEquals(describe(new User(1L, "Jane Doe", "jane@example.com", 25, 3L)), describe(store.get(1L)));
+        assertEquals(describe(new User(2L, "Zoë ☃", "no-domain", 0, 4L)), describe(store.get(2L)));
+        assertEquals(describe(new User(3L, null, null, 150, 5L)), describe(store.get(3L)));
+        assertNull(store.get(4L));
+        assertNull(store.get(null));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    void runsComputeFunctionsLikeAConcurrentMap() {
+        User created = new User(1L, "Jane", "jane@example.com", 25, 1L);
+        assertSame(created, store.computeIfAbsent(1L, id -> created));
+        assertEquals("Jane", store.computeIfAbsent(1L, id -> new User(1L, "Other", "o@example.com", 1, 2L)).getName());
+        assertNull(store.computeIfAbsent(2L, id -> null));
+        assertFalse(store.containsKey(2L));
+
+        store.computeIfPresent(1L, (id, user) -> new User(id, "Janet", "janet@example.org", 26, 2L));
+        assertEquals(describe(new User(1L, "Janet", "janet@example.org", 26, 2L)), describe(store.get(1L)));
+        assertNull(store.computeIfPresent(2L, (id, user) -> user));
+
+        assertNull(store.computeIfPresent(1L, (id, user) -> null));
+        assertFalse(store.containsKey(1L));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void keepsTheIdIndexConsistentThroughGrowthAndDeletes() {
+        // Enough IDs to resize the index several times, deleted in an order that shifts probe runs
+        Map<Long, User> expected = new TreeMap<>();
+        for (long id = 1; id <= 5000; id++) {
+            User user = new User(id * 7919, "User " + id, "user" + id + "@example" + (id % 5) + ".com",
+                    (int) (id % 100), id);
+            store.put(user);
+            expected.put(user.getId(), user);
+        }
+        for (long id = 1; id <= 5000; id += 3) {
+            long key = id * 7919;
+            assertNull(store.computeIfPresent(key, (k, user) -> null));
+            expected.remove(key);
+        }
+        for (long id = 5001; id <= 6000; id++) {
+            // New rows reuse the freed slots
+            User user = new User(id * 7919, "User " + id, "user" + id + "@example.com", 40, id);
+            store.put(user);
+            expected.put(user.getId(), user);
+        }
+
+        assertEquals(expected.size(), store.size());
+        for (long id = 1; id <= 6000; id++) {
+            long key = id * 7919;
+            User user = expected.get(key);
+            assertEquals(user != null, store.containsKey(key), "ID " + key);
+            assertEquals(describe(user), describe(store.get(key)), "ID " + key);
+        }
+
+        List<String> seen = new ArrayList<>();
+        store.forEach(user -> seen.add(describe(user)));
+        seen.sort(null);
+        List<String> wanted = new ArrayList<>();
+        expected.values().forEach(user -> wanted.add(describe(user)));
+        wanted.sort(null);
+        assertEquals(wanted, seen);
+    }
+
+    @Test
+    void keepsStringsIntactWhenTheStringAreaIsCompacted() {
+        store.put(new User(1L, "Kept", "kept@example.com", 30, 1L));
+        String longName = "x".repeat(64 * 1024);
+        // Rewriting the same row turns its old strings into garbage until a compaction
+        for (int i = 0; i < 2000; i++) {
+            store.put(new User(2L, longName + i, "user" + i + "@example.com", 30, i));
+        }
+
+        assertEquals(describe(new User(1L, "Kept", "kept@example.com", 30, 1L)), describe(store.get(1L)));
+        assertEquals(describe(new User(2L, longName + 1999, "user1999@example.com", 30, 1999L)),
+                describe(store.get(2L)));
+        // Without compaction the strings alone would take over 128 MB
+        assertTrue(store.getOffHeapBytes() < 40L << 20, "string area was not compacted");
+    }
+
+    @Test
+    void neverReturnsATornRowWhileItIsRewritten() throws Exception {
+        User a = new User(1L, "Alpha", "alpha@example.com", 20, 1L);
+        User b = new User(1L, "Bravo Bravo Bravo", "b@example.org", 80, 2L);
+        store.put(a);
+        String[] valid = {describe(a), describe(b)};
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    store.put(i % 2 == 0 ? b : a);
+                }
+                running.set(false);
+            });
+            Future<Integer> reader = executor.submit(() -> {
+                int torn = 0;
+                while (running.get()) {
+                    String read = describe(store.get(1L));
+                    if (!read.equals(valid[0]) && !read.equals(valid[1])) {
+                        torn++;
+                    }
+                }
+                return torn;
+            });
+            writer.get(60, TimeUnit.SECONDS);
+            assertEquals(0, reader.get(60, TimeUnit.SECONDS));
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    private static String describe(User user) {
+        return user == null ? "null" : user.getId() + "|" + user.getName() + "|" + user.getEmail() + "|"
+                + user.getAge() + "|" + user.getVersion();
+    }
+}
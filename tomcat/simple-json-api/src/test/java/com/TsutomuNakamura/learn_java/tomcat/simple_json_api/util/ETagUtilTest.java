@@ -0,0 +1,116 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.TsutomuNakamura.learn_java.tomcat.simple_json_api.ServletStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ETagUtilTest {
+
+    private static final String BINARY = BinaryResponseUtil.MEDIA_TYPE;
+
+    private final Map<String, String> headers = new HashMap<>();
+    private final List<String> vary = new ArrayList<>();
+    private Integer status;
+
+    @Test
+    void givesTheBinaryRepresentationItsOwnTag() {
+        String json = ETagUtil.forUser(7, 3);
+        String binary = ETagUtil.forRepresentation(request(Map.of("Accept", BINARY)), json);
+
+        assertEquals(json, ETagUtil.forRepresentation(request(Map.of()), json));
+        assertEquals(json, ETagUtil.forRepresentation(request(Map.of("Accept", "application/json")), json));
+        assertNotEquals(json, binary);
+        assertTrue(binary.startsWith("\"") && binary.endsWith("-b\""), binary);
+    }
+
+    @Test
+    void doesNotAnswerABinaryRequestWithNotModifiedForTheJsonTag() {
+        String json = ETagUtil.forCollection(42);
+
+        assertFalse(ETagUtil.handleConditionalGet(request(Map.of("Accept", BINARY, "If-None-Match", json)), 
+                response(), json));
+        assertNull(status);
+        assertEquals(ETagUtil.forRepresentation(request(Map.of("Accept", BINARY)), json), headers.get("ETag"));
+        assertEquals(List.of("Accept"), vary);
+    }
+
+    @Test
+    void setsVaryOnNotModified() {
+        String json = ETagUtil.forCollection(42);
+        String binary = ETagUtil.forRepresentation(request(Map.of("Accept", BINARY)), json);
+
+        assertTrue(ETagUtil.handleConditionalGet(request(Map.of("Accept", BINARY, "If-None-Match", binary)), 
+                response(), json));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+        assertEquals(binary, headers.get("ETag"));
+        assertEquals(List.of("Accept"), vary);
+    }
+
+    @Test
+    void readsTheVersionFromEitherRepresentationsTag() {
+        String json = ETagUtil.forUser(7, 3);
+        String binary = ETagUtil.forRepresentation(request(Map.of("Accept", BINARY)), json);
+
+        assertEquals(3, ETagUtil.expectedUserVersion(request(Map.of("If-Match", json)), 7));
+        assertEquals(3, ETagUtil.expectedUserVersion(request(Map.of("If-Match", binary)), 7));
+        assertEquals(ETagUtil.NO_VERSION, ETagUtil.expectedUserVersion(request(Map.of("If-Match", binary)), 8));
+        assertEquals(ETagUtil.NO_VERSION, ETagUtil.expectedUserVersion(request(Map.of("If-Match", "W/" + json)), 7));
+        assertEquals(UserRepository.ANY_VERSION, ETagUtil.expectedUserVersion(request(Map.of()), 7));
+    }
+
+    @Test
+    void readsTheExpectedVersionFromIfMatch() {
+        String current = ETagUtil.forUser(7, 3);
+
+        assertEquals(UserRepository.ANY_VERSION, ETagUtil.expectedUserVersion(request(Map.of("If-Match", "*")), 7));
+        assertEquals(3, ETagUtil.expectedUserVersion(
+                request(Map.of("If-Match", "\"other\", " + current + ", " + ETagUtil.forUser(7, 5))), 7));
+        assertEquals(ETagUtil.NO_VERSION, ETagUtil.expectedUserVersion(request(Map.of("If-Match", "\"other\"")), 7));
+        assertEquals(ETagUtil.NO_VERSION, 
+                ETagUtil.expectedUserVersion(request(Map.of("If-Match", ETagUtil.forCollection(3))), 7));
+        // A tag minted by an earlier deployment names a version that may have been reused
+        assertEquals(ETagUtil.NO_VERSION, 
+                ETagUtil.expectedUserVersion(request(Map.of("If-Match", "\"u0-7-3\"")), 7));
+        assertEquals(ETagUtil.NO_VERSION, ETagUtil.expectedUserVersion(
+                request(Map.of("If-Match", current.replace("-3\"", "-x\""))), 7));
+    }
+
+    private static HttpServletRequest request(Map<String, String> requestHeaders) {
+        return stub(HttpServletRequest.class, (name, args) -> 
+                "getHeader".equals(name) ? requestHeaders.get((String) args[0]) : null);
+    }
+
+    private HttpServletResponse response() {
+        return stub(HttpServletResponse.class, (name, args) -> {
+            switch (name) {
+                case "setHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    break;
+                case "addHeader":
+                    if ("Vary".equals(args[0])) {
+                        vary.add((String) args[1]);
+                    }
+                    break;
+                case "setStatus":
+                    status = (Integer) args[0];
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,83 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
+
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.ApiResponse;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static com.TsutomuNakamura.learn_java.tomcat.simple_json_api.ServletStubs.stub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonResponseUtilTest {
+
+    @Test
+    void doesNotKeepMessagesBuiltFromTheRequest() throws Exception {
+        String message = "Invalid user ID: \"abcé☃\"";
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonResponseUtil.sendErrorResponse(response(body), message, HttpServletResponse.SC_BAD_REQUEST);
+
+        assertEquals(expected(message), withoutTimestamp(body));
+        assertFalse(encodedErrors().containsKey(message));
+    }
+
+    @Test
+    void keepsFixedMessagesEncoded() throws Exception {
+        String message = "Fixed test error";
+
+        JsonResponseUtil.sendFixedErrorResponse(response(new ByteArrayOutputStream()), message, 
+                HttpServletResponse.SC_BAD_REQUEST);
+        assertTrue(encodedErrors().containsKey(message));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonResponseUtil.sendFixedErrorResponse(response(body), message, HttpServletResponse.SC_BAD_REQUEST);
+
+        assertEquals(expected(message), withoutTimestamp(body));
+    }
+
+    /**
+     * Returns what the generic path sends for {@code ApiResponse.error(message)}.
+     */
+    private static String expected(String message) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonResponseUtil.sendJsonResponse(response(body), ApiResponse.error(message), HttpServletResponse.SC_BAD_REQUEST);
+        return withoutTimestamp(body);
+    }
+
+    private static String withoutTimestamp(ByteArrayOutputStream body) {
+        return body.toString(StandardCharsets.UTF_8).replaceAll("\"timestamp\":\\d+", "\"timestamp\":0");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, byte[]> encodedErrors() throws Exception {
+        Field field = JsonResponseUtil.class.getDeclaredField("encodedErrors");
+        field.setAccessible(true);
+        return (Map<String, byte[]>) field.get(null);
+    }
+
+    private static HttpServletResponse response(ByteArrayOutputStream body) {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+        return stub(HttpServletResponse.class, (name, args) -> "getOutputStream".equals(name) ? out : null);
+    }
+}
@@ -0,0 +1,123 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.filter;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Response wrapper that routes the body through a {@link CompressingOutputStream}.
+ * Content-Length set by the application is dropped, because the compressed
+ * length is not known up front; uncompressed bodies get it back on finish.
+ */
+class CompressingResponseWrapper extends HttpServletResponseWrapper {
+    
+    private final String encoding;
+    private final int minSize;
+    private CompressingOutputStream stream;
+    private PrintWriter writer;
+    
+    CompressingResponseWrapper(HttpServletResponse response, String encoding, int minSize) {
+        super(response);
+        this.encoding = encoding;
+        this.minSize = minSize;
+    }
+    
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        return stream();
+    }
+    
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+    
+    @Override
+    public void setContentLength(int len) {
+    }
+    
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+    
+    @Override
+    public void setHeader(String name, String value) {
+        if (!"Content-Length".equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+        }
+    }
+    
+    @Override
+    public void addHeader(String name, String value) {
+        if (!"Content-Length".equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+        }
+    }
+    
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (stream != null) {
+            stream.flush();
+        }
+    }
+    
+    @Override
+    public void resetBuffer() {
+        if (stream != null) {
+            stream.discardBuffered();
+        }
+        super.resetBuffer();
+    }
+    
+    @Override
+    public void reset() {
+        if (stream != null) {
+            stream.discardBuffered();
+        }
+        super.reset();
+    }
+    
+    /**
+     * Writes out whatever is still buffered or pending in the compressor.
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.finish();
+        }
+    }
+    
+    /**
+     * Releases the compressor without writing anything more, for a handler that
+     * failed. The container can then still send its own error page.
+     */
+    void abort() {
+        if (stream != null) {
+            stream.abort();
+        }
+    }
+    
+    private CompressingOutputStream stream() throws IOException {
+        if (stream == null) {
+            stream = new CompressingOutputStream((HttpServletResponse) getResponse(), encoding, minSize);
+        }
+        return stream;
+    }
+}
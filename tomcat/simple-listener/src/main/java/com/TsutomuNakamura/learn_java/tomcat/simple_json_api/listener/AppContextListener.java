@@ -3,7 +3,9 @@ package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.listener;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import jakarta.servlet.annotation.WebListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.AppInfo;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -29,6 +31,8 @@ public class AppContextListener implements ServletContextListener {
         String csvData = appInfo.toCsv();
         sce.getServletContext().setAttribute(APP_INFO_CSV_KEY, csvData);
         
+        MetricsRegistry.gauge("users_repository_size", "Number of stored users.", new UserRepository()::count);
+        
         System.out.println("Application started successfully at " + new java.util.Date());
         System.out.println("Generated UUID: " + uuid);
         System.out.println("Generated Date: " + dateString);
@@ -18,4 +18,8 @@ public class UserRepository {
     public List<User> findAll() {
         return new ArrayList<>(users);
     }
+    
+    public long count() {
+        return users.size();
+    }
 }
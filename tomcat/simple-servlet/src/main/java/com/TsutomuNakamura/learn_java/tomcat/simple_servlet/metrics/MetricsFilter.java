@@ -0,0 +1,113 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_servlet.metrics;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletMapping;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+/**
+ * Times every request and records it in the {@link MetricsRegistry} by route,
+ * method and status.
+ *
+ * The route comes from the servlet mapping that matched, not from the raw URI,
+ * so IDs in the path never become label values. A request that goes
+ * asynchronous is recorded when its AsyncContext completes, with the status it
+ * was finally sent with.
+ */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class MetricsFilter implements Filter {
+    private static final String DEFAULT_ROUTE = "default";
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) 
+            throws IOException, ServletException {
+        if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new RecordingListener(request, response, start));
+            } else {
+                // An exception escaping the chain is turned into a 500 by the container
+                record(request, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus(), 
+                        start);
+            }
+        }
+    }
+    
+    private static void record(HttpServletRequest request, int status, long start) {
+        long elapsed = System.nanoTime() - start;
+        HttpServletMapping mapping = request.getHttpServletMapping();
+        String method = request.getMethod();
+        if (mapping == null || mapping.getMappingMatch() == null) {
+            MetricsRegistry.recordRequest(DEFAULT_ROUTE, null, method, status, elapsed);
+            return;
+        }
+        switch (mapping.getMappingMatch()) {
+            case PATH:
+                MetricsRegistry.recordRequest(request.getServletPath(), request.getPathInfo(), 
+                        method, status, elapsed);
+                break;
+            case EXACT:
+                MetricsRegistry.recordRequest(request.getServletPath(), null, method, status, elapsed);
+                break;
+            case EXTENSION:
+                MetricsRegistry.recordRequest(mapping.getPattern(), null, method, status, elapsed);
+                break;
+            case CONTEXT_ROOT:
+                MetricsRegistry.recordRequest("", null, method, status, elapsed);
+                break;
+            default:
+                // Static files and unmapped paths, which could be anything
+                MetricsRegistry.recordRequest(DEFAULT_ROUTE, null, method, status, elapsed);
+                break;
+        }
+    }
+    
+    private static final class RecordingListener implements AsyncListener {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final long start;
+        
+        private RecordingListener(HttpServletRequest request, HttpServletResponse response, long start) {
+            this.request = request;
+            this.response = response;
+            this.start = start;
+        }
+        
+        @Override
+        public void onComplete(AsyncEvent event) {
+            record(request, response.getStatus(), start);
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.filter;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buffers the first {@code minSize} bytes of a body to decide whether it is worth
+ * compressing. Once the body outgrows the buffer, compression starts and every
+ * further write is deflated straight into the container's stream.
+ * 
+ * While still buffering, flush() is a no-op so that small bodies keep an exact
+ * Content-Length. Event streams are never compressed, since each event must
+ * reach the client when it is flushed.
+ */
+class CompressingOutputStream extends ServletOutputStream {
+    
+    private static final int COMPRESSOR_BUFFER_SIZE = 8192;
+    
+    private final HttpServletResponse response;
+    private final ServletOutputStream target;
+    private final String encoding;
+    private byte[] buffer;
+    private int count;
+    private DeflaterOutputStream compressor;
+    private boolean passThrough;
+    private boolean finished;
+    private boolean discarding;
+    
+    CompressingOutputStream(HttpServletResponse response, String encoding, int minSize) throws IOException {
+        this.response = response;
+        this.target = response.getOutputStream();
+        this.encoding = encoding;
+        this.buffer = new byte[minSize];
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        if (compressor != null) {
+            compressor.write(b);
+        } else if (passThrough || isEventStream()) {
+            startPassThrough();
+            target.write(b);
+        } else if (count < buffer.length) {
+            buffer[count++] = (byte) b;
+        } else {
+            startCompression();
+            compressor.write(b);
+        }
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (compressor != null) {
+            compressor.write(b, off, len);
+        } else if (passThrough || isEventStream()) {
+            startPassThrough();
+            target.write(b, off, len);
+        } else if (count + len <= buffer.length) {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        } else {
+            startCompression();
+            compressor.write(b, off, len);
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        if (compressor != null) {
+            compressor.flush();
+        } else if (passThrough) {
+            target.flush();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+    
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        
+        try {
+            if (compressor != null) {
+                // Ends the deflater and writes the trailer without closing the container's stream
+                compressor.close();
+            } else if (!passThrough && count > 0) {
+                if (!response.isCommitted()) {
+                    response.setContentLength(count);
+                }
+                target.write(buffer, 0, count);
+            }
+        } finally {
+            buffer = null;
+        }
+    }
+    
+    /**
+     * Ends the compressor without sending the rest of the body or the trailer,
+     * and drops whatever is still buffered.
+     */
+    void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        buffer = null;
+        
+        if (compressor != null) {
+            discarding = true;
+            try {
+                compressor.close();
+            } catch (IOException e) {
+                // Nothing reaches the container's stream any more, so nothing can fail
+            }
+        }
+    }
+    
+    void discardBuffered() {
+        count = 0;
+    }
+    
+    @Override
+    public boolean isReady() {
+        return target.isReady();
+    }
+    
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        target.setWriteListener(writeListener);
+    }
+    
+    private boolean isEventStream() {
+        String contentType = response.getContentType();
+        return contentType != null && contentType.startsWith("text/event-stream");
+    }
+    
+    private void startPassThrough() throws IOException {
+        if (!passThrough) {
+            passThrough = true;
+            if (count > 0) {
+                target.write(buffer, 0, count);
+            }
+            buffer = null;
+        }
+    }
+    
+    private void startCompression() throws IOException {
+        response.setHeader("Content-Encoding", encoding);
+        
+        // The compressed bytes differ from the identity ones, so a strong tag no longer holds
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            response.setHeader("ETag", "W/" + etag);
+        }
+        
+        OutputStream out = new FilterOutputStream(target) {
+            @Override
+            public void write(int b) throws IOException {
+                if (!discarding) {
+                    target.write(b);
+                }
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (!discarding) {
+                    target.write(b, off, len);
+                }
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                if (!discarding) {
+                    target.flush();
+                }
+            }
+            
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        if (CompressionFilter.GZIP.equals(encoding)) {
+            compressor = new GZIPOutputStream(out, COMPRESSOR_BUFFER_SIZE);
+        } else {
+            compressor = new DeflaterOutputStream(out, new Deflater(), COMPRESSOR_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    // Like GZIPOutputStream, release the native memory even when the write fails
+                    try {
+                        super.close();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        }
+        
+        compressor.write(buffer, 0, count);
+        buffer = null;
+    }
+}
@@ -0,0 +1,142 @@
+package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.filter;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.annotation.WebInitParam;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Compresses API responses with gzip or deflate, whichever the client prefers
+ * in Accept-Encoding. Only the JDK's java.util.zip is used.
+ * 
+ * A response is buffered only until it reaches {@code min-size} bytes. Bodies
+ * that end below that size are sent as they are, since compressing a short
+ * error envelope costs more than it saves. Larger bodies are compressed while
+ * they are being written, so the full body is never held in memory.
+ * 
+ * When the servlet goes asynchronous, whoever completes the request must close
+ * the response stream, which flushes whatever the compressor still holds.
+ */
+@WebFilter(urlPatterns = "/api/*", asyncSupported = true, 
+        initParams = @WebInitParam(name = "min-size", value = "1024"))
+public class CompressionFilter implements Filter {
+    
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    private static final int DEFAULT_MIN_SIZE = 1024;
+    
+    private int minSize = DEFAULT_MIN_SIZE;
+    
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String value = filterConfig.getInitParameter("min-size");
+        if (value != null) {
+            try {
+                minSize = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid compression min-size: " + value);
+            }
+        }
+    }
+    
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) 
+            throws IOException, ServletException {
+        if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        response.addHeader("Vary", "Accept-Encoding");
+        
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(request.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        CompressingResponseWrapper wrappedResponse = new CompressingResponseWrapper(response, encoding, minSize);
+        boolean completed = false;
+        try {
+            chain.doFilter(request, wrappedResponse);
+            completed = true;
+        } finally {
+            // A failed handler gets no trailer, but its deflater still has to be ended
+            if (!request.isAsyncStarted()) {
+                if (completed) {
+                    wrappedResponse.finish();
+                } else {
+                    wrappedResponse.abort();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Picks gzip or deflate from an Accept-Encoding header, honouring q-values.
+     * @return the chosen coding, or null if the client accepts neither
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double wildcardQuality = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1.0;
+            for (int i = 1; i < tokens.length; i++) {
+                String param = tokens[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (coding.equals(DEFLATE)) {
+                deflateQuality = quality;
+            } else if (coding.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+        
+        // Codings not listed explicitly fall back to the wildcard's quality
+        if (gzipQuality < 0) {
+            gzipQuality = wildcardQuality;
+        }
+        if (deflateQuality < 0) {
+            deflateQuality = wildcardQuality;
+        }
+        
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        }
+        if (deflateQuality > 0) {
+            return DEFLATE;
+        }
+        return null;
+    }
+    
+    @Override
+    public void destroy() {
+    }
+}
@@ -3,7 +3,9 @@ package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.listener;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import jakarta.servlet.annotation.WebListener;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.JwsInfo;
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.repository.UserRepository;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.service.JwsManagementService;
 
 import java.util.concurrent.Executors;
@@ -25,6 +27,7 @@ public class AppContextListener implements ServletContextListener {
     @Override
     public void contextInitialized(ServletContextEvent sce) {
         this.servletContextEvent = sce; // Store reference for use in scheduled task
+        MetricsRegistry.gauge("users_repository_size", "Number of stored users.", new UserRepository()::count);
         
         try {
             this.jwsService = new JwsManagementService(); // Initialize JWS management service
@@ -1,5 +1,6 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.service;
 
+import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.metrics.MetricsRegistry;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.model.User;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JwsPersistenceUtil;
 import com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util.JwsUtil;
@@ -21,6 +22,11 @@ public class JwsManagementService {
     private static final String DATE_FORMAT_PATTERN = "yyyy-MM-dd HH:mm:ss";
     //private static final int JWS_EXPIRATION_MINUTES = 10; // JWS expires after 10 minutes
     private static final int JWS_EXPIRATION_MINUTES = 1;
+    
+    private static final MetricsRegistry.Timer GENERATION_TIMER = MetricsRegistry.timer(
+            "jws_generation_seconds", "Time taken to build, sign and persist a new JWS.");
+    private static final MetricsRegistry.Counter GENERATION_FAILURES = MetricsRegistry.counter(
+            "jws_generation_failures_total", "JWS generations that failed.");
 
     private final JwsPersistenceUtil persistenceUtil;
     private final JwsUtil jwsUtil;
@@ -91,6 +97,7 @@ public class JwsManagementService {
      * @return New JwsInfo object with JWS and expiration info
      */
     public JwsInfo generateNewJwsInfo() {
+        long start = System.nanoTime();
         try {
             // Get current user data to include in JWS payload
             List<User> users = userService.getAllUsers();
@@ -109,8 +116,10 @@ public class JwsManagementService {
             System.out.println("[JWS-Service] Generated new JWS with user data at " + dateString);
             System.out.println("[JWS-Service] JWS will expire at: " + expiresString);
             
+            GENERATION_TIMER.record(System.nanoTime() - start);
             return jwsInfo;
         } catch (Exception e) {
+            GENERATION_FAILURES.increment();
             System.err.println("[JWS-Service] Failed to generate JWS: " + e.getMessage());
             e.printStackTrace();
             
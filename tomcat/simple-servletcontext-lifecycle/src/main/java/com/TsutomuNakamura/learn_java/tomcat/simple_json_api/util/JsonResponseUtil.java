@@ -1,13 +1,27 @@
 package com.TsutomuNakamura.learn_java.tomcat.simple_json_api.util;
 
 import jakarta.servlet.http.HttpServletResponse;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 public class JsonResponseUtil {
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    // The servlet container owns the response stream, so Jackson must never close it
+    private static final ObjectMapper objectMapper = JsonMapper.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
     
+    /**
+     * Serializes data as UTF-8 JSON straight into the response output stream.
+     * 
+     * No intermediate String is built: the generator encodes into its own small
+     * buffer and hands each full buffer to the container, so a response of any
+     * size is sent with constant extra memory.
+     */
     public static void sendJsonResponse(HttpServletResponse response, Object data, int statusCode) 
             throws IOException {
         response.setContentType("application/json");
@@ -19,9 +33,10 @@ public class JsonResponseUtil {
         response.setHeader("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
         response.setHeader("Access-Control-Allow-Headers", "Content-Type");
         
-        PrintWriter out = response.getWriter();
-        String jsonString = objectMapper.writeValueAsString(data);
-        out.print(jsonString);
+        OutputStream out = response.getOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            objectMapper.writeValue(generator, data);
+        }
         out.flush();
     }
 }